@@ -101,11 +101,6 @@ public class HostSonicRuntime extends SonicRuntime {
         return true;
     }
     @Override
-    public void postTaskToThread(Runnable task, long delayMillis) {
-        Thread thread = new Thread(task, "SonicThread");
-        thread.start();
-    }
-    @Override
     public File getSonicCacheDir() {
         String path = Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator + "sonic/";
         File file = new File(path.trim());
@@ -20,4 +20,11 @@ public class MyApplication extends Application {
                     setMaxPreloadSessionCount(3).setUnavailableTime(3 * 60 * 60 * 1000).
                     setCacheVerifyWithSha1(true).build());
     }
+    //内存不足时让Sonic释放预加载会话和缓存
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (SonicEngine.isGetInstanceAllowed())
+            SonicEngine.getInstance().onTrimMemory(level);
+    }
 }
@@ -21,6 +21,7 @@ import android.util.Log;
 
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.util.HashMap;
@@ -349,7 +350,11 @@ public class QuickSonicSession extends SonicSession implements Handler.Callback
     }
     //如果已经拦截了
     public Object onClientRequestResource(String url) {
-        if (wasInterceptInvoked.get() || !isMatchCurrentUrl(url)) {
+        //非主文档请求，交给子资源缓存处理
+        if (!isMatchCurrentUrl(url)) {
+            return onClientRequestSubResource(url);
+        }
+        if (wasInterceptInvoked.get()) {
             return null;
         }
         //设置已经拦截
@@ -362,22 +367,7 @@ public class QuickSonicSession extends SonicSession implements Handler.Callback
         }
         //如果当前请求状态为正在运行
         long startTime = System.currentTimeMillis();
-        if (sessionState.get() == STATE_RUNNING) {
-            synchronized (sessionState) {
-                try {
-                    if (sessionState.get() == STATE_RUNNING) {
-                        SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") now wait for pendingWebResourceStream!");
-                        sessionState.wait(30 * 1000);
-                    }
-                } catch (Throwable e) {
-                    SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") wait for pendingWebResourceStream failed" + e.getMessage());
-                }
-            }
-        } else {
-            if (SonicUtils.shouldLog(Log.DEBUG)) {
-                SonicUtils.log(TAG, Log.DEBUG, "session(" + sId + ") is not in running state: " + sessionState);
-            }
-        }
+        waitForPendingResource();
         SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") have pending stream? -> " + (pendingWebResourceStream != null) + ", cost " + (System.currentTimeMillis() - startTime) + "ms.");
         //如果pendingWebResourceStream不为nul，也就是数据已经请求了，这时候可以直接把数据给webView
         if (null != pendingWebResourceStream) {
@@ -415,6 +405,13 @@ public class QuickSonicSession extends SonicSession implements Handler.Callback
         }
     }
 
+    protected void handleFlow_TaskRejected() {
+        // Nothing is loaded yet, let the client load the url
+        mainHandler.removeMessages(CLIENT_CORE_MSG_PRE_LOAD);
+        Message msg = mainHandler.obtainMessage(CLIENT_CORE_MSG_SERVICE_UNAVAILABLE);
+        mainHandler.sendMessage(msg);
+    }
+
     protected void handleFlow_ServiceUnavailable(){
         //删除预加载状态
         mainHandler.removeMessages(CLIENT_CORE_MSG_PRE_LOAD);
@@ -427,7 +424,7 @@ public class QuickSonicSession extends SonicSession implements Handler.Callback
         try {
             SonicUtils.log(TAG, Log.INFO, "handleFlow_TemplateChange :");
             long startTime = System.currentTimeMillis();
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            SonicCaptureOutputStream output = createCaptureStream();
 
             SonicSessionConnection.ResponseDataTuple responseDataTuple = sessionConnection.getResponseData(wasOnPageFinishInvoked, output);
             if (responseDataTuple == null) {
@@ -447,15 +444,12 @@ public class QuickSonicSession extends SonicSession implements Handler.Callback
                 msg.arg1 = TEMPLATE_CHANGE_REFRESH;
             }
             mainHandler.sendMessage(msg);
+            SonicSessionPipe pipe = null;
             if (!responseDataTuple.isComplete) {
-                responseDataTuple = sessionConnection.getResponseData(wasInterceptInvoked, output);
-                if (responseDataTuple != null) {
-                    pendingWebResourceStream = new SonicSessionStream(this, responseDataTuple.outputStream, responseDataTuple.responseStream);
-                } else {
-                    pendingWebResourceStream = null;
-                    SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") handleFlow_TemplateChange error:resourceResponseTuple = null!");
-                    return;
-                }
+                //剩余数据通过管道边读边传给webView
+                pipe = createPipe(output, responseDataTuple.responseStream);
+                pendingWebResourceStream = pipe.getInputStream();
+                notifyPendingResourceReady();
             }
             if (SonicUtils.shouldLog(Log.DEBUG)) {
                 SonicUtils.log(TAG, Log.DEBUG, "session(" + sId + ") read byte stream cost " + (System.currentTimeMillis() - startTime) + " ms, wasInterceptInvoked: " + wasInterceptInvoked.get());
@@ -464,15 +458,7 @@ public class QuickSonicSession extends SonicSession implements Handler.Callback
             if (SonicUtils.needSaveData(cacheOffline)) {
                 switchState(STATE_RUNNING, STATE_READY, true);
                 if (!TextUtils.isEmpty(htmlString)) {
-                    try {
-                        //In order not to seize the cpu resources, affecting the rendering of the kernel，sleep 1.5s here
-                        Thread.sleep(1500);
-                        startTime = System.currentTimeMillis();
-                        separateAndSaveCache(htmlString);
-                        SonicUtils.log(TAG, Log.DEBUG, "session(" + sId + ") handleFlow_TemplateChange: read complete and finish separate and save cache cost " + (System.currentTimeMillis() - startTime) + " ms.");
-                    } catch (Throwable e) {
-                        SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") handleFlow_TemplateChange error:" + e.getMessage());
-                    }
+                    postSaveCacheTask(htmlString, responseDataTuple.outputStream);
                 }
             } else if (OFFLINE_MODE_FALSE.equals(cacheOffline)) {
                 SonicUtils.removeSessionCache(id);
@@ -481,27 +467,34 @@ public class QuickSonicSession extends SonicSession implements Handler.Callback
                 SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") handleFlow_TemplateChange:offline->" + cacheOffline + " , so do not need cache to file.");
             }
 
+            if (null != pipe) {
+                pipe.pumpToEnd();
+            }
         } catch (Throwable e) {
             SonicUtils.log(TAG, Log.DEBUG, "session(" + sId + ") handleFlow_TemplateChange error:" + e.getMessage());
         }
     }
     //处理url首次加载
     protected void handleFlow_FirstLoad() {
-        //获取服务器的响应数，直到客户端拦截请求
-        SonicSessionConnection.ResponseDataTuple responseDataTuple = sessionConnection.getResponseData(wasInterceptInvoked, null);
-        if (null == responseDataTuple) {
-            SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") handleFlow_FirstLoad error:responseDataTuple is null!");
+        BufferedInputStream responseStream = sessionConnection.getResponseStream();
+        if (null == responseStream) {
+            SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") handleFlow_FirstLoad error:responseStream is null!");
             return;
         }
-        //把已经获取到的数据做成pendingWebResourceStream
-        pendingWebResourceStream = new SonicSessionStream(this, responseDataTuple.outputStream, responseDataTuple.responseStream);
+        //把服务器的响应数据做成管道pendingWebResourceStream，webView拦截请求后可以立即读取，剩余数据边读边传
+        SonicSessionPipe pipe = createPipe(createCaptureStream(), responseStream);
+        pendingWebResourceStream = pipe.getInputStream();
+        notifyPendingResourceReady();
+        //获取服务器的响应数据，直到客户端拦截请求
+        boolean isComplete = pipe.readUntilAttached();
         //得到html数据
         String htmlString = null;
         //如果sonic都把这个请求的数据获取完成了，webView还没有拦截此请求（也就是webView还没有初始化完成），那么webView将不会拦截了
-        if (responseDataTuple.isComplete) {
+        if (isComplete) {
             try {
                 //获取完整的数据，因为请求没有被webView拦截，数据是完整的
-                htmlString = responseDataTuple.outputStream.toString("UTF-8");
+                htmlString = pipe.getCaptureStream().toString("UTF-8");
+                prefetchSubResources(htmlString);
             } catch (Throwable e) {
                 pendingWebResourceStream = null;
                 SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") handleFlow_FirstLoad error:" + e.getMessage() + ".");
@@ -524,9 +517,7 @@ public class QuickSonicSession extends SonicSession implements Handler.Callback
                 //开始把数据保存到本地
                 if (hasCacheData && !wasLoadUrlInvoked.get() && !wasInterceptInvoked.get()) {
                     switchState(STATE_RUNNING, STATE_READY, true);
-                    //In order not to seize the cpu resources, affecting the rendering of the kernel，sleep 1.5s here
-                    Thread.sleep(1500);
-                    separateAndSaveCache(htmlString);
+                    postSaveCacheTask(htmlString, pipe.getCaptureStream());
                 }
             } catch (Throwable e) {
                 SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") handleFlow_FirstLoad error:  " + e.getMessage());
@@ -534,6 +525,10 @@ public class QuickSonicSession extends SonicSession implements Handler.Callback
         } else {
             SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") handleFlow_FirstLoad:offline->" + cacheOffline + " , so do not need cache to file.");
         }
+        //webView已经拦截，继续读取剩余数据并传给webView
+        if (!isComplete) {
+            pipe.pumpToEnd();
+        }
     }
     //处理动态数据变化
     protected void handleFlow_DataUpdate() {
@@ -610,6 +605,7 @@ public class QuickSonicSession extends SonicSession implements Handler.Callback
                 if (SonicUtils.saveSessionFiles(id, htmlString, null, serverDataJson.toString())) {
                     long htmlSize = new File(SonicFileUtils.getSonicHtmlPath(id)).length();
                     SonicUtils.saveSonicData(id, eTag, templateTag, htmlSha1, htmlSize, cspContent, cspReportOnlyContent);
+                    SonicUtils.saveSessionValidation(id, sessionConnection.getResponseHeaderField(SonicSessionConnection.HTTP_HEAD_CACHE_CONTROL));
                     SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") handleFlow_DataUpdate: finish save session cache, cost " + (System.currentTimeMillis() - startTime) + " ms.");
                 } else {
                     SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") handleFlow_DataUpdate: save session files fail.");
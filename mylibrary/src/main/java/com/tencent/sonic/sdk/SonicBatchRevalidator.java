@@ -0,0 +1,245 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * <code>SonicBatchRevalidator</code> revalidates the cache of many sessions with one request.
+ * <p>
+ * The request is a POST of json to the batch url:
+ * <pre>
+ * {"sessions": [{"id": "...", "url": "...", "etag": "...", "template-tag": "..."}, ...]}
+ * </pre>
+ * The response has the result of each session, in the same form as the response of a session:
+ * <pre>
+ * {"sessions": {"&lt;id&gt;": {"code": 304|200, "template-change": "true"|"false", "etag": "...",
+ *     "template-tag": "...", "cache-offline": "...", "cache-control": "...", "data": {...}, "html-sha1": "...",
+ *     "html": "..."}}}
+ * </pre>
+ * A data update (template-change is false) rebuilds the html from the cached template and the data,
+ * a template change provides the whole html which is separated to template and data, just like
+ * a session does.
+ *
+ */
+class SonicBatchRevalidator {
+
+    /**
+     * Log filter
+     */
+    private static final String TAG = SonicConstants.SONIC_SDK_LOG_PREFIX + "SonicBatchRevalidator";
+
+    private final AtomicLong notModifiedCount = new AtomicLong();
+
+    private final AtomicLong dataUpdateCount = new AtomicLong();
+
+    private final AtomicLong templateChangeCount = new AtomicLong();
+
+    /**
+     * Post the batch request to thread.
+     *
+     * @param batchUrl The url which accepts the batch request
+     * @param sessions The session ids and their urls, the sessions without cache are ignored
+     * @return Returns false if there is no session to revalidate.
+     */
+    boolean revalidate(final String batchUrl, Map<String, String> sessions) {
+        final JSONArray sessionArray = new JSONArray();
+        try {
+            for (Map.Entry<String, String> session : sessions.entrySet()) {
+                SonicDataHelper.SessionData sessionData = SonicDataHelper.getSessionData(session.getKey());
+                if (TextUtils.isEmpty(sessionData.etag)) {
+                    continue;
+                }
+                JSONObject sessionJson = new JSONObject();
+                sessionJson.put("id", session.getKey());
+                sessionJson.put("url", session.getValue());
+                sessionJson.put(SonicSessionConnection.CUSTOM_HEAD_FILED_ETAG, sessionData.etag);
+                sessionJson.put(SonicSessionConnection.CUSTOM_HEAD_FILED_TEMPLATE_TAG, sessionData.templateTag);
+                sessionArray.put(sessionJson);
+            }
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "revalidate error:" + e.getMessage());
+            return false;
+        }
+        if (0 == sessionArray.length()) {
+            return false;
+        }
+        SonicEngine.getInstance().getRuntime().postTaskToThread(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                JSONObject responseJson = request(batchUrl, sessionArray);
+                JSONObject results = null != responseJson ? responseJson.optJSONObject("sessions") : null;
+                if (null == results) {
+                    return;
+                }
+                for (int i = 0; i < sessionArray.length(); ++i) {
+                    String sessionId = sessionArray.optJSONObject(i).optString("id");
+                    JSONObject result = results.optJSONObject(sessionId);
+                    if (SonicEngine.getInstance().isSessionInUse(sessionId)) {
+                        // The session revalidates the cache by itself
+                        SonicUtils.log(TAG, Log.INFO, "revalidate:session(" + sessionId + ") is in use, ignore.");
+                    } else if (null != result) {
+                        apply(sessionId, result);
+                    }
+                }
+                SonicUtils.log(TAG, Log.INFO, "revalidate " + sessionArray.length() + " sessions, cost " + (System.currentTimeMillis() - startTime) + " ms.");
+            }
+        }, 0);
+        return true;
+    }
+
+    private JSONObject request(String batchUrl, JSONArray sessionArray) {
+        HttpURLConnection connection = null;
+        try {
+            URLConnection urlConnection = new URL(batchUrl).openConnection();
+            if (!(urlConnection instanceof HttpURLConnection)) {
+                return null;
+            }
+            connection = (HttpURLConnection) urlConnection;
+            SonicConfig config = SonicEngine.getInstance().getConfig();
+            SonicRuntime runtime = SonicEngine.getInstance().getRuntime();
+            connection.setConnectTimeout(config.BATCH_REVALIDATE_TIMEOUT_MILLIS);
+            connection.setReadTimeout(config.BATCH_REVALIDATE_TIMEOUT_MILLIS);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            List<SonicContentDecoder> decoders = SonicContentDecoder.getDecoders(new ArrayList<SonicContentDecoder>());
+            connection.setRequestProperty("accept-Encoding", SonicContentDecoder.getAcceptEncoding(decoders));
+            connection.setRequestProperty("User-Agent", SonicUtils.getUserAgent());
+            String cookie = runtime.getCookie(batchUrl);
+            if (!TextUtils.isEmpty(cookie)) {
+                connection.setRequestProperty("cookie", cookie);
+            }
+
+            JSONObject requestJson = new JSONObject();
+            requestJson.put("sessions", sessionArray);
+            OutputStream outputStream = connection.getOutputStream();
+            try {
+                outputStream.write(requestJson.toString().getBytes("UTF-8"));
+            } finally {
+                outputStream.close();
+            }
+
+            int responseCode = connection.getResponseCode();
+            if (HttpURLConnection.HTTP_OK != responseCode) {
+                SonicUtils.log(TAG, Log.ERROR, "request error:response code = " + responseCode + ".");
+                return null;
+            }
+            InputStream inputStream = SonicContentDecoder.decode(decoders, connection.getContentEncoding(), connection.getInputStream());
+            try {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024 * 10];
+                int n;
+                while (-1 != (n = inputStream.read(buffer))) {
+                    output.write(buffer, 0, n);
+                }
+                return new JSONObject(output.toString("UTF-8"));
+            } finally {
+                inputStream.close();
+            }
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "request error:" + e.getMessage());
+        } finally {
+            if (null != connection) {
+                connection.disconnect();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Apply the result of a session to its cache, the result of a single session refreshed in
+     * background is applied in the same way, see {@link SonicRefreshScheduler}.
+     */
+    void apply(String sessionId, JSONObject result) {
+        int code = result.optInt("code");
+        String cacheControl = result.optString(SonicSessionConnection.HTTP_HEAD_CACHE_CONTROL.toLowerCase());
+        if (HttpURLConnection.HTTP_NOT_MODIFIED == code) {
+            SonicUtils.saveSessionValidation(sessionId, cacheControl);
+            notModifiedCount.incrementAndGet();
+            return;
+        }
+        String cacheOffline = result.optString(SonicSessionConnection.CUSTOM_HEAD_FILED_CACHE_OFFLINE);
+        if (HttpURLConnection.HTTP_OK != code || !SonicUtils.needSaveData(cacheOffline)) {
+            SonicUtils.log(TAG, Log.INFO, "apply:session(" + sessionId + ") code = " + code + ", cache-offline = " + cacheOffline + ", clean session cache.");
+            SonicUtils.removeSessionCache(sessionId);
+            return;
+        }
+
+        String eTag = result.optString(SonicSessionConnection.CUSTOM_HEAD_FILED_ETAG);
+        String templateTag = result.optString(SonicSessionConnection.CUSTOM_HEAD_FILED_TEMPLATE_TAG);
+        SonicDataHelper.SessionData sessionData = SonicDataHelper.getSessionData(sessionId);
+        String templateChange = result.optString(SonicSessionConnection.CUSTOM_HEAD_FILED_TEMPLATE_CHANGE);
+        boolean saved;
+        if ("false".equals(templateChange) || "0".equals(templateChange)) {
+            JSONObject dataJson = result.optJSONObject("data");
+            String htmlSha1 = result.optString("html-sha1");
+            String htmlString = null != dataJson ? SonicUtils.buildHtml(sessionId, dataJson, htmlSha1, dataJson.toString().length()) : null;
+            saved = !TextUtils.isEmpty(htmlString) && SonicUtils.saveSessionFiles(sessionId, htmlString, null, dataJson.toString());
+            if (saved) {
+                long htmlSize = new File(SonicFileUtils.getSonicHtmlPath(sessionId)).length();
+                SonicUtils.saveSonicData(sessionId, eTag, templateTag, htmlSha1, htmlSize, sessionData.cspContent, sessionData.cspReportOnlyContent);
+                dataUpdateCount.incrementAndGet();
+            }
+        } else {
+            String htmlString = result.optString("html");
+            StringBuilder templateStringBuilder = new StringBuilder();
+            StringBuilder dataStringBuilder = new StringBuilder();
+            saved = !TextUtils.isEmpty(htmlString) && SonicUtils.separateTemplateAndData(sessionId, htmlString, templateStringBuilder, dataStringBuilder)
+                    && SonicUtils.saveSessionFiles(sessionId, htmlString, templateStringBuilder.toString(), dataStringBuilder.toString());
+            if (saved) {
+                long htmlSize = new File(SonicFileUtils.getSonicHtmlPath(sessionId)).length();
+                SonicUtils.saveSonicData(sessionId, eTag, templateTag, SonicUtils.getSHA1(htmlString), htmlSize, sessionData.cspContent, sessionData.cspReportOnlyContent);
+                templateChangeCount.incrementAndGet();
+            }
+        }
+        if (saved) {
+            // Only a saved cache is validated, see SonicUtils#saveSessionValidation
+            SonicUtils.saveSessionValidation(sessionId, cacheControl);
+        } else {
+            SonicUtils.log(TAG, Log.ERROR, "apply:session(" + sessionId + ") save cache fail, clean session cache.");
+            SonicUtils.removeSessionCache(sessionId);
+        }
+    }
+
+    long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    long getDataUpdateCount() {
+        return dataUpdateCount.get();
+    }
+
+    long getTemplateChangeCount() {
+        return templateChangeCount.get();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * <code>SonicByteBudget</code> is the global budget of response data buffered by all of the sessions.
+ * Sessions reserve capacity from the budget before they buffer data in memory, and release it when the
+ * buffer is no longer needed.
+ * The limit is defined in {@link SonicConfig#MAX_BUFFERED_RESPONSE_BYTES}.
+ *
+ */
+class SonicByteBudget {
+
+    /**
+     * The max bytes, 0 or negative means no limit
+     */
+    private final long maxBytes;
+
+    private final AtomicLong usedBytes = new AtomicLong(0);
+
+    private final AtomicLong peakBytes = new AtomicLong(0);
+
+    /**
+     * The count of reservations which are refused because the budget is exhausted
+     */
+    private final AtomicLong exhaustedCount = new AtomicLong(0);
+
+    SonicByteBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Reserve bytes from the budget.
+     *
+     * @param bytes The bytes to reserve
+     * @return Return true if the bytes are reserved, <code>false</code> if the budget is exhausted.
+     */
+    boolean tryReserve(long bytes) {
+        while (true) {
+            long used = usedBytes.get();
+            long newUsed = used + bytes;
+            if (maxBytes > 0 && newUsed > maxBytes) {
+                exhaustedCount.incrementAndGet();
+                return false;
+            }
+            if (usedBytes.compareAndSet(used, newUsed)) {
+                updatePeak(newUsed);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Reserve bytes from the budget even if the budget is exhausted, it is used when the data
+     * has been read already and can not be dropped.
+     *
+     * @param bytes The bytes to reserve
+     */
+    void forceReserve(long bytes) {
+        updatePeak(usedBytes.addAndGet(bytes));
+    }
+
+    void release(long bytes) {
+        if (bytes > 0) {
+            usedBytes.addAndGet(-bytes);
+        }
+    }
+
+    /**
+     * @return Return true if the budget is not exhausted.
+     */
+    boolean hasRemaining() {
+        return maxBytes <= 0 || usedBytes.get() < maxBytes;
+    }
+
+    long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    long getPeakBytes() {
+        return peakBytes.get();
+    }
+
+    long getExhaustedCount() {
+        return exhaustedCount.get();
+    }
+
+    private void updatePeak(long used) {
+        long peak;
+        while (used > (peak = peakBytes.get())) {
+            if (peakBytes.compareAndSet(peak, used)) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *
+ * <code>SonicCaptureOutputStream</code> captures the response data read from network.
+ * <p>
+ * The data is kept in memory in fixed size chunks, so the buffer never copies itself when it grows.
+ * The memory capacity is reserved from the global {@link SonicByteBudget}. When the captured data
+ * exceeds {@link SonicConfig#CAPTURE_SPILL_THRESHOLD} or the budget is exhausted, the data is spilled
+ * to a temp file in sonic cache directory, and the file can be moved into cache by {@link #moveTo(File)}
+ * instead of being rewritten.
+ * <p>
+ * If the data can not be spilled, the data written by {@link #write(byte[], int, int)} is dropped and
+ * the capture is marked as truncated, which means the response is streamed to the client without capture
+ * and will not be saved. The data written by {@link #forceWrite(byte[], int, int)} is always kept.
+ * <p>
+ * The spill files left by a process which died while capturing are deleted when the engine is created,
+ * see {@link #sweepStaleSpillFiles()}.
+ *
+ */
+class SonicCaptureOutputStream extends OutputStream {
+
+    /**
+     * Log filter
+     */
+    private static final String TAG = SonicConstants.SONIC_SDK_LOG_PREFIX + "SonicCaptureOutputStream";
+
+    /**
+     * The size of memory chunk, capacity is also reserved from the budget in blocks of this size
+     */
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private static final String SPILL_FILE_PREFIX = "capture";
+
+    private static final String SPILL_FILE_SUFFIX = ".tmp";
+
+    /**
+     * A spill file which is not modified for this time (in milliseconds) is not used by any capture,
+     * other processes may be capturing, so the files of the current captures can not be told apart by name
+     */
+    private static final long STALE_SPILL_FILE_TIME = 60 * 60 * 1000L;
+
+    /**
+     * An input stream which reads at most <code>limit</code> bytes from the underlying stream
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int c = in.read();
+            if (-1 != c) {
+                --remaining;
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(buffer, offset, (int) Math.min(count, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private final SonicByteBudget budget;
+
+    /**
+     * Spill to file when the size of data exceeds this threshold, 0 or negative means spill only when the
+     * budget is exhausted
+     */
+    private final long spillThreshold;
+
+    private final List<byte[]> chunks = new ArrayList<byte[]>();
+
+    /**
+     * The count of bytes used in the last chunk
+     */
+    private int lastChunkCount;
+
+    private long size;
+
+    /**
+     * The bytes reserved from budget
+     */
+    private long reservedBytes;
+
+    private File spillFile;
+
+    private OutputStream spillStream;
+
+    private boolean spillFailed;
+
+    /**
+     * The spill file has been moved into cache and must not be deleted
+     */
+    private boolean spillFileMoved;
+
+    private boolean truncated;
+
+    private boolean closed;
+
+    SonicCaptureOutputStream(SonicByteBudget budget, long spillThreshold) {
+        this.budget = budget;
+        this.spillThreshold = spillThreshold;
+    }
+
+    @Override
+    public synchronized void write(int oneByte) {
+        if (prepareWrite(1, false)) {
+            if (null == spillStream && !chunks.isEmpty() && lastChunkCount < CHUNK_SIZE) {
+                chunks.get(chunks.size() - 1)[lastChunkCount++] = (byte) oneByte;
+                ++size;
+            } else {
+                append(new byte[]{(byte) oneByte}, 0, 1);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int count) {
+        if (prepareWrite(count, false)) {
+            append(buffer, offset, count);
+        }
+    }
+
+    /**
+     * Write the data even if the budget is exhausted and the data can not be spilled.
+     */
+    synchronized void forceWrite(byte[] buffer, int offset, int count) {
+        if (prepareWrite(count, true)) {
+            append(buffer, offset, count);
+        }
+    }
+
+    /**
+     * The data can always be captured unless it is truncated, or the budget is exhausted and the data
+     * can not be spilled. The budget limits the memory, a capture which is spilled reads ahead into file.
+     *
+     * @return Return true if more data can be captured.
+     */
+    synchronized boolean canCapture() {
+        return !truncated && (null != spillStream || !spillFailed || size < reservedBytes || budget.hasRemaining());
+    }
+
+    /**
+     * @return Return true if some data was dropped, the captured data is incomplete.
+     */
+    synchronized boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return Return true if the data has been spilled to file.
+     */
+    synchronized boolean isSpilled() {
+        return null != spillFile;
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return The size of captured data which is held in memory.
+     */
+    synchronized long getMemorySize() {
+        return null != spillFile ? 0 : size;
+    }
+
+    synchronized byte[] toByteArray() throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("capture is too large:" + size);
+        }
+        byte[] data = new byte[(int) size];
+        if (null != spillFile) {
+            InputStream inputStream = openReplayStream();
+            try {
+                int offset = 0;
+                int n;
+                while (offset < data.length && -1 != (n = inputStream.read(data, offset, data.length - offset))) {
+                    offset += n;
+                }
+            } finally {
+                inputStream.close();
+            }
+        } else {
+            int offset = 0;
+            for (int i = 0; i < chunks.size(); ++i) {
+                int count = (i == chunks.size() - 1) ? lastChunkCount : CHUNK_SIZE;
+                System.arraycopy(chunks.get(i), 0, data, offset, count);
+                offset += count;
+            }
+        }
+        return data;
+    }
+
+    synchronized String toString(String charsetName) throws IOException {
+        return new String(toByteArray(), charsetName);
+    }
+
+    /**
+     * @return An input stream which reads the data captured so far without copying it.
+     */
+    synchronized InputStream openReplayStream() throws IOException {
+        if (null != spillFile) {
+            if (null != spillStream) {
+                spillStream.flush();
+            }
+            return new LimitedInputStream(new FileInputStream(spillFile), size);
+        }
+        List<InputStream> chunkStreams = new ArrayList<InputStream>(chunks.size());
+        for (int i = 0; i < chunks.size(); ++i) {
+            int count = (i == chunks.size() - 1) ? lastChunkCount : CHUNK_SIZE;
+            chunkStreams.add(new ByteArrayInputStream(chunks.get(i), 0, count));
+        }
+        return new SequenceInputStream(Collections.enumeration(chunkStreams));
+    }
+
+    /**
+     * Move the spill file to <code>destFile</code>, it only works when the data has been spilled and is
+     * not truncated.
+     *
+     * @param destFile The destination file
+     * @return Return true if the spill file is moved.
+     */
+    synchronized boolean moveTo(File destFile) {
+        if (null == spillFile || spillFileMoved || truncated) {
+            return false;
+        }
+        try {
+            closeSpillStream();
+            if (destFile.exists() && !destFile.delete()) {
+                return false;
+            }
+            if (spillFile.renameTo(destFile)) {
+                SonicUtils.log(TAG, Log.INFO, "moveTo: move " + size + " bytes to " + destFile.getName() + ".");
+                spillFile = destFile;
+                spillFileMoved = true;
+                return true;
+            }
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "moveTo error:" + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Release the capacity reserved from budget, the captured data is still readable after close.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            budget.release(reservedBytes);
+            reservedBytes = 0;
+            closeSpillStream();
+        }
+    }
+
+    /**
+     * Close the stream and drop all of the captured data, the spill file is deleted.
+     */
+    synchronized void release() {
+        close();
+        chunks.clear();
+        lastChunkCount = 0;
+        if (null != spillFile && !spillFileMoved && !spillFile.delete()) {
+            SonicUtils.log(TAG, Log.ERROR, "release error:delete spill file fail.");
+        }
+        spillFile = null;
+        size = 0;
+    }
+
+    private boolean prepareWrite(int count, boolean force) {
+        if (truncated) {
+            return false;
+        }
+        if (closed) {
+            truncated = true;
+            return false;
+        }
+        if (null != spillStream) {
+            return true;
+        }
+        if (spillThreshold > 0 && size + count > spillThreshold && spill()) {
+            return true;
+        }
+        long required = size + count - reservedBytes;
+        if (required <= 0) {
+            return true;
+        }
+        long reserveSize = Math.max(required, CHUNK_SIZE);
+        if (budget.tryReserve(reserveSize)) {
+            reservedBytes += reserveSize;
+            return true;
+        }
+        if (spill()) {
+            return true;
+        }
+        if (force) {
+            budget.forceReserve(required);
+            reservedBytes += required;
+            return true;
+        }
+        truncated = true;
+        SonicUtils.log(TAG, Log.INFO, "prepareWrite fail:budget is exhausted, stop capture after " + size + " bytes.");
+        return false;
+    }
+
+    private void append(byte[] buffer, int offset, int count) {
+        if (null != spillStream) {
+            try {
+                spillStream.write(buffer, offset, count);
+                size += count;
+            } catch (Throwable e) {
+                truncated = true;
+                SonicUtils.log(TAG, Log.ERROR, "append error:write spill file fail, " + e.getMessage());
+            }
+            return;
+        }
+        while (count > 0) {
+            if (chunks.isEmpty() || lastChunkCount == CHUNK_SIZE) {
+                chunks.add(new byte[CHUNK_SIZE]);
+                lastChunkCount = 0;
+            }
+            int n = Math.min(count, CHUNK_SIZE - lastChunkCount);
+            System.arraycopy(buffer, offset, chunks.get(chunks.size() - 1), lastChunkCount, n);
+            lastChunkCount += n;
+            offset += n;
+            count -= n;
+            size += n;
+        }
+    }
+
+    /**
+     * Write the data in memory to a temp file, the following data is written to the file directly.
+     *
+     * @return Return true if the data is spilled.
+     */
+    private boolean spill() {
+        if (spillFailed) {
+            return false;
+        }
+        File file = null;
+        OutputStream outputStream = null;
+        try {
+            file = File.createTempFile(SPILL_FILE_PREFIX, SPILL_FILE_SUFFIX, new File(SonicFileUtils.getSonicCacheDirPath()));
+            outputStream = new BufferedOutputStream(new FileOutputStream(file), CHUNK_SIZE);
+            for (int i = 0; i < chunks.size(); ++i) {
+                outputStream.write(chunks.get(i), 0, (i == chunks.size() - 1) ? lastChunkCount : CHUNK_SIZE);
+            }
+            spillFile = file;
+            spillStream = outputStream;
+            chunks.clear();
+            lastChunkCount = 0;
+            budget.release(reservedBytes);
+            reservedBytes = 0;
+            SonicUtils.log(TAG, Log.INFO, "spill: spill " + size + " bytes to " + file.getName() + ".");
+            return true;
+        } catch (Throwable e) {
+            spillFailed = true;
+            SonicUtils.log(TAG, Log.ERROR, "spill error:" + e.getMessage());
+            if (null != outputStream) {
+                try {
+                    outputStream.close();
+                } catch (Throwable ignore) {
+                    // ignore
+                }
+            }
+            if (null != file && !file.delete()) {
+                SonicUtils.log(TAG, Log.ERROR, "spill error:delete temp file fail.");
+            }
+        }
+        return false;
+    }
+
+    private void closeSpillStream() {
+        if (null != spillStream) {
+            try {
+                spillStream.close();
+            } catch (Throwable e) {
+                truncated = true;
+                SonicUtils.log(TAG, Log.ERROR, "closeSpillStream error:" + e.getMessage());
+            }
+            spillStream = null;
+        }
+    }
+
+    /**
+     * Delete the spill files left by the processes which died while capturing, in background.
+     */
+    static void sweepStaleSpillFiles() {
+        SonicEngine.getInstance().getRuntime().postTaskToThread(new Runnable() {
+            @Override
+            public void run() {
+                File[] files = new File(SonicFileUtils.getSonicCacheDirPath()).listFiles();
+                if (null == files) {
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                int count = 0;
+                for (File file : files) {
+                    String fileName = file.getName();
+                    if (fileName.startsWith(SPILL_FILE_PREFIX) && fileName.endsWith(SPILL_FILE_SUFFIX) && file.isFile()
+                            && now - file.lastModified() > STALE_SPILL_FILE_TIME && file.delete()) {
+                        ++count;
+                    }
+                }
+                if (count > 0) {
+                    SonicUtils.log(TAG, Log.INFO, "sweepStaleSpillFiles: delete " + count + " spill files.");
+                }
+            }
+        }, 0);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * <code>SonicCircuitBreaker</code> stops sessions from connecting a host which keeps failing.
+ * <p>
+ * The circuit of a host opens after {@link SonicConfig#CIRCUIT_BREAKER_FAILURE_THRESHOLD} consecutive
+ * failures (connect error or 5xx), and the sessions of the host skip the network while it is open.
+ * When the open time is over, the circuit is half open and only one session is allowed to probe the
+ * host: the circuit closes if the probe succeeds, otherwise it opens again and the open time doubles,
+ * up to {@link SonicConfig#CIRCUIT_BREAKER_MAX_OPEN_TIME}.
+ *
+ */
+class SonicCircuitBreaker {
+
+    /**
+     * Log filter
+     */
+    private static final String TAG = SonicConstants.SONIC_SDK_LOG_PREFIX + "SonicCircuitBreaker";
+
+    private static final int STATE_CLOSED = 0;
+
+    private static final int STATE_OPEN = 1;
+
+    private static final int STATE_HALF_OPEN = 2;
+
+    /**
+     * Circuit of a host
+     */
+    private static class Circuit {
+
+        int state = STATE_CLOSED;
+
+        int consecutiveFailures;
+
+        long openTime;
+
+        /**
+         * Open until this time in OPEN state, or the probe expires at this time in HALF_OPEN state
+         */
+        long deadline;
+    }
+
+    private final int failureThreshold;
+
+    private final long baseOpenTime;
+
+    private final long maxOpenTime;
+
+    private final ConcurrentHashMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+
+    private final AtomicLong openCount = new AtomicLong();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    SonicCircuitBreaker(int failureThreshold, long baseOpenTime, long maxOpenTime) {
+        this.failureThreshold = failureThreshold;
+        this.baseOpenTime = baseOpenTime;
+        this.maxOpenTime = maxOpenTime;
+    }
+
+    /**
+     * @param url The url of session
+     * @return Returns false if the circuit of host is open and the session should not connect it.
+     */
+    boolean allowRequest(String url) {
+        Circuit circuit = getCircuit(url, false);
+        if (null == circuit) {
+            return true;
+        }
+        synchronized (circuit) {
+            long now = System.currentTimeMillis();
+            if (STATE_CLOSED == circuit.state || now >= circuit.deadline) {
+                if (STATE_CLOSED != circuit.state) {
+                    // Let this session probe the host, the probe expires if its result is never reported
+                    circuit.state = STATE_HALF_OPEN;
+                    circuit.deadline = now + baseOpenTime;
+                    SonicUtils.log(TAG, Log.INFO, "allowRequest:circuit of " + Uri.parse(url).getHost() + " is half open, probe it.");
+                }
+                return true;
+            }
+        }
+        rejectedCount.incrementAndGet();
+        return false;
+    }
+
+    void onSuccess(String url) {
+        Circuit circuit = getCircuit(url, false);
+        if (null != circuit) {
+            synchronized (circuit) {
+                if (STATE_CLOSED != circuit.state) {
+                    SonicUtils.log(TAG, Log.INFO, "onSuccess:circuit of " + Uri.parse(url).getHost() + " is closed.");
+                }
+                circuit.state = STATE_CLOSED;
+                circuit.consecutiveFailures = 0;
+                circuit.openTime = 0;
+            }
+        }
+    }
+
+    void onFailure(String url) {
+        Circuit circuit = getCircuit(url, true);
+        if (null == circuit) {
+            return;
+        }
+        synchronized (circuit) {
+            ++circuit.consecutiveFailures;
+            if (STATE_HALF_OPEN == circuit.state || (STATE_CLOSED == circuit.state && circuit.consecutiveFailures >= failureThreshold)) {
+                circuit.openTime = STATE_HALF_OPEN == circuit.state ? Math.min(maxOpenTime, circuit.openTime * 2) : baseOpenTime;
+                circuit.state = STATE_OPEN;
+                circuit.deadline = System.currentTimeMillis() + circuit.openTime;
+                openCount.incrementAndGet();
+                SonicUtils.log(TAG, Log.INFO, "onFailure:circuit of " + Uri.parse(url).getHost() + " is open for " + circuit.openTime + " ms, consecutive failures = " + circuit.consecutiveFailures + ".");
+            }
+        }
+    }
+
+    private Circuit getCircuit(String url, boolean create) {
+        if (failureThreshold <= 0) {
+            return null;
+        }
+        String host = null;
+        try {
+            host = Uri.parse(url).getHost();
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "getCircuit error:" + e.getMessage() + ", url = " + url);
+        }
+        if (TextUtils.isEmpty(host)) {
+            return null;
+        }
+        Circuit circuit = circuits.get(host);
+        if (null == circuit && create) {
+            circuit = new Circuit();
+            Circuit previous = circuits.putIfAbsent(host, circuit);
+            if (null != previous) {
+                circuit = previous;
+            }
+        }
+        return circuit;
+    }
+
+    long getOpenCount() {
+        return openCount.get();
+    }
+
+    long getRejectedCount() {
+        return rejectedCount.get();
+    }
+}
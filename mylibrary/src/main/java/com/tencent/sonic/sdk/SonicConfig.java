@@ -21,6 +21,44 @@ public class SonicConfig {
     long SONIC_UNAVAILABLE_TIME = 6 * 60 * 60 * 1000;
     //是否启动文件sha
     boolean VERIFY_CACHE_FILE_WITH_SHA1 = true;
+    //所有会话在内存中缓冲的响应数据总上限，默认16M，超出后响应数据直接透传给WebView而不再缓存，小于等于0表示不限制
+    long MAX_BUFFERED_RESPONSE_BYTES = 16 * 1024 * 1024;
+    //单个响应在内存中缓冲超过该大小后转存到缓存目录下的临时文件，默认512K，小于等于0表示只在总上限用尽时转存
+    long CAPTURE_SPILL_THRESHOLD = 512 * 1024;
+    //会话线程池的最大线程数，默认6个
+    int SESSION_THREAD_POOL_SIZE = 6;
+    //会话线程池的排队上限，默认16个，队列满时优先级最低的任务会被拒绝
+    int SESSION_THREAD_QUEUE_CAPACITY = 16;
+    //IO线程池(保存缓存、断开连接等)的最大线程数，默认2个
+    int IO_THREAD_POOL_SIZE = 2;
+    //子资源(css、js、图片、字体)磁盘缓存的大小上限，默认20M，小于等于0表示不缓存子资源
+    long RESOURCE_CACHE_MAX_SIZE = 20 * 1024 * 1024;
+    //预热连接(DNS、TCP、TLS)的最大host数，默认4个，小于等于0表示不预热
+    int MAX_PREWARM_CONNECTION_COUNT = 4;
+    //预热连接的空闲保活时间，超时后视为冷连接，默认60s
+    long PREWARM_CONNECTION_KEEP_ALIVE_TIME = 60 * 1000;
+    //SDK内置DNS缓存的TTL，默认0即不使用内置DNS缓存，仅在SonicRuntime#getHostDirectAddress返回空时生效；缓存的IP不会随网络切换失效，开启时建议设置较短的TTL
+    long DNS_CACHE_TTL = 0;
+    //连接失败的IP在该时间内不再使用，默认5分钟
+    long DNS_FAILED_ADDRESS_EXPIRE_TIME = 5 * 60 * 1000;
+    //同一域名连续失败(连接失败或5xx)该次数后熔断，熔断期间会话不再请求网络，默认3次，小于等于0表示不熔断
+    int CIRCUIT_BREAKER_FAILURE_THRESHOLD = 3;
+    //首次熔断的时间，之后每次探测失败熔断时间翻倍，默认10s
+    long CIRCUIT_BREAKER_BASE_OPEN_TIME = 10 * 1000;
+    //熔断时间的上限，默认5分钟
+    long CIRCUIT_BREAKER_MAX_OPEN_TIME = 5 * 60 * 1000;
+    //批量校验多个会话缓存的请求超时时间，默认15s
+    int BATCH_REVALIDATE_TIMEOUT_MILLIS = 15 * 1000;
+    //后台刷新会话缓存的检查间隔，默认0，小于等于0表示不在后台刷新
+    long BACKGROUND_REFRESH_INTERVAL = 0;
+    //没有会话运行且最近该时间内没有创建会话才认为空闲，默认60s
+    long BACKGROUND_REFRESH_IDLE_TIME = 60 * 1000;
+    //缓存更新超过该时间才会被后台刷新，默认30分钟
+    long BACKGROUND_REFRESH_MIN_AGE = 30 * 60 * 1000;
+    //每次后台刷新最多下载的字节数，默认1M
+    long BACKGROUND_REFRESH_BYTE_BUDGET = 1024 * 1024;
+    //后台刷新是否要求正在充电，默认false，网络不计费(如wifi)总是必须的
+    boolean BACKGROUND_REFRESH_REQUIRE_CHARGING = false;
 
     private SonicConfig() {}
 
@@ -42,6 +80,82 @@ public class SonicConfig {
             target.VERIFY_CACHE_FILE_WITH_SHA1 = enable;
             return this;
         }
+        public Builder setMaxBufferedResponseBytes(long maxBufferedResponseBytes) {
+            target.MAX_BUFFERED_RESPONSE_BYTES = maxBufferedResponseBytes;
+            return this;
+        }
+        public Builder setCaptureSpillThreshold(long captureSpillThreshold) {
+            target.CAPTURE_SPILL_THRESHOLD = captureSpillThreshold;
+            return this;
+        }
+        public Builder setSessionThreadPoolSize(int sessionThreadPoolSize) {
+            target.SESSION_THREAD_POOL_SIZE = sessionThreadPoolSize;
+            return this;
+        }
+        public Builder setSessionThreadQueueCapacity(int sessionThreadQueueCapacity) {
+            target.SESSION_THREAD_QUEUE_CAPACITY = sessionThreadQueueCapacity;
+            return this;
+        }
+        public Builder setIOThreadPoolSize(int ioThreadPoolSize) {
+            target.IO_THREAD_POOL_SIZE = ioThreadPoolSize;
+            return this;
+        }
+        public Builder setResourceCacheMaxSize(long resourceCacheMaxSize) {
+            target.RESOURCE_CACHE_MAX_SIZE = resourceCacheMaxSize;
+            return this;
+        }
+        public Builder setMaxPrewarmConnectionCount(int maxPrewarmConnectionCount) {
+            target.MAX_PREWARM_CONNECTION_COUNT = maxPrewarmConnectionCount;
+            return this;
+        }
+        public Builder setPrewarmConnectionKeepAliveTime(long prewarmConnectionKeepAliveTime) {
+            target.PREWARM_CONNECTION_KEEP_ALIVE_TIME = prewarmConnectionKeepAliveTime;
+            return this;
+        }
+        public Builder setDnsCacheTtl(long dnsCacheTtl) {
+            target.DNS_CACHE_TTL = dnsCacheTtl;
+            return this;
+        }
+        public Builder setDnsFailedAddressExpireTime(long dnsFailedAddressExpireTime) {
+            target.DNS_FAILED_ADDRESS_EXPIRE_TIME = dnsFailedAddressExpireTime;
+            return this;
+        }
+        public Builder setCircuitBreakerFailureThreshold(int circuitBreakerFailureThreshold) {
+            target.CIRCUIT_BREAKER_FAILURE_THRESHOLD = circuitBreakerFailureThreshold;
+            return this;
+        }
+        public Builder setCircuitBreakerBaseOpenTime(long circuitBreakerBaseOpenTime) {
+            target.CIRCUIT_BREAKER_BASE_OPEN_TIME = circuitBreakerBaseOpenTime;
+            return this;
+        }
+        public Builder setCircuitBreakerMaxOpenTime(long circuitBreakerMaxOpenTime) {
+            target.CIRCUIT_BREAKER_MAX_OPEN_TIME = circuitBreakerMaxOpenTime;
+            return this;
+        }
+        public Builder setBatchRevalidateTimeoutMillis(int batchRevalidateTimeoutMillis) {
+            target.BATCH_REVALIDATE_TIMEOUT_MILLIS = batchRevalidateTimeoutMillis;
+            return this;
+        }
+        public Builder setBackgroundRefreshInterval(long backgroundRefreshInterval) {
+            target.BACKGROUND_REFRESH_INTERVAL = backgroundRefreshInterval;
+            return this;
+        }
+        public Builder setBackgroundRefreshIdleTime(long backgroundRefreshIdleTime) {
+            target.BACKGROUND_REFRESH_IDLE_TIME = backgroundRefreshIdleTime;
+            return this;
+        }
+        public Builder setBackgroundRefreshMinAge(long backgroundRefreshMinAge) {
+            target.BACKGROUND_REFRESH_MIN_AGE = backgroundRefreshMinAge;
+            return this;
+        }
+        public Builder setBackgroundRefreshByteBudget(long backgroundRefreshByteBudget) {
+            target.BACKGROUND_REFRESH_BYTE_BUDGET = backgroundRefreshByteBudget;
+            return this;
+        }
+        public Builder setBackgroundRefreshRequireCharging(boolean backgroundRefreshRequireCharging) {
+            target.BACKGROUND_REFRESH_REQUIRE_CHARGING = backgroundRefreshRequireCharging;
+            return this;
+        }
         public SonicConfig build() {
             return target;
         }
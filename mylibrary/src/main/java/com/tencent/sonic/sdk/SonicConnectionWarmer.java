@@ -0,0 +1,195 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * <code>SonicConnectionWarmer</code> sets up the DNS, TCP and TLS of a host ahead of time. It sends a
+ * HEAD request to the host, and leaves the keep-alive connection parked in the connection pool of
+ * {@link HttpURLConnection}. The connection is created in the same way as
+ * {@link SonicSessionConnection.SessionConnectionDefaultImpl} does (same direct address, socket
+ * factory and hostname verifier), so the session picks up the warm connection from the pool.
+ * <p>
+ * The count of warm hosts is limited by {@link SonicConfig#MAX_PREWARM_CONNECTION_COUNT}, a host is
+ * considered cold again after {@link SonicConfig#PREWARM_CONNECTION_KEEP_ALIVE_TIME}.
+ *
+ */
+class SonicConnectionWarmer {
+
+    /**
+     * Log filter
+     */
+    private static final String TAG = SonicConstants.SONIC_SDK_LOG_PREFIX + "SonicConnectionWarmer";
+
+    private final int maxCount;
+
+    private final long keepAliveTime;
+
+    /**
+     * The time when the connection of a host is warmed or used, key is the origin and direct address
+     */
+    private final ConcurrentHashMap<String, Long> warmConnections = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * The origins which are being warmed
+     */
+    private final ConcurrentHashMap<String, Boolean> warmingConnections = new ConcurrentHashMap<String, Boolean>();
+
+    private final AtomicLong prewarmCount = new AtomicLong();
+
+    private final AtomicLong prewarmFailedCount = new AtomicLong();
+
+    private final AtomicLong warmHitCount = new AtomicLong();
+
+    SonicConnectionWarmer(int maxCount, long keepAliveTime) {
+        this.maxCount = maxCount;
+        this.keepAliveTime = keepAliveTime;
+    }
+
+    /**
+     * Warm the connection of the host in background.
+     *
+     * @param hostOrUrl A host, such as "www.example.com", or an url
+     * @return Returns false if the connection is warm already or can not be warmed.
+     */
+    boolean prewarm(String hostOrUrl) {
+        if (maxCount <= 0 || TextUtils.isEmpty(hostOrUrl)) {
+            return false;
+        }
+        final String url = hostOrUrl.contains("://") ? hostOrUrl : "https://" + hostOrUrl + "/";
+        final String directAddress = SonicEngine.getInstance().getHostDirectAddress(url);
+        final String key = makeKey(url, directAddress);
+        if (null == key || isWarm(key, System.currentTimeMillis()) || null != warmingConnections.putIfAbsent(key, Boolean.TRUE)) {
+            return false;
+        }
+        SonicEngine.getInstance().getRuntime().postTaskToThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    warm(url, directAddress, key);
+                } finally {
+                    warmingConnections.remove(key);
+                }
+            }
+        }, 0);
+        return true;
+    }
+
+    private void warm(String url, String directAddress, String key) {
+        long now = System.currentTimeMillis();
+        evictExpired(now);
+        if (warmConnections.size() >= maxCount) {
+            SonicUtils.log(TAG, Log.INFO, "warm:there are " + warmConnections.size() + " warm connections, ignore " + key + ".");
+            return;
+        }
+
+        URLConnection connection = SonicSessionConnection.SessionConnectionDefaultImpl.openConnection(url, directAddress);
+        if (!(connection instanceof HttpURLConnection)) {
+            prewarmFailedCount.incrementAndGet();
+            return;
+        }
+        HttpURLConnection httpURLConnection = (HttpURLConnection) connection;
+        InputStream inputStream = null;
+        try {
+            httpURLConnection.setRequestMethod("HEAD");
+            httpURLConnection.setRequestProperty("User-Agent", "Sonic/" + SonicConstants.SONIC_VERSION_NUM);
+            int responseCode = httpURLConnection.getResponseCode();
+            inputStream = responseCode < HttpURLConnection.HTTP_BAD_REQUEST ? httpURLConnection.getInputStream() : httpURLConnection.getErrorStream();
+            warmConnections.put(key, System.currentTimeMillis());
+            prewarmCount.incrementAndGet();
+            SonicUtils.log(TAG, Log.INFO, "warm:connection of " + key + " is warm, cost " + (System.currentTimeMillis() - now) + " ms.");
+        } catch (Throwable e) {
+            prewarmFailedCount.incrementAndGet();
+            SonicUtils.log(TAG, Log.ERROR, "warm error:" + e.getMessage() + ", key = " + key);
+            // The connection is broken, do not leave it in pool
+            httpURLConnection.disconnect();
+        } finally {
+            if (null != inputStream) {
+                try {
+                    // Closing the stream (instead of disconnect) returns the connection to pool
+                    inputStream.close();
+                } catch (Throwable e) {
+                    SonicUtils.log(TAG, Log.ERROR, "warm close error:" + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when the session connects the url.
+     *
+     * @param url           The url of session
+     * @param directAddress The direct address of the url
+     * @return Returns true if the connection of url is warm.
+     */
+    boolean onConnect(String url, String directAddress) {
+        String key = makeKey(url, directAddress);
+        if (null != key && isWarm(key, System.currentTimeMillis())) {
+            // The connection goes back to pool after the session, keep it warm
+            warmConnections.put(key, System.currentTimeMillis());
+            warmHitCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isWarm(String key, long now) {
+        Long warmTime = warmConnections.get(key);
+        return null != warmTime && now - warmTime < keepAliveTime;
+    }
+
+    private void evictExpired(long now) {
+        Iterator<Map.Entry<String, Long>> iterator = warmConnections.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getValue() >= keepAliveTime) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static String makeKey(String url, String directAddress) {
+        try {
+            URL targetUrl = new URL(url);
+            int port = targetUrl.getPort() > 0 ? targetUrl.getPort() : targetUrl.getDefaultPort();
+            return targetUrl.getProtocol() + "://" + targetUrl.getHost() + ":" + port + (TextUtils.isEmpty(directAddress) ? "" : "@" + directAddress);
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "makeKey error:" + e.getMessage() + ", url = " + url);
+        }
+        return null;
+    }
+
+    long getPrewarmCount() {
+        return prewarmCount.get();
+    }
+
+    long getPrewarmFailedCount() {
+        return prewarmFailedCount.get();
+    }
+
+    long getWarmHitCount() {
+        return warmHitCount.get();
+    }
+}
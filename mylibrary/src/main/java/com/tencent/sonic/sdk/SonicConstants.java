@@ -112,5 +112,10 @@ public class SonicConstants {
      */
     public static final int ERROR_CODE_BUILD_HTML_ERROR = -1008;
 
+    /**
+     * Session task was rejected by session thread pool
+     */
+    public static final int ERROR_CODE_SESSION_TASK_REJECTED = -1009;
+
 
 }
@@ -0,0 +1,179 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * <code>SonicContentDecoder</code> decodes the response data of a content coding, such as gzip.
+ * Sonic supports gzip and deflate, the host can provide other codings (such as br or zstd) by
+ * {@link SonicSessionConfig.Builder#addContentDecoder(SonicContentDecoder)}.
+ * <p>
+ * The codings are offered to the server in "Accept-Encoding" in the order of preference: the
+ * decoders provided by host first, then gzip and deflate.
+ *
+ */
+public abstract class SonicContentDecoder {
+
+    /**
+     * Log filter
+     */
+    private static final String TAG = SonicConstants.SONIC_SDK_LOG_PREFIX + "SonicContentDecoder";
+
+    /**
+     * @return The content coding, such as "br", it is case insensitive.
+     */
+    public abstract String getEncoding();
+
+    /**
+     * Wrap the encoded stream, the returned stream is read while the data is being received.
+     *
+     * @param inputStream The encoded stream
+     * @return The decoded stream
+     * @throws IOException If the stream can not be decoded
+     */
+    public abstract InputStream decode(InputStream inputStream) throws IOException;
+
+    /**
+     * Thrown when the response is encoded by a coding which has no decoder, the encoded data must
+     * neither be provided to the kernel nor be cached.
+     */
+    static class UnsupportedContentEncodingException extends IOException {
+
+        UnsupportedContentEncodingException(String encoding) {
+            super("unsupported content encoding " + encoding);
+        }
+    }
+
+    /**
+     * Decoder of gzip
+     */
+    static class GzipDecoder extends SonicContentDecoder {
+
+        @Override
+        public String getEncoding() {
+            return "gzip";
+        }
+
+        @Override
+        public InputStream decode(InputStream inputStream) throws IOException {
+            return new GZIPInputStream(inputStream);
+        }
+    }
+
+    /**
+     * Decoder of deflate, some servers send raw deflate data instead of zlib format, both are supported.
+     */
+    static class DeflateDecoder extends SonicContentDecoder {
+
+        @Override
+        public String getEncoding() {
+            return "deflate";
+        }
+
+        @Override
+        public InputStream decode(InputStream inputStream) throws IOException {
+            BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
+            bufferedInputStream.mark(2);
+            int cmf = bufferedInputStream.read();
+            int flg = bufferedInputStream.read();
+            bufferedInputStream.reset();
+            // zlib header: compression method 8 and (CMF * 256 + FLG) is a multiple of 31
+            boolean isZlib = cmf >= 0 && flg >= 0 && 8 == (cmf & 0x0f) && 0 == ((cmf << 8) | flg) % 31;
+            return new InflaterInputStream(bufferedInputStream, new Inflater(!isZlib));
+        }
+    }
+
+    /**
+     * @param customDecoders The decoders provided by host
+     * @return All the decoders in the order of preference
+     */
+    static List<SonicContentDecoder> getDecoders(List<SonicContentDecoder> customDecoders) {
+        List<SonicContentDecoder> decoders = new ArrayList<SonicContentDecoder>(customDecoders);
+        SonicContentDecoder[] builtInDecoders = {new GzipDecoder(), new DeflateDecoder()};
+        for (SonicContentDecoder builtInDecoder : builtInDecoders) {
+            if (null == find(decoders, builtInDecoder.getEncoding())) {
+                decoders.add(builtInDecoder);
+            }
+        }
+        return decoders;
+    }
+
+    /**
+     * @return The value of "Accept-Encoding", such as "br, gzip;q=0.9, deflate;q=0.8".
+     */
+    static String getAcceptEncoding(List<SonicContentDecoder> decoders) {
+        StringBuilder acceptEncoding = new StringBuilder();
+        for (int i = 0; i < decoders.size(); ++i) {
+            if (i > 0) {
+                acceptEncoding.append(", ");
+            }
+            acceptEncoding.append(decoders.get(i).getEncoding());
+            if (i > 0) {
+                acceptEncoding.append(";q=0.").append(Math.max(1, 10 - i));
+            }
+        }
+        return acceptEncoding.toString();
+    }
+
+    /**
+     * Decode the response data according to "Content-Encoding", the codings are applied in the
+     * order they are listed, so they are decoded in reverse order.
+     *
+     * @param decoders        The decoders
+     * @param contentEncoding The value of "Content-Encoding"
+     * @param inputStream     The response stream
+     * @return The decoded stream, or the response stream if it is not encoded.
+     * @throws UnsupportedContentEncodingException If a coding has no decoder
+     * @throws IOException If the stream can not be decoded
+     */
+    static InputStream decode(List<SonicContentDecoder> decoders, String contentEncoding, InputStream inputStream) throws IOException {
+        if (TextUtils.isEmpty(contentEncoding)) {
+            return inputStream;
+        }
+        String[] encodings = contentEncoding.split(",");
+        for (int i = encodings.length - 1; i >= 0; --i) {
+            String encoding = encodings[i].trim();
+            if (encoding.isEmpty() || "identity".equalsIgnoreCase(encoding)) {
+                continue;
+            }
+            SonicContentDecoder decoder = find(decoders, encoding);
+            if (null == decoder) {
+                SonicUtils.log(TAG, Log.ERROR, "decode error:unsupported content encoding " + encoding + ".");
+                throw new UnsupportedContentEncodingException(encoding);
+            }
+            inputStream = decoder.decode(inputStream);
+        }
+        return inputStream;
+    }
+
+    private static SonicContentDecoder find(List<SonicContentDecoder> decoders, String encoding) {
+        for (SonicContentDecoder decoder : decoders) {
+            if (encoding.equalsIgnoreCase(decoder.getEncoding())) {
+                return decoder;
+            }
+        }
+        return null;
+    }
+}
@@ -16,6 +16,12 @@ package com.tencent.sonic.sdk;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
 /**
  *
  * SonicDataHelper provides sonic data such as eTag, templateTag, etc.
@@ -34,6 +40,12 @@ class SonicDataHelper {
 
     private static final String SP_FILE_SONIC = "sp_sonic_db";
 
+    /**
+     * The SharedPreferences file name of session visits, they are written on every session creation
+     * so they are kept out of {@link #SP_FILE_SONIC} which is shared across processes.
+     */
+    private static final String SP_FILE_SONIC_VISIT = "sp_sonic_visit";
+
     /**
      * The SharedPreferences file version
      */
@@ -64,11 +76,6 @@ class SonicDataHelper {
      */
     private static final String SP_KEY_TEMPLATE_UPDATE_TIME = "templateUpdateTime_";
 
-    /**
-     * The key of Unavailable Time
-     */
-    private static final String SP_KEY_UNAVAILABLE_TIME = "UnavailableTime_";
-
     /**
      * The key of Content-Security-Policy
      */
@@ -79,8 +86,55 @@ class SonicDataHelper {
      */
     private static final String SP_KEY_CSP_REPORT_ONLY = "cspReportOnly_";
 
+    /**
+     * The key of the url of session visits
+     */
+    private static final String SP_KEY_VISIT_URL = "visitUrl_";
+
+    /**
+     * The key of the count of session visits
+     */
+    private static final String SP_KEY_VISIT_COUNT = "visitCount_";
+
+    /**
+     * The key of the first time of session visits
+     */
+    private static final String SP_KEY_FIRST_VISIT_TIME = "firstVisitTime_";
+
+    /**
+     * The key of the last time of session visits
+     */
+    private static final String SP_KEY_LAST_VISIT_TIME = "lastVisitTime_";
+
+    /**
+     * The visits of a session which is not visited for this time (in milliseconds) are removed
+     */
+    private static final long SESSION_VISIT_EXPIRED_TIME = 30 * 24 * 60 * 60 * 1000L;
+
+    /**
+     * The max count of sessions whose visits are kept, the least recently visited ones are removed
+     */
+    private static final int MAX_SESSION_VISIT_COUNT = 100;
+
+    /**
+     * The key of the latest time the cache was validated by server
+     */
+    private static final String SP_KEY_VALIDATE_TIME = "validateTime_";
+
+    /**
+     * The key of max-age(seconds) of Cache-Control
+     */
+    private static final String SP_KEY_MAX_AGE = "maxAge_";
+
+    /**
+     * The key of stale-while-revalidate(seconds) of Cache-Control
+     */
+    private static final String SP_KEY_STALE_WHILE_REVALIDATE = "staleWhileRevalidate_";
+
     private static SharedPreferences sSharedPreferences;
 
+    private static SharedPreferences sVisitSharedPreferences;
+
     /**
      * Sonic data structure
      */
@@ -135,7 +189,56 @@ class SonicDataHelper {
         }
     }
 
-    private static synchronized SharedPreferences getSonicSharedPref() {
+    /**
+     * The visits of a session, they decide which sessions are refreshed in background
+     */
+    static class SessionVisit {
+
+        String sessionId;
+
+        /**
+         * The latest url of session
+         */
+        String url;
+
+        /**
+         * The count of visits
+         */
+        int count;
+
+        /**
+         * The first time of visits
+         */
+        long firstVisitTime;
+
+        /**
+         * The last time of visits
+         */
+        long lastVisitTime;
+    }
+
+    /**
+     * The freshness of session cache
+     */
+    static class SessionFreshness {
+
+        /**
+         * The latest time the cache was validated by server, 0 means never
+         */
+        long validateTime;
+
+        /**
+         * The max-age(seconds) of Cache-Control, -1 means the server did not send it
+         */
+        long maxAge = -1;
+
+        /**
+         * The stale-while-revalidate(seconds) of Cache-Control, -1 means the server did not send it
+         */
+        long staleWhileRevalidate = -1;
+    }
+
+    static synchronized SharedPreferences getSonicSharedPref() {
         if (null == sSharedPreferences) {
             if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB) {
                 sSharedPreferences = SonicEngine.getInstance().getRuntime().getContext().getSharedPreferences(SP_FILE_SONIC, Context.MODE_MULTI_PROCESS);
@@ -150,6 +253,13 @@ class SonicDataHelper {
         }
         return sSharedPreferences;
     }
+
+    private static synchronized SharedPreferences getVisitSharedPref() {
+        if (null == sVisitSharedPreferences) {
+            sVisitSharedPreferences = SonicEngine.getInstance().getRuntime().getContext().getSharedPreferences(SP_FILE_SONIC_VISIT, Context.MODE_PRIVATE);
+        }
+        return sVisitSharedPreferences;
+    }
     
     /**
      * Get sonic sessionData by unique session id
@@ -200,30 +310,138 @@ class SonicDataHelper {
         SharedPreferences.Editor editor = getSonicSharedPref().edit();
         editor.remove(SP_KEY_ETAG + sessionId).remove(SP_KEY_TEMPLATE_TAG + sessionId);
         editor.remove(SP_KEY_HTML_SHA1 + sessionId).remove(SP_KEY_TEMPLATE_UPDATE_TIME + sessionId);
-        editor.remove(SP_KEY_HTML_SIZE + sessionId).apply();
+        editor.remove(SP_KEY_HTML_SIZE + sessionId).remove(SP_KEY_VALIDATE_TIME + sessionId);
+        editor.remove(SP_KEY_MAX_AGE + sessionId).remove(SP_KEY_STALE_WHILE_REVALIDATE + sessionId);
+        editor.apply();
+
+        synchronized (SonicDataHelper.class) {
+            SharedPreferences.Editor visitEditor = getVisitSharedPref().edit();
+            removeSessionVisit(visitEditor, sessionId);
+            visitEditor.apply();
+        }
+    }
+
+    private static void removeSessionVisit(SharedPreferences.Editor editor, String sessionId) {
+        editor.remove(SP_KEY_VISIT_URL + sessionId).remove(SP_KEY_VISIT_COUNT + sessionId);
+        editor.remove(SP_KEY_FIRST_VISIT_TIME + sessionId).remove(SP_KEY_LAST_VISIT_TIME + sessionId);
     }
 
     /**
-     * Set sonic unavailable time, sonic will not execute its logic before this time.
+     * Get the freshness of session cache
      *
-     * @param sessionId       A unique session id.
-     * @param unavailableTime Unavailable time.
-     * @return The result of save unavailable time
+     * @param sessionId A unique session id
+     * @return SessionFreshness
      */
-    static boolean setSonicUnavailableTime(String sessionId, long unavailableTime) {
+    static SessionFreshness getSessionFreshness(String sessionId) {
         SharedPreferences sharedPreferences = getSonicSharedPref();
-        return sharedPreferences.edit().putLong(SP_KEY_UNAVAILABLE_TIME + sessionId, unavailableTime).commit();
+        SessionFreshness sessionFreshness = new SessionFreshness();
+        sessionFreshness.validateTime = sharedPreferences.getLong(SP_KEY_VALIDATE_TIME + sessionId, 0L);
+        sessionFreshness.maxAge = sharedPreferences.getLong(SP_KEY_MAX_AGE + sessionId, -1L);
+        sessionFreshness.staleWhileRevalidate = sharedPreferences.getLong(SP_KEY_STALE_WHILE_REVALIDATE + sessionId, -1L);
+        return sessionFreshness;
     }
 
     /**
-     * Get the sonic unavailable time
+     * Save the freshness of session cache
+     *
+     * @param sessionId        A unique session id
+     * @param sessionFreshness SessionFreshness
+     */
+    static void saveSessionFreshness(String sessionId, SessionFreshness sessionFreshness) {
+        SharedPreferences.Editor editor = getSonicSharedPref().edit();
+        editor.putLong(SP_KEY_VALIDATE_TIME + sessionId, sessionFreshness.validateTime);
+        editor.putLong(SP_KEY_MAX_AGE + sessionId, sessionFreshness.maxAge);
+        editor.putLong(SP_KEY_STALE_WHILE_REVALIDATE + sessionId, sessionFreshness.staleWhileRevalidate);
+        editor.apply();
+    }
+
+    /**
+     * Record a visit of session, the visits which are expired or exceed {@link #MAX_SESSION_VISIT_COUNT}
+     * are removed at the same time.
      *
      * @param sessionId A unique session id
-     * @return The sonic unavailable time
+     * @param url       The url of session
      */
-    static long getLastSonicUnavailableTime(String sessionId) {
-        SharedPreferences sharedPreferences = getSonicSharedPref();
-        return sharedPreferences.getLong(SP_KEY_UNAVAILABLE_TIME + sessionId, 0);
+    static synchronized void recordSessionVisit(String sessionId, String url) {
+        SharedPreferences sharedPreferences = getVisitSharedPref();
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        long now = System.currentTimeMillis();
+        List<SessionVisit> sessionVisits = readSessionVisits(sharedPreferences);
+        for (int i = sessionVisits.size() - 1; i >= 0; --i) {
+            if (sessionVisits.get(i).sessionId.equals(sessionId)) {
+                sessionVisits.remove(i);
+            }
+        }
+        pruneSessionVisits(editor, sessionVisits, MAX_SESSION_VISIT_COUNT - 1, now);
+        editor.putString(SP_KEY_VISIT_URL + sessionId, url);
+        editor.putInt(SP_KEY_VISIT_COUNT + sessionId, sharedPreferences.getInt(SP_KEY_VISIT_COUNT + sessionId, 0) + 1);
+        if (0 == sharedPreferences.getLong(SP_KEY_FIRST_VISIT_TIME + sessionId, 0L)) {
+            editor.putLong(SP_KEY_FIRST_VISIT_TIME + sessionId, now);
+        }
+        editor.putLong(SP_KEY_LAST_VISIT_TIME + sessionId, now);
+        editor.apply();
+    }
+
+    /**
+     * Get the visits of sessions, the visits which are expired or exceed {@link #MAX_SESSION_VISIT_COUNT}
+     * are removed.
+     *
+     * @return The visits of sessions, the most recently visited first.
+     */
+    static synchronized List<SessionVisit> getSessionVisits() {
+        SharedPreferences sharedPreferences = getVisitSharedPref();
+        List<SessionVisit> sessionVisits = readSessionVisits(sharedPreferences);
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        if (pruneSessionVisits(editor, sessionVisits, MAX_SESSION_VISIT_COUNT, System.currentTimeMillis())) {
+            editor.apply();
+        }
+        return sessionVisits;
+    }
+
+    /**
+     * @return The visits of sessions, the most recently visited first.
+     */
+    private static List<SessionVisit> readSessionVisits(SharedPreferences sharedPreferences) {
+        List<SessionVisit> sessionVisits = new ArrayList<SessionVisit>();
+        for (Map.Entry<String, ?> entry : sharedPreferences.getAll().entrySet()) {
+            if (!entry.getKey().startsWith(SP_KEY_VISIT_URL) || !(entry.getValue() instanceof String)) {
+                continue;
+            }
+            SessionVisit sessionVisit = new SessionVisit();
+            sessionVisit.sessionId = entry.getKey().substring(SP_KEY_VISIT_URL.length());
+            sessionVisit.url = (String) entry.getValue();
+            sessionVisit.count = sharedPreferences.getInt(SP_KEY_VISIT_COUNT + sessionVisit.sessionId, 0);
+            sessionVisit.firstVisitTime = sharedPreferences.getLong(SP_KEY_FIRST_VISIT_TIME + sessionVisit.sessionId, 0L);
+            sessionVisit.lastVisitTime = sharedPreferences.getLong(SP_KEY_LAST_VISIT_TIME + sessionVisit.sessionId, sessionVisit.firstVisitTime);
+            sessionVisits.add(sessionVisit);
+        }
+        Collections.sort(sessionVisits, new Comparator<SessionVisit>() {
+            @Override
+            public int compare(SessionVisit lhs, SessionVisit rhs) {
+                return lhs.lastVisitTime > rhs.lastVisitTime ? -1 : (lhs.lastVisitTime == rhs.lastVisitTime ? 0 : 1);
+            }
+        });
+
+        return sessionVisits;
+    }
+
+    /**
+     * Remove the visits which are expired or exceed maxCount from both sessionVisits and the editor.
+     *
+     * @param sessionVisits The visits of sessions, the most recently visited first.
+     * @return Whether any visit is removed.
+     */
+    private static boolean pruneSessionVisits(SharedPreferences.Editor editor, List<SessionVisit> sessionVisits, int maxCount, long now) {
+        boolean removed = false;
+        for (int i = sessionVisits.size() - 1; i >= 0; --i) {
+            SessionVisit sessionVisit = sessionVisits.get(i);
+            if (i >= maxCount || now - sessionVisit.lastVisitTime > SESSION_VISIT_EXPIRED_TIME) {
+                removeSessionVisit(editor, sessionVisit.sessionId);
+                sessionVisits.remove(i);
+                removed = true;
+            }
+        }
+        return removed;
     }
 
     /**
@@ -234,6 +452,10 @@ class SonicDataHelper {
             sSharedPreferences.edit().clear().apply();
             sSharedPreferences = null;
         }
+        if (null != sVisitSharedPreferences) {
+            sVisitSharedPreferences.edit().clear().apply();
+            sVisitSharedPreferences = null;
+        }
     }
 
     /**
@@ -0,0 +1,223 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * <code>SonicDnsCache</code> provides the direct address of a host when
+ * {@link SonicRuntime#getHostDirectAddress(String)} does not provide one.
+ * <p>
+ * The host is resolved in background, the session never waits for DNS: the first lookup of a host
+ * returns null (the connection resolves the host itself) and starts resolving, the later lookups get
+ * the cached address. Each record expires after its TTL and is refreshed in background when
+ * {@link #REFRESH_AHEAD_RATIO} of TTL has passed. If a host has several addresses, the addresses
+ * which failed to connect are skipped until {@link SonicConfig#DNS_FAILED_ADDRESS_EXPIRE_TIME}.
+ *
+ */
+class SonicDnsCache {
+
+    /**
+     * Log filter
+     */
+    private static final String TAG = SonicConstants.SONIC_SDK_LOG_PREFIX + "SonicDnsCache";
+
+    /**
+     * The record is refreshed after this ratio of TTL has passed
+     */
+    private static final float REFRESH_AHEAD_RATIO = 0.75f;
+
+    /**
+     * The failed resolution is retried after this time
+     */
+    private static final long NEGATIVE_TTL = 30 * 1000;
+
+    /**
+     * Resolved addresses of a host
+     */
+    private static class Record {
+
+        final String[] addresses;
+
+        final long resolveTime;
+
+        final long ttl;
+
+        Record(String[] addresses, long resolveTime, long ttl) {
+            this.addresses = addresses;
+            this.resolveTime = resolveTime;
+            this.ttl = ttl;
+        }
+    }
+
+    private final long ttl;
+
+    private final long failedAddressExpireTime;
+
+    private final ConcurrentHashMap<String, Record> records = new ConcurrentHashMap<String, Record>();
+
+    /**
+     * The hosts which are being resolved
+     */
+    private final ConcurrentHashMap<String, Boolean> resolvingHosts = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * The time when the address failed to connect, key is host and address
+     */
+    private final ConcurrentHashMap<String, Long> failedAddresses = new ConcurrentHashMap<String, Long>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong resolveCount = new AtomicLong();
+
+    SonicDnsCache(long ttl, long failedAddressExpireTime) {
+        this.ttl = ttl;
+        this.failedAddressExpireTime = failedAddressExpireTime;
+    }
+
+    /**
+     * Get the cached direct address of the host of url, the host is resolved in background if there
+     * is no fresh record.
+     *
+     * @param url The url
+     * @return The address, or null if there is no usable address now.
+     */
+    String getDirectAddress(String url) {
+        String host = getHost(url);
+        if (ttl <= 0 || TextUtils.isEmpty(host) || isAddress(host)) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        Record record = records.get(host);
+        if (null == record || now - record.resolveTime >= record.ttl * REFRESH_AHEAD_RATIO) {
+            resolve(host);
+        }
+        if (null != record && now - record.resolveTime < record.ttl) {
+            for (String address : record.addresses) {
+                Long failedTime = failedAddresses.get(host + "@" + address);
+                if (null == failedTime || now - failedTime >= failedAddressExpireTime) {
+                    hitCount.incrementAndGet();
+                    return address;
+                }
+            }
+            SonicUtils.log(TAG, Log.INFO, "getDirectAddress:all addresses of " + host + " failed.");
+        }
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Get another cached address of the host of url, it is used to send a hedged request.
+     *
+     * @param url            The url
+     * @param excludeAddress The address in use
+     * @return The address, or null if there is no other usable address.
+     */
+    String getAlternateAddress(String url, String excludeAddress) {
+        String host = getHost(url);
+        Record record = TextUtils.isEmpty(host) ? null : records.get(host);
+        long now = System.currentTimeMillis();
+        if (null != record && now - record.resolveTime < record.ttl) {
+            for (String address : record.addresses) {
+                Long failedTime = failedAddresses.get(host + "@" + address);
+                if (!address.equals(excludeAddress) && (null == failedTime || now - failedTime >= failedAddressExpireTime)) {
+                    return address;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Called when the connection to the direct address failed, the next address of host will be
+     * used.
+     *
+     * @param url     The url
+     * @param address The direct address
+     */
+    void onAddressFailed(String url, String address) {
+        String host = getHost(url);
+        if (!TextUtils.isEmpty(host) && !TextUtils.isEmpty(address)) {
+            failedAddresses.put(host + "@" + address, System.currentTimeMillis());
+            SonicUtils.log(TAG, Log.INFO, "onAddressFailed:" + host + " -> " + address + ".");
+        }
+    }
+
+    private void resolve(final String host) {
+        if (null != resolvingHosts.putIfAbsent(host, Boolean.TRUE)) {
+            return;
+        }
+        SonicEngine.getInstance().getRuntime().postTaskToThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long startTime = System.currentTimeMillis();
+                    List<String> addresses = new ArrayList<String>();
+                    try {
+                        for (InetAddress inetAddress : InetAddress.getAllByName(host)) {
+                            String address = inetAddress.getHostAddress();
+                            // IPv6 address is used in url, so it should be bracketed
+                            addresses.add(inetAddress instanceof Inet6Address ? "[" + address + "]" : address);
+                        }
+                    } catch (Throwable e) {
+                        SonicUtils.log(TAG, Log.ERROR, "resolve " + host + " error:" + e.getMessage());
+                    }
+                    resolveCount.incrementAndGet();
+                    records.put(host, new Record(addresses.toArray(new String[addresses.size()]), System.currentTimeMillis(), addresses.isEmpty() ? Math.min(ttl, NEGATIVE_TTL) : ttl));
+                    SonicUtils.log(TAG, Log.INFO, "resolve " + host + " -> " + addresses + ", cost " + (System.currentTimeMillis() - startTime) + " ms.");
+                } finally {
+                    resolvingHosts.remove(host);
+                }
+            }
+        }, 0);
+    }
+
+    private static String getHost(String url) {
+        try {
+            return Uri.parse(url).getHost();
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "getHost error:" + e.getMessage() + ", url = " + url);
+        }
+        return null;
+    }
+
+    private static boolean isAddress(String host) {
+        return host.startsWith("[") || host.matches("^[0-9.]+$");
+    }
+
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    long getMissCount() {
+        return missCount.get();
+    }
+
+    long getResolveCount() {
+        return resolveCount.get();
+    }
+}
@@ -13,12 +13,16 @@
 
 package com.tencent.sonic.sdk;
 
+import android.content.ComponentCallbacks2;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.Log;
 
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -52,9 +56,76 @@ public class SonicEngine {
     //当前正在运行的会话记录
     private final ConcurrentHashMap<String, SonicSession> runningSessionHashMap = new ConcurrentHashMap<String, SonicSession>(5);
 
+    /**
+     * Destroys the preloaded sessions which have expired but have never been picked up.
+     */
+    private final SonicPreloadSessionSweeper preloadSessionSweeper = new SonicPreloadSessionSweeper();
+
+    /**
+     * Memory accounting of the whole sdk
+     */
+    private final SonicMemoryAccounting memoryAccounting = new SonicMemoryAccounting();
+
+    /**
+     * The global budget of response data buffered by all of the sessions
+     */
+    private final SonicByteBudget responseByteBudget;
+
+    /**
+     * The disk cache of sub resources of sonic pages
+     */
+    private final SonicResourceCache resourceCache;
+
+    /**
+     * The offline packages of static resources
+     */
+    private final SonicOfflinePackageManager offlinePackageManager = new SonicOfflinePackageManager();
+
+    /**
+     * Sets up the connections of hosts ahead of time
+     */
+    private final SonicConnectionWarmer connectionWarmer;
+
+    /**
+     * Resolves the direct address of hosts if runtime does not provide one
+     */
+    private final SonicDnsCache dnsCache;
+
+    /**
+     * The recent connect and respond costs of hosts, for adaptive timeouts
+     */
+    private final SonicNetworkTimingTracker networkTimingTracker = new SonicNetworkTimingTracker();
+
+    /**
+     * Stops sessions from connecting the hosts which keep failing
+     */
+    private final SonicCircuitBreaker circuitBreaker;
+
+    /**
+     * The times until which sonic is unavailable for sessions, hosts and url patterns
+     */
+    private final SonicUnavailableTable unavailableTable = new SonicUnavailableTable();
+
+    /**
+     * Revalidates the cache of many sessions with one request
+     */
+    private final SonicBatchRevalidator batchRevalidator = new SonicBatchRevalidator();
+
+    /**
+     * Refreshes the cached sessions in background
+     */
+    private final SonicRefreshScheduler refreshScheduler = new SonicRefreshScheduler();
+
     private SonicEngine(SonicRuntime runtime, SonicConfig config) {
         this.runtime = runtime;
         this.config = config;
+        this.responseByteBudget = new SonicByteBudget(config.MAX_BUFFERED_RESPONSE_BYTES);
+        this.resourceCache = new SonicResourceCache(config.RESOURCE_CACHE_MAX_SIZE);
+        this.connectionWarmer = new SonicConnectionWarmer(config.MAX_PREWARM_CONNECTION_COUNT, config.PREWARM_CONNECTION_KEEP_ALIVE_TIME);
+        this.dnsCache = new SonicDnsCache(config.DNS_CACHE_TTL, config.DNS_FAILED_ADDRESS_EXPIRE_TIME);
+        this.circuitBreaker = new SonicCircuitBreaker(config.CIRCUIT_BREAKER_FAILURE_THRESHOLD, config.CIRCUIT_BREAKER_BASE_OPEN_TIME, config.CIRCUIT_BREAKER_MAX_OPEN_TIME);
+        memoryAccounting.registerConsumer(SonicMemoryAccounting.CATEGORY_PRELOAD_SESSION, preloadSessionMemoryConsumer);
+        memoryAccounting.registerConsumer(SonicMemoryAccounting.CATEGORY_SESSION_BUFFER, runningSessionMemoryConsumer);
     }
 
     /**
@@ -78,8 +149,14 @@ public class SonicEngine {
     }
     //创建SonicEngine单例对象
     public static synchronized SonicEngine createInstance(@NonNull SonicRuntime runtime, @NonNull SonicConfig config) {
-        if (null == sInstance)
+        if (null == sInstance) {
             sInstance = new SonicEngine(runtime, config);
+            sInstance.unavailableTable.preload();
+            sInstance.resourceCache.preload();
+            sInstance.offlinePackageManager.preload();
+            SonicCaptureOutputStream.sweepStaleSpillFiles();
+            sInstance.refreshScheduler.start();
+        }
         return sInstance;
     }
     /**
@@ -94,6 +171,27 @@ public class SonicEngine {
     public SonicConfig getConfig() {
         return config;
     }
+    /**
+     * @return The memory accounting object which knows how many bytes sonic holds.
+     */
+    public SonicMemoryAccounting getMemoryAccounting() {
+        return memoryAccounting;
+    }
+
+    /**
+     * @return The disk cache of sub resources, it also provides the statistics of the cache.
+     */
+    public SonicResourceCache getResourceCache() {
+        return resourceCache;
+    }
+
+    /**
+     * @return The manager of offline packages, which installs and updates the packages.
+     */
+    public SonicOfflinePackageManager getOfflinePackageManager() {
+        return offlinePackageManager;
+    }
+
     /**
      * Create session ID
      *
@@ -129,10 +227,11 @@ public class SonicEngine {
                 return false;
             }
             if (preloadSessionPool.size() < config.MAX_PRELOAD_SESSION_COUNT) {
-                if (isSessionAvailable(sessionId) && runtime.isNetworkValid()) {
-                    sonicSession = internalCreateSession(sessionId, url, sessionConfig);
+                if (isSessionAvailable(sessionId, url) && runtime.isNetworkValid()) {
+                    sonicSession = internalCreateSession(sessionId, url, sessionConfig, true);
                     if (null != sonicSession) {
                         preloadSessionPool.put(sessionId, sonicSession);
+                        preloadSessionSweeper.track(sonicSession);
                         return true;
                     }
                 }
@@ -149,13 +248,14 @@ public class SonicEngine {
         String sessionId = makeSessionId(url, sessionConfig.IS_ACCOUNT_RELATED);
         //这里为false表示该url不需要用sonic处理，HostSonicRuntime中isSonicUrl(Uri uri)返回false
         if (!TextUtils.isEmpty(sessionId)) {
+            refreshScheduler.onSessionCreated(sessionId, url);
             //预加载会话列表中是否有该会话，同时去掉预加载列表中的该会话
             SonicSession sonicSession = lookupSession(sessionConfig, sessionId, true);
             if (null != sonicSession) {
                 //如果有，就设置已经加载了该url
                 sonicSession.setIsPreload(url);
-            } else if (isSessionAvailable(sessionId)) { // 缓存中未存，就创建
-                sonicSession = internalCreateSession(sessionId, url, sessionConfig);
+            } else if (isSessionAvailable(sessionId, url)) { // 缓存中未存，就创建
+                sonicSession = internalCreateSession(sessionId, url, sessionConfig, false);
             }
             return sonicSession;
         }
@@ -190,8 +290,378 @@ public class SonicEngine {
         }
         return null;
     }
+
+    /**
+     * Destroys the expired sessions in {@link #preloadSessionPool}, it is invoked by
+     * {@link SonicPreloadSessionSweeper} when the earliest preloaded session expires.
+     */
+    synchronized void sweepExpiredPreloadSessions() {
+        List<SonicPreloadSessionSweeper.ExpireEntry> expiredEntries = preloadSessionSweeper.pollExpired(System.currentTimeMillis());
+        for (SonicPreloadSessionSweeper.ExpireEntry entry : expiredEntries) {
+            SonicSession sonicSession = preloadSessionPool.get(entry.sessionId);
+            if (null == sonicSession || sonicSession.sId != entry.sId) {
+                continue; // picked up or removed already
+            }
+            preloadSessionPool.remove(entry.sessionId);
+            long releasedBytes = sonicSession.getPendingDataSize();
+            sonicSession.destroy();
+            preloadSessionSweeper.onSessionSwept(releasedBytes);
+            if (runtime.shouldLog(Log.INFO)) {
+                runtime.log(TAG, Log.INFO, "sweepExpiredPreloadSessions:sessionId(" + entry.sessionId + ") is expired, release " + releasedBytes + " bytes.");
+            }
+        }
+    }
+
+    /**
+     * @return The count of expired preloaded sessions which have been destroyed in background.
+     */
+    public long getSweptPreloadSessionCount() {
+        return preloadSessionSweeper.getSweptSessionCount();
+    }
+
+    /**
+     * @return The size of buffered response data (in bytes) released by destroying expired preloaded sessions.
+     */
+    public long getReclaimedPreloadBytes() {
+        return preloadSessionSweeper.getReclaimedBytes();
+    }
+
+    /**
+     * @return The count of tasks waiting in session thread pool now.
+     */
+    public int getSessionTaskQueueDepth() {
+        return SonicSessionThreadPool.getQueueDepth();
+    }
+
+    /**
+     * @return The average time (in milliseconds) session tasks waited in the queue before they started.
+     */
+    public long getSessionTaskAverageWaitTime() {
+        return SonicSessionThreadPool.getAverageWaitTime();
+    }
+
+    /**
+     * @return The max time (in milliseconds) a session task waited in the queue before it started.
+     */
+    public long getSessionTaskMaxWaitTime() {
+        return SonicSessionThreadPool.getMaxWaitTime();
+    }
+
+    /**
+     * @return The count of session tasks rejected by session thread pool.
+     */
+    public long getSessionTaskRejectedCount() {
+        return SonicSessionThreadPool.getRejectedTaskCount();
+    }
+
+    /**
+     * @return The count of io tasks which are waiting for their delay or for a thread.
+     */
+    public int getIOTaskPendingCount() {
+        return SonicIOScheduler.getPendingTaskCount();
+    }
+
+    /**
+     * @return The count of io tasks which are running now.
+     */
+    public int getIOTaskActiveCount() {
+        return SonicIOScheduler.getActiveTaskCount();
+    }
+
+    /**
+     * @return The count of io tasks which have been accepted.
+     */
+    public long getIOTaskSubmittedCount() {
+        return SonicIOScheduler.getSubmittedTaskCount();
+    }
+
+    /**
+     * @return The count of io tasks which have finished, including the failed ones.
+     */
+    public long getIOTaskCompletedCount() {
+        return SonicIOScheduler.getCompletedTaskCount() + SonicIOScheduler.getFailedTaskCount();
+    }
+
+    /**
+     * @return The count of io tasks which threw an exception.
+     */
+    public long getIOTaskFailedCount() {
+        return SonicIOScheduler.getFailedTaskCount();
+    }
+
+    /**
+     * @return The count of io tasks which were rejected.
+     */
+    public long getIOTaskRejectedCount() {
+        return SonicIOScheduler.getRejectedTaskCount();
+    }
+
+    /**
+     * Set up the DNS, TCP and TLS of the host ahead of time in background, the keep-alive connection
+     * is parked in pool and picked up by the session which connects the host later. The direct
+     * address from {@link SonicRuntime#getHostDirectAddress(String)} is used if there is one.
+     *
+     * @param hostOrUrl A host, such as "www.example.com", or an url
+     * @return Returns false if the connection is warm already or can not be warmed.
+     */
+    public boolean prewarm(@NonNull String hostOrUrl) {
+        return connectionWarmer.prewarm(hostOrUrl);
+    }
+
+    SonicConnectionWarmer getConnectionWarmer() {
+        return connectionWarmer;
+    }
+
+    /**
+     * Get the direct address of url, the address provided by {@link SonicRuntime#getHostDirectAddress(String)}
+     * is preferred, otherwise the address cached by SDK is used.
+     *
+     * @param url The url
+     * @return Return a valid direct address or null.
+     */
+    String getHostDirectAddress(String url) {
+        String address = runtime.getHostDirectAddress(url);
+        return !TextUtils.isEmpty(address) ? address : dnsCache.getDirectAddress(url);
+    }
+
+    SonicDnsCache getDnsCache() {
+        return dnsCache;
+    }
+
+    SonicNetworkTimingTracker getNetworkTimingTracker() {
+        return networkTimingTracker;
+    }
+
+    /**
+     * Revalidate the cache of the urls with one request in background instead of one request per url,
+     * such as the articles of a feed. The protocol is described in {@link SonicBatchRevalidator}.
+     * The urls without cache, in use by a session or unavailable are ignored.
+     *
+     * @param batchUrl      The url which accepts the batch request
+     * @param urls          The urls to revalidate
+     * @param sessionConfig SonicSession config, it decides the session ids of urls
+     * @return Returns false if there is no url to revalidate.
+     */
+    public synchronized boolean revalidateSessions(@NonNull String batchUrl, @NonNull List<String> urls, @NonNull SonicSessionConfig sessionConfig) {
+        Map<String, String> sessions = new LinkedHashMap<String, String>();
+        for (String url : urls) {
+            String sessionId = makeSessionId(url, sessionConfig.IS_ACCOUNT_RELATED);
+            if (!TextUtils.isEmpty(sessionId) && !isSessionInUse(sessionId) && 0 == unavailableTable.getUnavailableTime(sessionId, url)) {
+                sessions.put(sessionId, url);
+            }
+        }
+        return !sessions.isEmpty() && batchRevalidator.revalidate(batchUrl, sessions);
+    }
+
+    /**
+     * @return Whether there is a running session.
+     */
+    boolean hasRunningSession() {
+        return !runningSessionHashMap.isEmpty();
+    }
+
+    /**
+     * @return Whether the session id is used by a preload or running session.
+     */
+    boolean isSessionInUse(String sessionId) {
+        return preloadSessionPool.containsKey(sessionId) || runningSessionHashMap.containsKey(sessionId);
+    }
+
+    /**
+     * @return The count of sessions whose cache was revalidated as not modified by batch request.
+     */
+    public long getBatchNotModifiedCount() {
+        return batchRevalidator.getNotModifiedCount();
+    }
+
+    /**
+     * @return The count of sessions whose data was updated by batch request.
+     */
+    public long getBatchDataUpdateCount() {
+        return batchRevalidator.getDataUpdateCount();
+    }
+
+    /**
+     * @return The count of sessions whose template was changed by batch request.
+     */
+    public long getBatchTemplateChangeCount() {
+        return batchRevalidator.getTemplateChangeCount();
+    }
+
+    SonicRefreshScheduler getRefreshScheduler() {
+        return refreshScheduler;
+    }
+
+    SonicBatchRevalidator getBatchRevalidator() {
+        return batchRevalidator;
+    }
+
+    /**
+     * @return The count of sessions refreshed in background, see {@link SonicConfig#BACKGROUND_REFRESH_INTERVAL}.
+     */
+    public long getBackgroundRefreshCount() {
+        return refreshScheduler.getRefreshCount();
+    }
+
+    /**
+     * @return The bytes received by background refresh.
+     */
+    public long getBackgroundRefreshBytes() {
+        return refreshScheduler.getReceivedBytes();
+    }
+
+    SonicUnavailableTable getUnavailableTable() {
+        return unavailableTable;
+    }
+
+    /**
+     * Make sonic unavailable for all the urls of the host for a period of time, the sessions of
+     * these urls are not created during it.
+     *
+     * @param host           The host, such as "www.example.com"
+     * @param durationMillis The period of time, 0 makes the host available again
+     */
+    public void setHostUnavailable(@NonNull String host, long durationMillis) {
+        unavailableTable.setHostUnavailableTime(host, System.currentTimeMillis() + durationMillis);
+    }
+
+    /**
+     * Make sonic unavailable for the urls which match the pattern for a period of time, the sessions
+     * of these urls are not created during it.
+     *
+     * @param pattern        The url pattern, "*" matches any characters, such as "https://www.example.com/activity/*"
+     * @param durationMillis The period of time, 0 makes the urls available again
+     */
+    public void setUrlPatternUnavailable(@NonNull String pattern, long durationMillis) {
+        unavailableTable.setPatternUnavailableTime(pattern, System.currentTimeMillis() + durationMillis);
+    }
+
+    SonicCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return The count of times the circuit of a host opened.
+     */
+    public long getCircuitOpenCount() {
+        return circuitBreaker.getOpenCount();
+    }
+
+    /**
+     * @return The count of sessions which skipped the connection because the circuit of host was open.
+     */
+    public long getCircuitRejectedCount() {
+        return circuitBreaker.getRejectedCount();
+    }
+
+    /**
+     * @return The count of main document requests which were hedged with a second request.
+     */
+    public long getMainDocumentHedgeCount() {
+        return SonicHedgedSessionConnection.getHedgeCount();
+    }
+
+    /**
+     * @return The count of hedged main document requests which the second request won.
+     */
+    public long getMainDocumentHedgeWinCount() {
+        return SonicHedgedSessionConnection.getHedgeWinCount();
+    }
+
+    /**
+     * @return The count of direct addresses provided by the DNS cache of SDK.
+     */
+    public long getDnsCacheHitCount() {
+        return dnsCache.getHitCount();
+    }
+
+    /**
+     * @return The count of lookups which the DNS cache of SDK has no usable address for.
+     */
+    public long getDnsCacheMissCount() {
+        return dnsCache.getMissCount();
+    }
+
+    /**
+     * @return The count of connections prewarmed.
+     */
+    public long getPrewarmConnectionCount() {
+        return connectionWarmer.getPrewarmCount();
+    }
+
+    /**
+     * @return The count of connections which failed to be prewarmed.
+     */
+    public long getPrewarmConnectionFailedCount() {
+        return connectionWarmer.getPrewarmFailedCount();
+    }
+
+    /**
+     * @return The count of sessions which connected with a warm connection.
+     */
+    public long getWarmConnectionHitCount() {
+        return connectionWarmer.getWarmHitCount();
+    }
+
+    /**
+     * @return The count of TLS handshakes of ip direct https connections.
+     */
+    public long getTlsHandshakeCount() {
+        return SonicSniSSLSocketFactory.getHandshakeCount();
+    }
+
+    /**
+     * @return The count of TLS handshakes of ip direct https connections which resumed an earlier session.
+     */
+    public long getTlsSessionResumedCount() {
+        return SonicSniSSLSocketFactory.getResumedHandshakeCount();
+    }
+
+    /**
+     * @return The average time (in milliseconds) of TLS handshakes of ip direct https connections.
+     */
+    public long getTlsAverageHandshakeTime() {
+        return SonicSniSSLSocketFactory.getAverageHandshakeTime();
+    }
+
+    /**
+     * @return The max time (in milliseconds) of TLS handshakes of ip direct https connections.
+     */
+    public long getTlsMaxHandshakeTime() {
+        return SonicSniSSLSocketFactory.getMaxHandshakeTime();
+    }
+
+    /**
+     * @return A stream to capture response data, see {@link SonicCaptureOutputStream}
+     */
+    SonicCaptureOutputStream createCaptureStream() {
+        return new SonicCaptureOutputStream(responseByteBudget, config.CAPTURE_SPILL_THRESHOLD);
+    }
+
+    /**
+     * @return The size of response data (in bytes) buffered by all of the sessions now.
+     */
+    public long getBufferedResponseBytes() {
+        return responseByteBudget.getUsedBytes();
+    }
+
+    /**
+     * @return The peak size of response data (in bytes) buffered by all of the sessions.
+     */
+    public long getPeakBufferedResponseBytes() {
+        return responseByteBudget.getPeakBytes();
+    }
+
+    /**
+     * @return The count of times that sessions failed to buffer response data because
+     * {@link SonicConfig#MAX_BUFFERED_RESPONSE_BYTES} was reached.
+     */
+    public long getBufferBudgetExhaustedCount() {
+        return responseByteBudget.getExhaustedCount();
+    }
+
     //创建一个会话
-    private SonicSession internalCreateSession(String sessionId, String url, SonicSessionConfig sessionConfig) {
+    private SonicSession internalCreateSession(String sessionId, String url, SonicSessionConfig sessionConfig, boolean isPreCreate) {
         //如果正在运行的会话中不包含该会话
         if (!runningSessionHashMap.containsKey(sessionId)) {
             SonicSession sonicSession;
@@ -202,6 +672,10 @@ public class SonicEngine {
                 sonicSession = new StandardSonicSession(sessionId, url, sessionConfig);
             //给会话添加回调监听会话状态，在本类下面有定义，主要是操作runningSessionHashMap
             sonicSession.addCallback(sessionCallback);
+            //预加载会话在会话线程池中的优先级低于前台会话
+            if (isPreCreate) {
+                sonicSession.taskPriority = SonicSessionThreadPool.PRIORITY_PRELOAD;
+            }
             //如果配置了自动开始会话
             if (sessionConfig.AUTO_START_WHEN_CREATE) {
                 sonicSession.start();
@@ -215,8 +689,8 @@ public class SonicEngine {
     }
 
     //如果服务器设置了容灾，客户端可能不能访问
-    private boolean isSessionAvailable(String sessionId) {
-        long unavailableTime = SonicDataHelper.getLastSonicUnavailableTime(sessionId);
+    boolean isSessionAvailable(String sessionId, String url) {
+        long unavailableTime = unavailableTable.getUnavailableTime(sessionId, url);
         if (System.currentTimeMillis() > unavailableTime) {
             return true;
         }
@@ -249,6 +723,7 @@ public class SonicEngine {
                 session.destroy();
             }
             preloadSessionPool.clear();
+            preloadSessionSweeper.clear();
         }
 
         if (!runningSessionHashMap.isEmpty()) {
@@ -258,6 +733,9 @@ public class SonicEngine {
 
         runtime.log(TAG, Log.INFO, "cleanCache: remove all sessions cache.");
 
+        resourceCache.clear();
+        offlinePackageManager.clear();
+        unavailableTable.clear();
         return SonicUtils.removeAllSessionCache();
     }
 
@@ -283,6 +761,88 @@ public class SonicEngine {
         runtime.log(TAG, Log.ERROR, "sessionId(" + sessionId + ") removeSessionCache fail: session is running.");
         return false;
     }
+    /**
+     * Shed memory according to the memory level, it is expected to be called from
+     * {@link android.content.ComponentCallbacks2#onTrimMemory(int)} in main thread.
+     * <p>
+     * Preloaded sessions are dropped first, then the in-memory caches, and the response data
+     * buffered by the sessions which are not visible will be released at the critical levels.
+     *
+     * @param level The memory level, such as {@link ComponentCallbacks2#TRIM_MEMORY_RUNNING_LOW}
+     * @return The size (in bytes) of memory released.
+     */
+    public synchronized long onTrimMemory(int level) {
+        int maxCategory;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            maxCategory = SonicMemoryAccounting.CATEGORY_SESSION_BUFFER;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            maxCategory = SonicMemoryAccounting.CATEGORY_MEMORY_CACHE;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            maxCategory = SonicMemoryAccounting.CATEGORY_PRELOAD_SESSION;
+        } else {
+            return 0;
+        }
+        long startTime = System.currentTimeMillis();
+        long releasedSize = memoryAccounting.trimMemory(maxCategory);
+        runtime.log(TAG, Log.INFO, "onTrimMemory: level = " + level + ", release " + releasedSize + " bytes, cost " + (System.currentTimeMillis() - startTime) + " ms.");
+        return releasedSize;
+    }
+
+    /**
+     * Memory held by the sessions in {@link #preloadSessionPool}
+     */
+    private final SonicMemoryAccounting.MemoryConsumer preloadSessionMemoryConsumer = new SonicMemoryAccounting.MemoryConsumer() {
+        @Override
+        public long getMemorySize() {
+            long size = 0;
+            for (SonicSession session : preloadSessionPool.values()) {
+                size += session.getPendingDataSize();
+            }
+            return size;
+        }
+
+        @Override
+        public long trimMemory() {
+            long releasedSize = 0;
+            synchronized (SonicEngine.this) {
+                for (SonicSession session : preloadSessionPool.values()) {
+                    releasedSize += session.getPendingDataSize();
+                    session.destroy();
+                }
+                preloadSessionPool.clear();
+                preloadSessionSweeper.clear();
+            }
+            return releasedSize;
+        }
+    };
+
+    /**
+     * Memory buffered by the running sessions which are not in {@link #preloadSessionPool}
+     */
+    private final SonicMemoryAccounting.MemoryConsumer runningSessionMemoryConsumer = new SonicMemoryAccounting.MemoryConsumer() {
+        @Override
+        public long getMemorySize() {
+            long size = 0;
+            for (SonicSession session : runningSessionHashMap.values()) {
+                if (preloadSessionPool.get(session.id) != session) {
+                    size += session.getPendingDataSize();
+                }
+            }
+            return size;
+        }
+
+        @Override
+        public long trimMemory() {
+            long releasedSize = 0;
+            for (SonicSession session : runningSessionHashMap.values()) {
+                if (preloadSessionPool.get(session.id) != session) {
+                    releasedSize += session.trimPendingData();
+                }
+            }
+            return releasedSize;
+        }
+    };
+
     //监听会话的状态，运行中就添加到runningSessionHashMap，销毁就从runningSessionHashMap中移除
     private final SonicSession.Callback sessionCallback = new SonicSession.Callback() {
         @Override
@@ -49,6 +49,16 @@ class SonicFileUtils {
      */
     private static final String HTML_EXT = ".html";
 
+    /**
+     * Sub resource cache directory
+     */
+    private static final String RESOURCE_CACHE_DIR = "res";
+
+    /**
+     * Offline package directory
+     */
+    private static final String OFFLINE_PACKAGE_DIR = "pkg";
+
     /**
      *
      * @return Returns the absolute path to the specific cache directory on
@@ -62,6 +72,32 @@ class SonicFileUtils {
         return dirPath;
     }
 
+    /**
+     *
+     * @return Returns the absolute path to the sub resource cache directory on
+     *  the filesystem (including File.separator at the end of path).
+     */
+    static String getSonicResourceCacheDirPath() {
+        File dir = new File(getSonicCacheDirPath() + RESOURCE_CACHE_DIR);
+        if (!dir.exists() && !dir.mkdirs()) {
+            SonicUtils.log(TAG, Log.ERROR, "getSonicResourceCacheDirPath error:make dir(" + dir.getAbsolutePath() + ") fail!");
+        }
+        return dir.getAbsolutePath() + File.separator;
+    }
+
+    /**
+     *
+     * @return Returns the absolute path to the offline package directory on
+     *  the filesystem (including File.separator at the end of path).
+     */
+    static String getSonicOfflinePackageDirPath() {
+        File dir = new File(getSonicCacheDirPath() + OFFLINE_PACKAGE_DIR);
+        if (!dir.exists() && !dir.mkdirs()) {
+            SonicUtils.log(TAG, Log.ERROR, "getSonicOfflinePackageDirPath error:make dir(" + dir.getAbsolutePath() + ") fail!");
+        }
+        return dir.getAbsolutePath() + File.separator;
+    }
+
     /**
      *
      * @param sessionId
@@ -0,0 +1,168 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ *
+ * <code>SonicHeadFlushStream</code> provides the static head of the cached template to the kernel
+ * at once, so the kernel can fetch the sub resources (css, js etc.) while sonic is waiting for the
+ * server. The tail is provided by {@link #complete(String)} when sonic knows which html is the right
+ * one. If the tail is not provided in time, the tail of the cached html is used.
+ *
+ */
+class SonicHeadFlushStream extends InputStream {
+
+    /**
+     * Log filter
+     */
+    private static final String TAG = SonicConstants.SONIC_SDK_LOG_PREFIX + "SonicHeadFlushStream";
+
+    private final Object lock = new Object();
+
+    /**
+     * The head of the cached html, it is the same in every html built from the cached template.
+     */
+    private final String head;
+
+    /**
+     * The tail of the cached html, used when the session does not provide a fresh tail.
+     */
+    private final String cachedTail;
+
+    private final long timeoutMillis;
+
+    private byte[] buffer;
+
+    private int position;
+
+    /**
+     * Whether the tail has been appended to <code>buffer</code>
+     */
+    private boolean completed;
+
+    private boolean closed;
+
+    /**
+     * Constructor
+     *
+     * @param cachedHtml    The cached html
+     * @param headLength    The length of static head of cached html
+     * @param timeoutMillis The max time to wait for the tail
+     */
+    SonicHeadFlushStream(String cachedHtml, int headLength, long timeoutMillis) {
+        this.head = cachedHtml.substring(0, headLength);
+        this.cachedTail = cachedHtml.substring(headLength);
+        this.timeoutMillis = timeoutMillis;
+        this.buffer = head.getBytes();
+    }
+
+    /**
+     * Provide the tail of the html.
+     *
+     * @param htmlString The html decided by the session, null means the cached html is used.
+     * @return Returns true if the tail of <code>htmlString</code> is used, or returns false if the
+     *         tail of cached html is used because <code>htmlString</code> does not start with the flushed head.
+     */
+    boolean complete(String htmlString) {
+        boolean useFreshHtml = null != htmlString && htmlString.startsWith(head);
+        synchronized (lock) {
+            if (completed) {
+                return false;
+            }
+            appendTail(useFreshHtml ? htmlString.substring(head.length()) : cachedTail);
+        }
+        if (null != htmlString && !useFreshHtml) {
+            SonicUtils.log(TAG, Log.WARN, "complete:the html does not match the flushed head, use the cached html.");
+        }
+        return useFreshHtml;
+    }
+
+    /**
+     * Must be called with <code>lock</code> held
+     */
+    private void appendTail(String tail) {
+        byte[] tailBytes = tail.getBytes();
+        byte[] newBuffer = new byte[buffer.length - position + tailBytes.length];
+        System.arraycopy(buffer, position, newBuffer, 0, buffer.length - position);
+        System.arraycopy(tailBytes, 0, newBuffer, buffer.length - position, tailBytes.length);
+        buffer = newBuffer;
+        position = 0;
+        completed = true;
+        lock.notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] oneByte = new byte[1];
+        return -1 == read(oneByte, 0, 1) ? -1 : oneByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int byteOffset, int byteCount) throws IOException {
+        if ((byteOffset | byteCount) < 0 || byteOffset > b.length || b.length - byteOffset < byteCount) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        if (0 == byteCount) {
+            return 0;
+        }
+        synchronized (lock) {
+            if (position == buffer.length && !completed && !closed) {
+                long deadline = System.currentTimeMillis() + timeoutMillis;
+                long remaining;
+                try {
+                    while (!completed && !closed && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        lock.wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                if (!completed && !closed) {
+                    SonicUtils.log(TAG, Log.ERROR, "read:wait for the tail timeout, use the cached html.");
+                    appendTail(cachedTail);
+                }
+            }
+            if (closed) {
+                throw new IOException("stream is closed");
+            }
+            if (position == buffer.length) {
+                return -1;
+            }
+            int n = Math.min(byteCount, buffer.length - position);
+            System.arraycopy(buffer, position, b, byteOffset, n);
+            position += n;
+            return n;
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        synchronized (lock) {
+            return buffer.length - position;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+}
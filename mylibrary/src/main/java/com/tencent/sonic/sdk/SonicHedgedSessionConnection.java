@@ -0,0 +1,326 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.content.Intent;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * <code>SonicHedgedSessionConnection</code> races requests for the main document, it is used when
+ * {@link SonicSessionConfig#HEDGE_MAIN_DOCUMENT} is enabled.
+ * <p>
+ * The first request is sent on the session thread as usual. If its response headers do not arrive
+ * within the p95 cost of the host, a second request is sent on a dedicated hedge thread to another
+ * address of the host (see {@link SonicDnsCache#getAlternateAddress(String, String)}), or to the
+ * host again if there is no other address. The first good response wins and the other request is
+ * cancelled. The session reads the winner just like a normal connection.
+ *
+ */
+class SonicHedgedSessionConnection extends SonicSessionConnection {
+
+    /**
+     * Log filter
+     */
+    private static final String TAG = SonicConstants.SONIC_SDK_LOG_PREFIX + "SonicHedgedSessionConnection";
+
+    private static final AtomicLong hedgeCount = new AtomicLong();
+
+    private static final AtomicLong hedgeWinCount = new AtomicLong();
+
+    /**
+     * The threads which send the hedge requests, they run with the same priority as session threads
+     * and are never blocked by the background work on {@link SonicRuntime#postTaskToThread(Runnable, long)}.
+     */
+    private static ScheduledThreadPoolExecutor sHedgeExecutor;
+
+    /**
+     * A request of the race
+     */
+    private class Attempt implements Runnable {
+
+        final SonicSessionConnection connection;
+
+        final String directAddress;
+
+        final boolean isHedge;
+
+        volatile int connectCode = SonicConstants.ERROR_CODE_UNKNOWN;
+
+        volatile int responseCode = SonicConstants.ERROR_CODE_UNKNOWN;
+
+        /**
+         * Guarded by {@link #attempts}
+         */
+        boolean isFinished;
+
+        /**
+         * Whether the attempt is disconnected because it lost the race, guarded by {@link #attempts}
+         */
+        boolean isCancelled;
+
+        Attempt(Intent intent, boolean isHedge) {
+            this.connection = SonicSessionConnectionInterceptor.createSonicSessionConnection(session, intent);
+            this.directAddress = intent.getStringExtra(SonicSessionConnection.DNS_PREFETCH_ADDRESS);
+            this.isHedge = isHedge;
+        }
+
+        @Override
+        public void run() {
+            try {
+                SonicNetworkTimingTracker timingTracker = SonicEngine.getInstance().getNetworkTimingTracker();
+                long startTime = System.currentTimeMillis();
+                connectCode = connection.connect();
+                long connectTime = System.currentTimeMillis();
+                timingTracker.recordConnectResult(session.srcUrl, session.config, connectCode, connectTime - startTime);
+                if (SonicConstants.ERROR_CODE_SUCCESS == connectCode) {
+                    responseCode = connection.getResponseCode();
+                    timingTracker.recordRespondResult(session.srcUrl, session.config, responseCode, System.currentTimeMillis() - connectTime);
+                }
+            } finally {
+                onAttemptFinished(this);
+            }
+        }
+
+        boolean isGood() {
+            return SonicConstants.ERROR_CODE_SUCCESS == connectCode && responseCode > 0 && responseCode < 500;
+        }
+    }
+
+    private final List<Attempt> attempts = new ArrayList<Attempt>(2);
+
+    /**
+     * The attempt whose response is used by session, guarded by {@link #attempts}
+     */
+    private volatile Attempt winner;
+
+    /**
+     * The attempt finished last, guarded by {@link #attempts}
+     */
+    private Attempt lastFinished;
+
+    private volatile boolean isDisconnected;
+
+    SonicHedgedSessionConnection(SonicSession session, Intent intent) {
+        super(session, intent);
+    }
+
+    @Override
+    protected int internalConnect() {
+        final Attempt primary = new Attempt(intent, false);
+        synchronized (attempts) {
+            if (isDisconnected) {
+                return SonicConstants.ERROR_CODE_UNKNOWN;
+            }
+            attempts.add(primary);
+        }
+
+        final long hedgeDelay = getHedgeDelay();
+        ScheduledFuture<?> hedgeFuture = null;
+        if (hedgeDelay > 0) {
+            try {
+                hedgeFuture = getHedgeExecutor().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        runHedge(primary, hedgeDelay);
+                    }
+                }, hedgeDelay, TimeUnit.MILLISECONDS);
+            } catch (Throwable e) {
+                SonicUtils.log(TAG, Log.ERROR, "session(" + session.sId + ") schedule hedge error:" + e.getMessage());
+            }
+        }
+
+        // The primary request runs on the session thread, it is disconnected if the hedge wins
+        primary.run();
+        if (null != hedgeFuture) {
+            hedgeFuture.cancel(false);
+        }
+
+        Attempt result;
+        synchronized (attempts) {
+            while (null == winner && !isAllFinished()) {
+                try {
+                    attempts.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    SonicUtils.log(TAG, Log.ERROR, "session(" + session.sId + ") wait for hedge error:" + e.getMessage());
+                    break;
+                }
+            }
+            if (null == winner) {
+                // 没有成功的请求时使用最后结束的请求，保留其错误码
+                winner = null != lastFinished ? lastFinished : primary;
+            }
+            result = winner;
+            cancelLosers();
+        }
+        if (result.isHedge && result.isGood()) {
+            session.statistics.isMainDocumentHedgeWon = true;
+            hedgeWinCount.incrementAndGet();
+        }
+        SonicUtils.log(TAG, Log.INFO, "session(" + session.sId + ") race finished, winner is " + (result.isHedge ? "hedge" : "primary") + " request, connectCode = " + result.connectCode + ".");
+        return result.connectCode;
+    }
+
+    private void runHedge(Attempt primary, long hedgeDelay) {
+        Intent hedgeIntent = new Intent(intent);
+        hedgeIntent.putExtra(SonicSessionConnection.DNS_PREFETCH_ADDRESS, SonicEngine.getInstance().getDnsCache().getAlternateAddress(session.srcUrl, primary.directAddress));
+        Attempt hedge = new Attempt(hedgeIntent, true);
+        synchronized (attempts) {
+            if (isDisconnected || null != winner || primary.isFinished) {
+                return;
+            }
+            attempts.add(hedge);
+        }
+        session.statistics.isMainDocumentHedged = true;
+        hedgeCount.incrementAndGet();
+        SonicUtils.log(TAG, Log.INFO, "session(" + session.sId + ") no response in " + hedgeDelay + " ms, hedge to " + hedgeIntent.getStringExtra(SonicSessionConnection.DNS_PREFETCH_ADDRESS) + ".");
+        hedge.run();
+    }
+
+    private boolean isAllFinished() {
+        for (Attempt attempt : attempts) {
+            if (!attempt.isFinished) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Disconnect the attempts other than the winner, must be called with the lock of {@link #attempts}.
+     */
+    private void cancelLosers() {
+        for (Attempt attempt : attempts) {
+            if (attempt != winner && !attempt.isCancelled) {
+                attempt.isCancelled = true;
+                attempt.connection.disconnect();
+            }
+        }
+    }
+
+    private void onAttemptFinished(Attempt attempt) {
+        synchronized (attempts) {
+            attempt.isFinished = true;
+            if (!attempt.isCancelled) {
+                lastFinished = attempt;
+                // Report the address which really failed, the other attempt may use another address
+                if (SonicConstants.ERROR_CODE_CONNECT_IOE == attempt.connectCode || SonicConstants.ERROR_CODE_CONNECT_TOE == attempt.connectCode) {
+                    SonicEngine.getInstance().getDnsCache().onAddressFailed(session.srcUrl, attempt.directAddress);
+                }
+                if (null == winner && attempt.isGood()) {
+                    // The first good response wins, cancel the other attempt at once
+                    winner = attempt;
+                    cancelLosers();
+                }
+            } else {
+                attempt.connection.disconnect();
+            }
+            attempts.notifyAll();
+        }
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getHedgeExecutor() {
+        if (null == sHedgeExecutor) {
+            int poolSize = Math.max(1, SonicEngine.getInstance().getConfig().SESSION_THREAD_POOL_SIZE);
+            sHedgeExecutor = new ScheduledThreadPoolExecutor(poolSize, new ThreadFactory() {
+
+                private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "pool-sonic-hedge-thread-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(false);
+                    thread.setPriority(Thread.NORM_PRIORITY);
+                    return thread;
+                }
+            });
+            sHedgeExecutor.setKeepAliveTime(60L, TimeUnit.SECONDS);
+            sHedgeExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sHedgeExecutor;
+    }
+
+    /**
+     * @return The p95 cost of response headers of the host, or 0 if there are not enough samples.
+     */
+    private long getHedgeDelay() {
+        SonicNetworkTimingTracker timingTracker = SonicEngine.getInstance().getNetworkTimingTracker();
+        long connectP95 = timingTracker.getConnectP95(session.srcUrl);
+        long respondP95 = timingTracker.getRespondP95(session.srcUrl);
+        if (connectP95 < 0 || respondP95 < 0) {
+            return 0;
+        }
+        return SonicNetworkTimingTracker.clamp(session.config, connectP95 + respondP95);
+    }
+
+    @Override
+    String getDirectAddress() {
+        Attempt result = winner;
+        return null != result ? result.directAddress : null;
+    }
+
+    @Override
+    public void disconnect() {
+        synchronized (attempts) {
+            isDisconnected = true;
+            for (Attempt attempt : attempts) {
+                attempt.connection.disconnect();
+            }
+        }
+    }
+
+    @Override
+    public int getResponseCode() {
+        Attempt result = winner;
+        return null != result ? result.connection.getResponseCode() : SonicConstants.ERROR_CODE_UNKNOWN;
+    }
+
+    @Override
+    public Map<String, List<String>> getResponseHeaderFields() {
+        Attempt result = winner;
+        return null != result ? result.connection.getResponseHeaderFields() : null;
+    }
+
+    @Override
+    public String getResponseHeaderField(String key) {
+        Attempt result = winner;
+        return null != result ? result.connection.getResponseHeaderField(key) : null;
+    }
+
+    @Override
+    protected BufferedInputStream internalGetResponseStream() {
+        Attempt result = winner;
+        return null != result ? result.connection.getResponseStream() : null;
+    }
+
+    static long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    static long getHedgeWinCount() {
+        return hedgeWinCount.get();
+    }
+}
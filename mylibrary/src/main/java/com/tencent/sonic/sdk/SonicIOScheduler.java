@@ -0,0 +1,228 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * <code>SonicIOScheduler</code> runs I/O work, such as separating and saving cache files, on low
+ * priority background threads, so that session threads only do network work.
+ * It is also the default implementation of {@link SonicRuntime#postTaskToThread(Runnable, long)}.
+ * The count of threads is bounded by {@link SonicConfig#IO_THREAD_POOL_SIZE}, idle threads exit
+ * after a while, and the executor is shut down with the process.
+ *
+ */
+class SonicIOScheduler {
+
+    /**
+     * Log filter
+     */
+    private final static String TAG = SonicConstants.SONIC_SDK_LOG_PREFIX + "SonicIOScheduler";
+
+    /**
+     * The time (in seconds) an idle thread waits for new tasks before exiting
+     */
+    private final static long KEEP_ALIVE_TIME = 30L;
+
+    /**
+     * The time (in milliseconds) to wait for running tasks when the process is shutting down
+     */
+    private final static long SHUTDOWN_TIMEOUT = 1000L;
+
+    /**
+     * Singleton object
+     */
+    private static SonicIOScheduler sInstance;
+
+    /**
+     * I/O ThreadFactory, threads run with background priority
+     */
+    private static class IOThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        private final String namePrefix;
+
+        IOThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, namePrefix + threadNumber.getAndIncrement());
+            if (thread.isDaemon()) {
+                thread.setDaemon(false);
+            }
+            return thread;
+        }
+    }
+
+    /**
+     * A task which records its result into metrics
+     */
+    private class IOTask implements Runnable {
+
+        private final Runnable task;
+
+        IOTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+                completedTaskCount.incrementAndGet();
+            } catch (Throwable e) {
+                failedTaskCount.incrementAndGet();
+                SonicUtils.log(TAG, Log.ERROR, "run task error:" + e.getMessage());
+            }
+        }
+    }
+
+    private final ScheduledThreadPoolExecutor executorServiceImpl;
+
+    private final AtomicLong submittedTaskCount = new AtomicLong(0);
+
+    private final AtomicLong completedTaskCount = new AtomicLong(0);
+
+    private final AtomicLong failedTaskCount = new AtomicLong(0);
+
+    private final AtomicLong rejectedTaskCount = new AtomicLong(0);
+
+    /**
+     * Constructor
+     *
+     * @param poolSize The maximum number of threads, see {@link SonicConfig#IO_THREAD_POOL_SIZE}
+     */
+    private SonicIOScheduler(int poolSize) {
+        executorServiceImpl = createExecutor("pool-sonic-io-thread-", poolSize);
+        try {
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    shutdown();
+                }
+            }, "sonic-io-shutdown"));
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "add shutdown hook error:" + e.getMessage());
+        }
+    }
+
+    /**
+     * Create an executor whose threads run with background priority like the I/O threads, it is used
+     * by the network work which should neither wait behind nor delay the tasks on the I/O threads.
+     *
+     * @param namePrefix The name prefix of threads
+     * @param poolSize   The maximum number of threads
+     * @return The executor, idle threads exit after a while
+     */
+    static ScheduledThreadPoolExecutor createExecutor(String namePrefix, int poolSize) {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(Math.max(1, poolSize), new IOThreadFactory(namePrefix));
+        executor.setKeepAliveTime(KEEP_ALIVE_TIME, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static synchronized SonicIOScheduler getInstance() {
+        if (null == sInstance) {
+            SonicConfig config = SonicEngine.isGetInstanceAllowed() ? SonicEngine.getInstance().getConfig() : new SonicConfig.Builder().build();
+            sInstance = new SonicIOScheduler(config.IO_THREAD_POOL_SIZE);
+        }
+        return sInstance;
+    }
+
+    private ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        try {
+            ScheduledFuture<?> future = executorServiceImpl.schedule(new IOTask(task), Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+            submittedTaskCount.incrementAndGet();
+            return future;
+        } catch (Throwable e) {
+            rejectedTaskCount.incrementAndGet();
+            SonicUtils.log(TAG, Log.ERROR, "schedule task error:" + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stop accepting new tasks, wait for the running tasks for a while, delayed tasks which have not
+     * started are dropped.
+     */
+    private void shutdown() {
+        try {
+            executorServiceImpl.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            executorServiceImpl.shutdown();
+            if (!executorServiceImpl.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                SonicUtils.log(TAG, Log.ERROR, "shutdown: tasks are still running after " + SHUTDOWN_TIMEOUT + " ms.");
+            }
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "shutdown error:" + e.getMessage());
+        }
+    }
+
+    /**
+     * Post a task to the I/O thread
+     *
+     * @param task        The runnable task
+     * @param delayMillis The delay (in milliseconds) until the task will be executed
+     * @return The future which can be used to cancel the task, or null if the task is rejected
+     */
+    static ScheduledFuture<?> postTask(Runnable task, long delayMillis) {
+        return getInstance().schedule(task, delayMillis);
+    }
+
+    /**
+     * @return The count of tasks which are waiting for their delay or for a thread.
+     */
+    static int getPendingTaskCount() {
+        return getInstance().executorServiceImpl.getQueue().size();
+    }
+
+    /**
+     * @return The count of tasks which are running now.
+     */
+    static int getActiveTaskCount() {
+        return getInstance().executorServiceImpl.getActiveCount();
+    }
+
+    static long getSubmittedTaskCount() {
+        return getInstance().submittedTaskCount.get();
+    }
+
+    static long getCompletedTaskCount() {
+        return getInstance().completedTaskCount.get();
+    }
+
+    static long getFailedTaskCount() {
+        return getInstance().failedTaskCount.get();
+    }
+
+    static long getRejectedTaskCount() {
+        return getInstance().rejectedTaskCount.get();
+    }
+}
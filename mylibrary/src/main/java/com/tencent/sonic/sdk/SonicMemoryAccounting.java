@@ -0,0 +1,154 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ *
+ * <code>SonicMemoryAccounting</code> keeps track of all of the memory held by sonic, such as
+ * preloaded sessions, in-memory caches and the response data buffered by sessions.
+ * Every memory holder registers itself as a {@link MemoryConsumer} with a category, the category
+ * decides the order in which the holder is shed when the system is low on memory.
+ *
+ * See also {@link SonicEngine#onTrimMemory(int)}
+ */
+public class SonicMemoryAccounting {
+
+    /**
+     * Log filter
+     */
+    private static final String TAG = SonicConstants.SONIC_SDK_LOG_PREFIX + "SonicMemoryAccounting";
+
+    /**
+     * Memory category : preloaded sessions, they are shed first.
+     */
+    public static final int CATEGORY_PRELOAD_SESSION = 1;
+
+    /**
+     * Memory category : in-memory caches, such as html or data caches.
+     */
+    public static final int CATEGORY_MEMORY_CACHE = 2;
+
+    /**
+     * Memory category : response data buffered by sessions which are not visible, they are shed last.
+     */
+    public static final int CATEGORY_SESSION_BUFFER = 3;
+
+    /**
+     * An object which holds memory in sonic
+     */
+    public interface MemoryConsumer {
+
+        /**
+         * @return The size (in bytes) of memory held by this consumer now.
+         */
+        long getMemorySize();
+
+        /**
+         * Release the memory which can be released.
+         *
+         * @return The size (in bytes) of memory released.
+         */
+        long trimMemory();
+    }
+
+    private static class ConsumerRecord {
+
+        final int category;
+
+        final MemoryConsumer consumer;
+
+        ConsumerRecord(int category, MemoryConsumer consumer) {
+            this.category = category;
+            this.consumer = consumer;
+        }
+    }
+
+    private final CopyOnWriteArrayList<ConsumerRecord> consumerRecords = new CopyOnWriteArrayList<ConsumerRecord>();
+
+    SonicMemoryAccounting() {
+
+    }
+
+    /**
+     * Register a memory consumer
+     *
+     * @param category One of {@link #CATEGORY_PRELOAD_SESSION}, {@link #CATEGORY_MEMORY_CACHE}
+     *                 and {@link #CATEGORY_SESSION_BUFFER}
+     * @param consumer The memory consumer
+     */
+    public void registerConsumer(int category, MemoryConsumer consumer) {
+        if (null != consumer) {
+            consumerRecords.add(new ConsumerRecord(category, consumer));
+        }
+    }
+
+    public void unregisterConsumer(MemoryConsumer consumer) {
+        for (ConsumerRecord record : consumerRecords) {
+            if (record.consumer == consumer) {
+                consumerRecords.remove(record);
+            }
+        }
+    }
+
+    /**
+     * @param category The memory category
+     * @return The size (in bytes) of memory held by the consumers of this category.
+     */
+    public long getMemorySize(int category) {
+        long size = 0;
+        for (ConsumerRecord record : consumerRecords) {
+            if (record.category == category) {
+                size += record.consumer.getMemorySize();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return The size (in bytes) of memory held by sonic now.
+     */
+    public long getTotalMemorySize() {
+        long size = 0;
+        for (ConsumerRecord record : consumerRecords) {
+            size += record.consumer.getMemorySize();
+        }
+        return size;
+    }
+
+    /**
+     * Release the memory of all the consumers whose category is not greater than <code>maxCategory</code>.
+     *
+     * @param maxCategory The max category to trim
+     * @return The size (in bytes) of memory released.
+     */
+    long trimMemory(int maxCategory) {
+        long releasedSize = 0;
+        for (int category = CATEGORY_PRELOAD_SESSION; category <= maxCategory; ++category) {
+            for (ConsumerRecord record : consumerRecords) {
+                if (record.category == category) {
+                    try {
+                        releasedSize += record.consumer.trimMemory();
+                    } catch (Throwable e) {
+                        SonicUtils.log(TAG, Log.ERROR, "trimMemory error:" + e.getMessage());
+                    }
+                }
+            }
+        }
+        return releasedSize;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * <code>SonicNetworkTimingTracker</code> keeps the recent connect and respond costs of each host, and
+ * derives the connect and read timeouts of sessions from their percentiles when
+ * {@link SonicSessionConfig#ADAPTIVE_TIMEOUT} is enabled.
+ * <p>
+ * A timeout is recorded as a censored sample of at least the timeout, so the timeouts of a host
+ * which becomes slow grow again instead of timing out at the old p95 forever.
+ *
+ */
+class SonicNetworkTimingTracker {
+
+    /**
+     * Log filter
+     */
+    private static final String TAG = SonicConstants.SONIC_SDK_LOG_PREFIX + "SonicNetworkTimingTracker";
+
+    /**
+     * The count of recent samples kept for each host
+     */
+    private static final int WINDOW_SIZE = 32;
+
+    /**
+     * The percentiles are not used until there are enough samples
+     */
+    private static final int MIN_SAMPLE_COUNT = 5;
+
+    /**
+     * The timeout is this times of p95, a connection slower than it is very likely dead
+     */
+    private static final int TIMEOUT_FACTOR = 3;
+
+    /**
+     * Ring of recent samples
+     */
+    private static class Window {
+
+        private final long[] samples = new long[WINDOW_SIZE];
+
+        private int count;
+
+        private int next;
+
+        synchronized void add(long sample) {
+            samples[next] = sample;
+            next = (next + 1) % WINDOW_SIZE;
+            if (count < WINDOW_SIZE) {
+                ++count;
+            }
+        }
+
+        synchronized long percentile(int percentile) {
+            if (count < MIN_SAMPLE_COUNT) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, (count * percentile + 99) / 100 - 1)];
+        }
+    }
+
+    private final ConcurrentHashMap<String, Window> connectWindows = new ConcurrentHashMap<String, Window>();
+
+    private final ConcurrentHashMap<String, Window> respondWindows = new ConcurrentHashMap<String, Window>();
+
+    /**
+     * Record the cost from calling {@link SonicSessionConnection#connect()} to its return.
+     *
+     * @param connectCode The result of connect, only success and timeout are recorded
+     */
+    void recordConnectResult(String url, SonicSessionConfig config, int connectCode, long cost) {
+        if (SonicConstants.ERROR_CODE_SUCCESS == connectCode) {
+            record(connectWindows, url, cost);
+        } else if (SonicConstants.ERROR_CODE_CONNECT_TOE == connectCode) {
+            record(connectWindows, url, Math.max(cost, getConnectTimeout(url, config)));
+        }
+    }
+
+    /**
+     * Record the cost from the return of {@link SonicSessionConnection#connect()} to the return of
+     * {@link SonicSessionConnection#getResponseCode()}, that is the wait for the response headers.
+     *
+     * @param responseCode The response code, only http codes and timeout are recorded
+     */
+    void recordRespondResult(String url, SonicSessionConfig config, int responseCode, long cost) {
+        if (responseCode > 0) {
+            record(respondWindows, url, cost);
+        } else if (SonicConstants.ERROR_CODE_CONNECT_TOE == responseCode) {
+            record(respondWindows, url, Math.max(cost, getReadTimeout(url, config)));
+        }
+    }
+
+    private static void record(ConcurrentHashMap<String, Window> windows, String url, long cost) {
+        String host = getHost(url);
+        if (TextUtils.isEmpty(host) || cost < 0) {
+            return;
+        }
+        Window window = windows.get(host);
+        if (null == window) {
+            window = new Window();
+            Window previous = windows.putIfAbsent(host, window);
+            if (null != previous) {
+                window = previous;
+            }
+        }
+        window.add(cost);
+    }
+
+    /**
+     * @return The p95 connect cost of the host of url, or -1 if there are not enough samples.
+     */
+    long getConnectP95(String url) {
+        return percentile(connectWindows, url, 95);
+    }
+
+    /**
+     * @return The p95 respond cost of the host of url, or -1 if there are not enough samples.
+     */
+    long getRespondP95(String url) {
+        return percentile(respondWindows, url, 95);
+    }
+
+    /**
+     * @return The connect timeout for the url, it is {@link SonicSessionConfig#CONNECT_TIMEOUT_MILLIS}
+     * if adaptive timeout is disabled or there are not enough samples.
+     */
+    int getConnectTimeout(String url, SonicSessionConfig config) {
+        return adapt(config, config.CONNECT_TIMEOUT_MILLIS, percentile(connectWindows, url, 95));
+    }
+
+    /**
+     * @return The read timeout for the url, it is {@link SonicSessionConfig#READ_TIMEOUT_MILLIS}
+     * if adaptive timeout is disabled or there are not enough samples.
+     */
+    int getReadTimeout(String url, SonicSessionConfig config) {
+        return adapt(config, config.READ_TIMEOUT_MILLIS, percentile(respondWindows, url, 95));
+    }
+
+    private static int adapt(SonicSessionConfig config, int defaultTimeout, long p95) {
+        if (!config.ADAPTIVE_TIMEOUT || p95 < 0) {
+            return defaultTimeout;
+        }
+        return clamp(config, p95 * TIMEOUT_FACTOR);
+    }
+
+    static int clamp(SonicSessionConfig config, long timeout) {
+        return (int) Math.max(config.ADAPTIVE_TIMEOUT_FLOOR_MILLIS, Math.min(config.ADAPTIVE_TIMEOUT_CEILING_MILLIS, timeout));
+    }
+
+    private static long percentile(ConcurrentHashMap<String, Window> windows, String url, int percentile) {
+        String host = getHost(url);
+        Window window = TextUtils.isEmpty(host) ? null : windows.get(host);
+        return null != window ? window.percentile(percentile) : -1;
+    }
+
+    private static String getHost(String url) {
+        try {
+            return Uri.parse(url).getHost();
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "getHost error:" + e.getMessage() + ", url = " + url);
+        }
+        return null;
+    }
+}
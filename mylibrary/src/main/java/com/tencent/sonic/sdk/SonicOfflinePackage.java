@@ -0,0 +1,329 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * <code>SonicOfflinePackage</code> is a read only archive of static resources, it is mapped into
+ * memory and the resources are provided to the kernel without being extracted.
+ * <p>
+ * The archive format (big endian):
+ * <pre>
+ * int   magic            "SPKG"
+ * int   format version   1
+ * int   entry count
+ * entry * entry count:
+ *     short  path length, byte[] path (utf-8, relative to the url prefix of package, without query)
+ *     short  mime length, byte[] mime (utf-8)
+ *     long   data offset  (from the beginning of archive, -1 means the entry is removed in a diff archive)
+ *     int    data length
+ * data of all entries
+ * </pre>
+ * A diff archive has the same format, it only contains the added or changed entries, and the
+ * removed entries with data offset -1.
+ *
+ */
+class SonicOfflinePackage {
+
+    static final int MAGIC = 0x53504B47; // "SPKG"
+
+    static final int FORMAT_VERSION = 1;
+
+    static final long REMOVED_OFFSET = -1;
+
+    private static final String CHARSET = "UTF-8";
+
+    /**
+     * Entry in archive index
+     */
+    static class Entry {
+
+        final String path;
+
+        final String mime;
+
+        final long offset;
+
+        final int length;
+
+        Entry(String path, String mime, long offset, int length) {
+            this.path = path;
+            this.mime = mime;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The stream of a slice of mapped buffer
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int byteOffset, int byteCount) throws IOException {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(byteCount, buffer.remaining());
+            buffer.get(b, byteOffset, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            int n = (int) Math.max(0, Math.min(byteCount, buffer.remaining()));
+            buffer.position(buffer.position() + n);
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return buffer.remaining();
+        }
+    }
+
+    final File file;
+
+    private final MappedByteBuffer buffer;
+
+    private final Entry[] entries;
+
+    /**
+     * Open addressing hash table, the value is index of <code>entries</code> plus 1, 0 means empty.
+     */
+    private final int[] slots;
+
+    private SonicOfflinePackage(File file, MappedByteBuffer buffer, Entry[] entries) {
+        this.file = file;
+        this.buffer = buffer;
+        this.entries = entries;
+        int capacity = 16;
+        while (capacity < entries.length * 2) {
+            capacity <<= 1;
+        }
+        slots = new int[capacity];
+        for (int i = 0; i < entries.length; ++i) {
+            int slot = entries[i].path.hashCode() & (capacity - 1);
+            while (0 != slots[slot]) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            slots[slot] = i + 1;
+        }
+    }
+
+    /**
+     * Map the archive into memory and load its index.
+     *
+     * @param file The archive file
+     * @return The package
+     * @throws IOException If the archive is broken
+     */
+    static SonicOfflinePackage open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Entry[] entries = readIndex(buffer, false);
+            return new SonicOfflinePackage(file, buffer, entries);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Read the index of an archive
+     *
+     * @param buffer     The archive
+     * @param allowRemoved Whether the removed entries are allowed, they are only allowed in diff archives
+     * @return The entries
+     * @throws IOException If the archive is broken
+     */
+    static Entry[] readIndex(ByteBuffer buffer, boolean allowRemoved) throws IOException {
+        try {
+            ByteBuffer index = buffer.duplicate();
+            index.position(0);
+            if (MAGIC != index.getInt() || FORMAT_VERSION != index.getInt()) {
+                throw new IOException("not a sonic offline package");
+            }
+            int count = index.getInt();
+            if (count < 0) {
+                throw new IOException("invalid entry count " + count);
+            }
+            Entry[] entries = new Entry[count];
+            for (int i = 0; i < count; ++i) {
+                String path = readString(index);
+                String mime = readString(index);
+                long offset = index.getLong();
+                int length = index.getInt();
+                if (REMOVED_OFFSET == offset ? !allowRemoved : (offset < index.position() || length < 0 || offset + length > buffer.limit())) {
+                    throw new IOException("invalid entry " + path);
+                }
+                entries[i] = new Entry(path, mime, offset, length);
+            }
+            return entries;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("offline package is truncated");
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getShort() & 0xffff;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, CHARSET);
+    }
+
+    private Entry find(String path) {
+        int mask = slots.length - 1;
+        int slot = path.hashCode() & mask;
+        int index;
+        while (0 != (index = slots[slot])) {
+            if (entries[index - 1].path.equals(path)) {
+                return entries[index - 1];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * @param path The path relative to the url prefix of package
+     * @return The mime of the resource, or null if the resource is not in package.
+     */
+    String getMime(String path) {
+        Entry entry = find(path);
+        return null != entry ? entry.mime : null;
+    }
+
+    /**
+     * @param path The path relative to the url prefix of package
+     * @return The stream of the resource which reads the mapped buffer, or null if the resource is not in package.
+     */
+    InputStream openStream(String path) {
+        Entry entry = find(path);
+        if (null == entry) {
+            return null;
+        }
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit((int) entry.offset + entry.length);
+        slice.position((int) entry.offset);
+        return new ByteBufferInputStream(slice.slice());
+    }
+
+    Entry[] getEntries() {
+        return entries;
+    }
+
+    /**
+     * Copy the data of entry to the output
+     */
+    void writeData(Entry entry, FileOutputStream outputStream) throws IOException {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit((int) entry.offset + entry.length);
+        slice.position((int) entry.offset);
+        outputStream.getChannel().write(slice);
+    }
+
+    /**
+     * Build a new archive from the base package and the diff archive.
+     *
+     * @param basePackage The package of base version
+     * @param diffFile    The diff archive
+     * @param outputFile  The new archive
+     * @throws IOException If the diff archive is broken or the new archive can not be written
+     */
+    static void merge(SonicOfflinePackage basePackage, File diffFile, File outputFile) throws IOException {
+        SonicOfflinePackage diffPackage;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(diffFile, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            diffPackage = new SonicOfflinePackage(diffFile, buffer, readIndex(buffer, true));
+        } finally {
+            randomAccessFile.close();
+        }
+
+        List<Entry> mergedEntries = new ArrayList<Entry>();
+        List<SonicOfflinePackage> sources = new ArrayList<SonicOfflinePackage>();
+        for (Entry entry : basePackage.entries) {
+            if (null == diffPackage.find(entry.path)) {
+                mergedEntries.add(entry);
+                sources.add(basePackage);
+            }
+        }
+        for (Entry entry : diffPackage.entries) {
+            if (REMOVED_OFFSET != entry.offset) {
+                mergedEntries.add(entry);
+                sources.add(diffPackage);
+            }
+        }
+        write(mergedEntries, sources, outputFile);
+    }
+
+    private static void write(List<Entry> entries, List<SonicOfflinePackage> sources, File outputFile) throws IOException {
+        int indexSize = 12;
+        for (Entry entry : entries) {
+            indexSize += 2 + entry.path.getBytes(CHARSET).length + 2 + entry.mime.getBytes(CHARSET).length + 8 + 4;
+        }
+        ByteBuffer index = ByteBuffer.allocate(indexSize);
+        index.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(entries.size());
+        long offset = indexSize;
+        for (Entry entry : entries) {
+            byte[] path = entry.path.getBytes(CHARSET);
+            byte[] mime = entry.mime.getBytes(CHARSET);
+            index.putShort((short) path.length).put(path);
+            index.putShort((short) mime.length).put(mime);
+            index.putLong(offset).putInt(entry.length);
+            offset += entry.length;
+        }
+        index.flip();
+
+        FileOutputStream outputStream = new FileOutputStream(outputFile);
+        try {
+            outputStream.getChannel().write(index);
+            for (int i = 0; i < entries.size(); ++i) {
+                sources.get(i).writeData(entries.get(i), outputStream);
+            }
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+    }
+}
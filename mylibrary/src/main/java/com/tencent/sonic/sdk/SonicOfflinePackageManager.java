@@ -0,0 +1,492 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.support.annotation.NonNull;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * <code>SonicOfflinePackageManager</code> manages the offline packages, each package is a versioned
+ * archive of the static resources under an url prefix, see {@link SonicOfflinePackage}.
+ * <p>
+ * Packages are downloaded in background, fully or by diff against the current version, and verified
+ * by sha1. A new version is swapped in atomically: the requests intercepted before the swap read the
+ * old archive, and the requests after it read the new one.
+ * When the kernel intercepts a sub resource request whose url is under the url prefix of a package,
+ * the resource is provided from the mapped archive without being extracted.
+ * <p>
+ * The installed packages are loaded in background when the engine is created, and the packages are
+ * downloaded on a thread of the manager, so neither of them delays the kernel or the I/O threads.
+ *
+ * See also {@link SonicEngine#getOfflinePackageManager()}
+ */
+public class SonicOfflinePackageManager {
+
+    /**
+     * Log filter
+     */
+    private static final String TAG = SonicConstants.SONIC_SDK_LOG_PREFIX + "SonicOfflinePackageManager";
+
+    private static final String PACKAGE_EXT = ".spkg";
+
+    private static final String META_EXT = ".json";
+
+    private static final String TEMP_EXT = ".tmp";
+
+    private static final String DIFF_EXT = ".diff";
+
+    private static final String KEY_URL_PREFIX = "urlPrefix";
+
+    private static final String KEY_VERSION = "version";
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5 * 1000;
+
+    private static final int READ_TIMEOUT_MILLIS = 30 * 1000;
+
+    /**
+     * An installed package, it is immutable and replaced as a whole on update.
+     */
+    private static class InstalledPackage {
+
+        final String name;
+
+        final String urlPrefix;
+
+        final String version;
+
+        final SonicOfflinePackage archive;
+
+        InstalledPackage(String name, String urlPrefix, String version, SonicOfflinePackage archive) {
+            this.name = name;
+            this.urlPrefix = urlPrefix;
+            this.version = version;
+            this.archive = archive;
+        }
+    }
+
+    private final ConcurrentHashMap<String, InstalledPackage> packages = new ConcurrentHashMap<String, InstalledPackage>();
+
+    /**
+     * The names of packages which are being updated
+     */
+    private final ConcurrentHashMap<String, String> updatingPackages = new ConcurrentHashMap<String, String>();
+
+    private volatile boolean loaded;
+
+    /**
+     * The thread which loads and updates the packages
+     */
+    private final ScheduledThreadPoolExecutor updateExecutor = SonicIOScheduler.createExecutor("pool-sonic-package-thread-", 1);
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong updateCount = new AtomicLong();
+
+    private final AtomicLong diffUpdateCount = new AtomicLong();
+
+    private final AtomicLong updateFailedCount = new AtomicLong();
+
+    SonicOfflinePackageManager() {
+
+    }
+
+    /**
+     * Load the installed packages from disk in background.
+     */
+    void preload() {
+        try {
+            updateExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ensureLoaded();
+                }
+            });
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "preload error:" + e.getMessage());
+        }
+    }
+
+    /**
+     * Download and install a package in background.
+     *
+     * @param name       The name of package, only letters, digits, '_' and '-' are allowed
+     * @param urlPrefix  The resources whose url starts with this prefix are provided by the package
+     * @param version    The version of package
+     * @param packageUrl The url of the archive
+     * @param sha1       The sha1 of the archive
+     * @return Returns false if the arguments are invalid or the package is being updated.
+     */
+    public boolean updatePackage(@NonNull String name, @NonNull String urlPrefix, @NonNull String version, @NonNull String packageUrl, @NonNull String sha1) {
+        return updatePackage(name, urlPrefix, version, packageUrl, null, null, sha1);
+    }
+
+    /**
+     * Download and install a package in background. If the installed version is <code>baseVersion</code>,
+     * only the diff archive is downloaded, otherwise or if the diff fails, the whole archive is downloaded.
+     *
+     * @param name        The name of package, only letters, digits, '_' and '-' are allowed
+     * @param urlPrefix   The resources whose url starts with this prefix are provided by the package
+     * @param version     The version of package
+     * @param packageUrl  The url of the archive, it can be null if <code>diffUrl</code> is provided
+     * @param diffUrl     The url of the diff archive from <code>baseVersion</code> to <code>version</code>
+     * @param baseVersion The version which the diff archive is based on
+     * @param sha1        The sha1 of the whole archive of <code>version</code>
+     * @return Returns false if the arguments are invalid or the package is being updated.
+     */
+    public boolean updatePackage(@NonNull final String name, @NonNull final String urlPrefix, @NonNull final String version,
+                                 final String packageUrl, final String diffUrl, final String baseVersion, @NonNull final String sha1) {
+        if (!name.matches("[A-Za-z0-9_-]+") || TextUtils.isEmpty(urlPrefix) || !version.matches("[A-Za-z0-9._-]+")
+                || TextUtils.isEmpty(sha1) || (TextUtils.isEmpty(packageUrl) && TextUtils.isEmpty(diffUrl))) {
+            SonicUtils.log(TAG, Log.ERROR, "updatePackage error:invalid arguments, name = " + name + ", version = " + version + ".");
+            return false;
+        }
+        if (null != updatingPackages.putIfAbsent(name, version)) {
+            SonicUtils.log(TAG, Log.ERROR, "updatePackage error:package(" + name + ") is being updated.");
+            return false;
+        }
+        try {
+            updateExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!installPackage(name, urlPrefix, version, packageUrl, diffUrl, baseVersion, sha1)) {
+                            updateFailedCount.incrementAndGet();
+                        }
+                    } finally {
+                        updatingPackages.remove(name);
+                    }
+                }
+            });
+        } catch (Throwable e) {
+            updatingPackages.remove(name);
+            SonicUtils.log(TAG, Log.ERROR, "updatePackage error:" + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    private boolean installPackage(String name, String urlPrefix, String version, String packageUrl, String diffUrl, String baseVersion, String sha1) {
+        ensureLoaded();
+        InstalledPackage current = packages.get(name);
+        if (null != current && version.equals(current.version) && urlPrefix.equals(current.urlPrefix)) {
+            SonicUtils.log(TAG, Log.INFO, "installPackage:package(" + name + ") version " + version + " is installed already.");
+            return true;
+        }
+
+        long startTime = System.currentTimeMillis();
+        String dirPath = SonicFileUtils.getSonicOfflinePackageDirPath();
+        File packageFile = new File(dirPath + name + "_" + version + PACKAGE_EXT);
+        File tempFile = new File(packageFile.getAbsolutePath() + TEMP_EXT);
+        boolean isDiff = false;
+
+        if (!TextUtils.isEmpty(diffUrl) && null != current && current.version.equals(baseVersion)) {
+            File diffFile = new File(packageFile.getAbsolutePath() + DIFF_EXT);
+            try {
+                if (download(diffUrl, diffFile)) {
+                    SonicOfflinePackage.merge(current.archive, diffFile, tempFile);
+                    isDiff = verify(tempFile, sha1);
+                }
+            } catch (Throwable e) {
+                SonicUtils.log(TAG, Log.ERROR, "installPackage error:merge diff of package(" + name + ") fail, " + e.getMessage());
+            } finally {
+                diffFile.delete();
+            }
+        }
+
+        if (!isDiff && (TextUtils.isEmpty(packageUrl) || !download(packageUrl, tempFile) || !verify(tempFile, sha1))) {
+            tempFile.delete();
+            return false;
+        }
+
+        try {
+            if (!tempFile.renameTo(packageFile)) {
+                SonicUtils.log(TAG, Log.ERROR, "installPackage error:rename package(" + name + ") fail.");
+                tempFile.delete();
+                return false;
+            }
+            SonicOfflinePackage archive = SonicOfflinePackage.open(packageFile);
+            JSONObject meta = new JSONObject();
+            meta.put(KEY_URL_PREFIX, urlPrefix);
+            meta.put(KEY_VERSION, version);
+            File metaFile = new File(dirPath + name + META_EXT);
+            File tempMetaFile = new File(metaFile.getAbsolutePath() + TEMP_EXT);
+            if (!SonicFileUtils.writeFile(meta.toString(), tempMetaFile.getAbsolutePath()) || !tempMetaFile.renameTo(metaFile)) {
+                SonicUtils.log(TAG, Log.ERROR, "installPackage error:save meta of package(" + name + ") fail.");
+                tempMetaFile.delete();
+                packageFile.delete();
+                return false;
+            }
+
+            // Swap atomically, the old archive stays mapped until nobody reads it
+            packages.put(name, new InstalledPackage(name, urlPrefix, version, archive));
+            if (null != current && !current.archive.file.equals(packageFile)) {
+                current.archive.file.delete();
+            }
+            updateCount.incrementAndGet();
+            if (isDiff) {
+                diffUpdateCount.incrementAndGet();
+            }
+            SonicUtils.log(TAG, Log.INFO, "installPackage:package(" + name + ") version " + version + " is installed" + (isDiff ? " by diff" : "")
+                    + ", entries = " + archive.getEntries().length + ", cost " + (System.currentTimeMillis() - startTime) + " ms.");
+            return true;
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "installPackage error:package(" + name + ") " + e.getMessage());
+            packageFile.delete();
+        }
+        return false;
+    }
+
+    private boolean verify(File file, String sha1) {
+        if (sha1.equalsIgnoreCase(SonicUtils.getSHA1(file))) {
+            return true;
+        }
+        SonicUtils.log(TAG, Log.ERROR, "verify error:sha1 of " + file.getName() + " does not match.");
+        return false;
+    }
+
+    private boolean download(String url, File file) {
+        HttpURLConnection connection = null;
+        InputStream inputStream = null;
+        FileOutputStream outputStream = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            int responseCode = connection.getResponseCode();
+            if (HttpURLConnection.HTTP_OK != responseCode) {
+                SonicUtils.log(TAG, Log.ERROR, "download error:response code = " + responseCode + ", url = " + url);
+                return false;
+            }
+            inputStream = connection.getInputStream();
+            outputStream = new FileOutputStream(file);
+            byte[] buffer = new byte[1024 * 10];
+            int n;
+            while (-1 != (n = inputStream.read(buffer))) {
+                outputStream.write(buffer, 0, n);
+            }
+            outputStream.getFD().sync();
+            return true;
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "download error:" + e.getMessage() + ", url = " + url);
+        } finally {
+            try {
+                if (null != outputStream) {
+                    outputStream.close();
+                }
+                if (null != inputStream) {
+                    inputStream.close();
+                }
+            } catch (Throwable e) {
+                SonicUtils.log(TAG, Log.ERROR, "download close error:" + e.getMessage());
+            }
+            if (null != connection) {
+                connection.disconnect();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove the package, its resources will be loaded by the kernel.
+     *
+     * @param name The name of package
+     */
+    public void removePackage(@NonNull String name) {
+        ensureLoaded();
+        InstalledPackage current = packages.remove(name);
+        File metaFile = new File(SonicFileUtils.getSonicOfflinePackageDirPath() + name + META_EXT);
+        if (metaFile.exists() && !metaFile.delete()) {
+            SonicUtils.log(TAG, Log.ERROR, "removePackage error:delete meta of package(" + name + ") fail.");
+        }
+        if (null != current) {
+            current.archive.file.delete();
+        }
+    }
+
+    /**
+     * @param name The name of package
+     * @return The version installed, or null if the package is not installed.
+     */
+    public String getPackageVersion(@NonNull String name) {
+        ensureLoaded();
+        InstalledPackage current = packages.get(name);
+        return null != current ? current.version : null;
+    }
+
+    /**
+     * Provide the resource to the kernel if it is in an offline package.
+     *
+     * @param url The url of the resource
+     * @return The web resource response created by {@link SonicRuntime#createWebResourceResponse},
+     *         or null if the resource is not in any offline package.
+     */
+    Object getResourceResponse(String url) {
+        if (TextUtils.isEmpty(url)) {
+            return null;
+        }
+        if (!loaded) {
+            // Never wait for the disk on the thread of kernel
+            preload();
+            return null;
+        }
+        for (InstalledPackage installedPackage : packages.values()) {
+            if (!isUnderPrefix(url, installedPackage.urlPrefix)) {
+                continue;
+            }
+            String path = url.substring(installedPackage.urlPrefix.length());
+            int end = path.length();
+            int queryIndex = path.indexOf('?');
+            int fragmentIndex = path.indexOf('#');
+            if (queryIndex >= 0) {
+                end = queryIndex;
+            }
+            if (fragmentIndex >= 0 && fragmentIndex < end) {
+                end = fragmentIndex;
+            }
+            path = path.substring(0, end);
+            InputStream inputStream = installedPackage.archive.openStream(path);
+            if (null != inputStream) {
+                hitCount.incrementAndGet();
+                if (SonicUtils.shouldLog(Log.DEBUG)) {
+                    SonicUtils.log(TAG, Log.DEBUG, "getResourceResponse:hit package(" + installedPackage.name + ") version " + installedPackage.version + ", url = " + url);
+                }
+                String mime = installedPackage.archive.getMime(path);
+                String encoding = mime.startsWith("image/") || mime.startsWith("font/") ? null : "utf-8";
+                return SonicEngine.getInstance().getRuntime().createWebResourceResponse(mime, encoding, inputStream, new HashMap<String, String>());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Whether the url is the prefix itself or under it, "https://a.com/app" matches
+     *         "https://a.com/app/index.js" but not "https://a.com/apple/index.js".
+     */
+    private static boolean isUnderPrefix(String url, String urlPrefix) {
+        if (!url.startsWith(urlPrefix)) {
+            return false;
+        }
+        if (url.length() == urlPrefix.length() || urlPrefix.endsWith("/")) {
+            return true;
+        }
+        char next = url.charAt(urlPrefix.length());
+        return '/' == next || '?' == next || '#' == next;
+    }
+
+    /**
+     * Load the installed packages from disk, the package files which are not referred by any meta
+     * (left by an update which is interrupted before its meta is saved) are deleted.
+     */
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            long startTime = System.currentTimeMillis();
+            File[] files = new File(SonicFileUtils.getSonicOfflinePackageDirPath()).listFiles();
+            if (null != files) {
+                List<File> packageFiles = new ArrayList<File>();
+                for (File file : files) {
+                    String fileName = file.getName();
+                    if (fileName.endsWith(TEMP_EXT) || fileName.endsWith(DIFF_EXT)) {
+                        file.delete(); // left by an interrupted update
+                    } else if (fileName.endsWith(PACKAGE_EXT)) {
+                        packageFiles.add(file);
+                    } else if (fileName.endsWith(META_EXT)) {
+                        String name = fileName.substring(0, fileName.length() - META_EXT.length());
+                        try {
+                            JSONObject meta = new JSONObject(SonicFileUtils.readFile(file));
+                            String urlPrefix = meta.optString(KEY_URL_PREFIX, null);
+                            String version = meta.optString(KEY_VERSION, null);
+                            File packageFile = new File(SonicFileUtils.getSonicOfflinePackageDirPath() + name + "_" + version + PACKAGE_EXT);
+                            if (!TextUtils.isEmpty(urlPrefix) && !TextUtils.isEmpty(version) && packageFile.exists()) {
+                                packages.put(name, new InstalledPackage(name, urlPrefix, version, SonicOfflinePackage.open(packageFile)));
+                            }
+                        } catch (Throwable e) {
+                            SonicUtils.log(TAG, Log.ERROR, "ensureLoaded error:package(" + name + ") " + e.getMessage());
+                        }
+                    }
+                }
+                Set<String> installedPaths = new HashSet<String>();
+                for (InstalledPackage installedPackage : packages.values()) {
+                    installedPaths.add(installedPackage.archive.file.getAbsolutePath());
+                }
+                for (File packageFile : packageFiles) {
+                    if (!installedPaths.contains(packageFile.getAbsolutePath()) && packageFile.delete()) {
+                        SonicUtils.log(TAG, Log.INFO, "ensureLoaded:delete orphan package file " + packageFile.getName() + ".");
+                    }
+                }
+            }
+            loaded = true;
+            SonicUtils.log(TAG, Log.INFO, "ensureLoaded:load " + packages.size() + " packages, cost " + (System.currentTimeMillis() - startTime) + " ms.");
+        }
+    }
+
+    /**
+     * Forget all of the installed packages, the files are deleted by the caller.
+     */
+    synchronized void clear() {
+        packages.clear();
+        loaded = false;
+    }
+
+    /**
+     * @return The count of resources provided by offline packages.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return The count of packages installed or updated.
+     */
+    public long getUpdateCount() {
+        return updateCount.get();
+    }
+
+    /**
+     * @return The count of packages updated by diff.
+     */
+    public long getDiffUpdateCount() {
+        return diffUpdateCount.get();
+    }
+
+    /**
+     * @return The count of updates which failed.
+     */
+    public long getUpdateFailedCount() {
+        return updateFailedCount.get();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * <code>SonicPreloadSessionSweeper</code> destroys preloaded sessions which have expired
+ * ({@link SonicSessionConfig#PRELOAD_SESSION_EXPIRED_TIME}) but have never been picked up.
+ * Preloaded sessions are kept in a queue ordered by their expiry time, so each sweep only
+ * looks at the head of the queue and the next sweep is scheduled exactly at the next expiry.
+ *
+ */
+class SonicPreloadSessionSweeper implements Runnable {
+
+    /**
+     * Expiry record of a preloaded session
+     */
+    static class ExpireEntry implements Comparable<ExpireEntry> {
+
+        final String sessionId;
+
+        /**
+         * Log id of the session, used to make sure the session in preload pool is the same one
+         */
+        final long sId;
+
+        final long expireTime;
+
+        ExpireEntry(String sessionId, long sId, long expireTime) {
+            this.sessionId = sessionId;
+            this.sId = sId;
+            this.expireTime = expireTime;
+        }
+
+        @Override
+        public int compareTo(ExpireEntry other) {
+            return expireTime < other.expireTime ? -1 : (expireTime == other.expireTime ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<ExpireEntry> expireQueue = new PriorityQueue<ExpireEntry>();
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The time of the next scheduled sweep, <code>Long.MAX_VALUE</code> means no sweep is scheduled
+     */
+    private long nextSweepTime = Long.MAX_VALUE;
+
+    /**
+     * The count of expired preloaded sessions which have been destroyed by sweeper
+     */
+    private final AtomicLong sweptSessionCount = new AtomicLong(0);
+
+    /**
+     * The size of buffered response data which has been released by sweeper
+     */
+    private final AtomicLong reclaimedBytes = new AtomicLong(0);
+
+    /**
+     * Start tracking a preloaded session.
+     *
+     * @param session The preloaded session
+     */
+    synchronized void track(SonicSession session) {
+        long expiredTime = session.config.PRELOAD_SESSION_EXPIRED_TIME;
+        if (expiredTime <= 0) {
+            return;
+        }
+        ExpireEntry entry = new ExpireEntry(session.id, session.sId, session.createdTime + expiredTime);
+        expireQueue.offer(entry);
+        if (entry.expireTime < nextSweepTime) {
+            schedule(entry.expireTime);
+        }
+    }
+
+    /**
+     * Remove all of the entries whose expiry time is before <code>now</code>.
+     *
+     * @param now Current time
+     * @return The expired entries
+     */
+    synchronized List<ExpireEntry> pollExpired(long now) {
+        List<ExpireEntry> expiredEntries = new ArrayList<ExpireEntry>();
+        while (!expireQueue.isEmpty() && expireQueue.peek().expireTime <= now) {
+            expiredEntries.add(expireQueue.poll());
+        }
+        nextSweepTime = Long.MAX_VALUE;
+        if (!expireQueue.isEmpty()) {
+            schedule(expireQueue.peek().expireTime);
+        }
+        return expiredEntries;
+    }
+
+    /**
+     * Drop all of the tracked entries, it is called when the preload pool is cleared.
+     */
+    synchronized void clear() {
+        expireQueue.clear();
+        handler.removeCallbacks(this);
+        nextSweepTime = Long.MAX_VALUE;
+    }
+
+    void onSessionSwept(long releasedBytes) {
+        sweptSessionCount.incrementAndGet();
+        reclaimedBytes.addAndGet(releasedBytes);
+    }
+
+    long getSweptSessionCount() {
+        return sweptSessionCount.get();
+    }
+
+    long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    private void schedule(long sweepTime) {
+        handler.removeCallbacks(this);
+        nextSweepTime = sweepTime;
+        handler.postDelayed(this, Math.max(0, sweepTime - System.currentTimeMillis()));
+    }
+
+    @Override
+    public void run() {
+        SonicEngine.getInstance().sweepExpiredPreloadSessions();
+    }
+}
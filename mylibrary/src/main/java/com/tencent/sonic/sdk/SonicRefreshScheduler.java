@@ -0,0 +1,335 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * <code>SonicRefreshScheduler</code> revalidates the cached sessions in background, so the next
+ * visit of a session gets 304 instead of showing stale data and refreshing it.
+ * <p>
+ * Every {@link SonicConfig#BACKGROUND_REFRESH_INTERVAL}, if sonic is idle and the network is
+ * unmetered (and the device is charging if {@link SonicConfig#BACKGROUND_REFRESH_REQUIRE_CHARGING}),
+ * the sessions are refreshed in the order of visit frequency * cache age until
+ * {@link SonicConfig#BACKGROUND_REFRESH_BYTE_BUDGET} is used up. The responses are saved in the
+ * same way as a batch revalidation, see {@link SonicBatchRevalidator#apply(String, JSONObject)}.
+ * <p>
+ * The refresh requests run on a background thread of their own, so they never delay the cache
+ * work of sessions on {@link SonicRuntime#postTaskToThread(Runnable, long)}.
+ *
+ */
+class SonicRefreshScheduler {
+
+    /**
+     * Log filter
+     */
+    private static final String TAG = SonicConstants.SONIC_SDK_LOG_PREFIX + "SonicRefreshScheduler";
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * A cached session which can be refreshed
+     */
+    private static class Candidate {
+
+        final SonicDataHelper.SessionVisit visit;
+
+        final SonicDataHelper.SessionData sessionData;
+
+        final double score;
+
+        Candidate(SonicDataHelper.SessionVisit visit, SonicDataHelper.SessionData sessionData, double score) {
+            this.visit = visit;
+            this.sessionData = sessionData;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Timeouts and content decoders of the periodic refresh requests
+     */
+    private final SonicSessionConfig sessionConfig = new SonicSessionConfig.Builder().build();
+
+    private final AtomicBoolean isScheduled = new AtomicBoolean(false);
+
+    /**
+     * The thread which refreshes sessions, it exits when it is idle for a while
+     */
+    private final ScheduledThreadPoolExecutor refreshExecutor;
+
+    private volatile long lastSessionTime;
+
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    private final AtomicLong receivedBytes = new AtomicLong();
+
+    SonicRefreshScheduler() {
+        refreshExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "pool-sonic-refresh-thread");
+                thread.setDaemon(false);
+                return thread;
+            }
+        });
+        refreshExecutor.setKeepAliveTime(30L, TimeUnit.SECONDS);
+        refreshExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Start the periodic check, it does nothing if {@link SonicConfig#BACKGROUND_REFRESH_INTERVAL} <= 0.
+     */
+    void start() {
+        lastSessionTime = System.currentTimeMillis();
+        schedule();
+    }
+
+    /**
+     * Record the visit of session, which makes the session more valuable to refresh.
+     */
+    void onSessionCreated(final String sessionId, final String url) {
+        lastSessionTime = System.currentTimeMillis();
+        if (SonicEngine.getInstance().getConfig().BACKGROUND_REFRESH_INTERVAL <= 0) {
+            return;
+        }
+        SonicEngine.getInstance().getRuntime().postTaskToThread(new Runnable() {
+            @Override
+            public void run() {
+                SonicDataHelper.recordSessionVisit(sessionId, url);
+            }
+        }, 0);
+    }
+
+    /**
+     * Refresh the cache of a session whose stale cache is being used, see {@link SonicSessionConfig#CACHE_STALE_TIME}.
+     * The page is not notified, the new cache is used by the next visit.
+     */
+    void refreshInBackground(final String sessionId, final String url, final SonicSessionConfig config) {
+        postTask(new Runnable() {
+            @Override
+            public void run() {
+                if (SonicEngine.getInstance().getCircuitBreaker().allowRequest(url)) {
+                    refreshSession(sessionId, url, SonicDataHelper.getSessionData(sessionId), config, Long.MAX_VALUE);
+                }
+            }
+        }, 0);
+    }
+
+    private void postTask(Runnable task, long delayMillis) {
+        try {
+            refreshExecutor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "post task error:" + e.getMessage());
+        }
+    }
+
+    private void schedule() {
+        long interval = SonicEngine.getInstance().getConfig().BACKGROUND_REFRESH_INTERVAL;
+        if (interval <= 0 || !isScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        postTask(new Runnable() {
+            @Override
+            public void run() {
+                isScheduled.set(false);
+                try {
+                    if (isIdle() && isRefreshAllowed()) {
+                        refresh();
+                    }
+                } catch (Throwable e) {
+                    SonicUtils.log(TAG, Log.ERROR, "refresh error:" + e.getMessage());
+                }
+                schedule();
+            }
+        }, interval);
+    }
+
+    private boolean isIdle() {
+        return !SonicEngine.getInstance().hasRunningSession()
+                && System.currentTimeMillis() - lastSessionTime >= SonicEngine.getInstance().getConfig().BACKGROUND_REFRESH_IDLE_TIME;
+    }
+
+    private boolean isRefreshAllowed() {
+        SonicRuntime runtime = SonicEngine.getInstance().getRuntime();
+        if (!runtime.isNetworkValid() || !runtime.isNetworkUnmetered()) {
+            return false;
+        }
+        return !SonicEngine.getInstance().getConfig().BACKGROUND_REFRESH_REQUIRE_CHARGING || runtime.isCharging();
+    }
+
+    private void refresh() {
+        SonicEngine engine = SonicEngine.getInstance();
+        SonicConfig config = engine.getConfig();
+        long startTime = System.currentTimeMillis();
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        for (SonicDataHelper.SessionVisit visit : SonicDataHelper.getSessionVisits()) {
+            SonicDataHelper.SessionData sessionData = SonicDataHelper.getSessionData(visit.sessionId);
+            long age = startTime - sessionData.templateUpdateTime;
+            if (TextUtils.isEmpty(sessionData.etag) || age < config.BACKGROUND_REFRESH_MIN_AGE) {
+                continue;
+            }
+            // Visits per day since the first visit
+            double frequency = visit.count * (double) DAY_MILLIS / Math.max(DAY_MILLIS, startTime - visit.firstVisitTime);
+            candidates.add(new Candidate(visit, sessionData, frequency * age));
+        }
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate lhs, Candidate rhs) {
+                return Double.compare(rhs.score, lhs.score);
+            }
+        });
+
+        long byteBudget = config.BACKGROUND_REFRESH_BYTE_BUDGET;
+        int count = 0;
+        for (Candidate candidate : candidates) {
+            if (byteBudget <= 0 || !isIdle()) {
+                break;
+            }
+            String sessionId = candidate.visit.sessionId;
+            String url = candidate.visit.url;
+            if (engine.isSessionInUse(sessionId) || !engine.isSessionAvailable(sessionId, url) || !engine.getCircuitBreaker().allowRequest(url)) {
+                continue;
+            }
+            byteBudget -= refreshSession(sessionId, url, candidate.sessionData, sessionConfig, byteBudget);
+            ++count;
+        }
+        SonicUtils.log(TAG, Log.INFO, "refresh " + count + " of " + candidates.size() + " sessions, cost " + (System.currentTimeMillis() - startTime) + " ms.");
+    }
+
+    /**
+     * @return The bytes received, it is the byte budget if the response exceeds the budget.
+     */
+    private long refreshSession(String sessionId, String url, SonicDataHelper.SessionData sessionData, SonicSessionConfig sessionConfig, long byteBudget) {
+        SonicEngine engine = SonicEngine.getInstance();
+        HttpURLConnection connection = null;
+        try {
+            URLConnection urlConnection = SonicSessionConnection.SessionConnectionDefaultImpl.openConnection(url, engine.getHostDirectAddress(url));
+            if (!(urlConnection instanceof HttpURLConnection)) {
+                return 0;
+            }
+            connection = (HttpURLConnection) urlConnection;
+            SonicNetworkTimingTracker timingTracker = engine.getNetworkTimingTracker();
+            connection.setConnectTimeout(timingTracker.getConnectTimeout(url, sessionConfig));
+            connection.setReadTimeout(timingTracker.getReadTimeout(url, sessionConfig));
+            SonicSessionConnection.SessionConnectionDefaultImpl.setRequestHeaders(connection, url, sessionConfig, sessionData.etag, sessionData.templateTag);
+            List<SonicContentDecoder> decoders = SonicContentDecoder.getDecoders(sessionConfig.contentDecoders);
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode >= 500) {
+                engine.getCircuitBreaker().onFailure(url);
+            } else {
+                engine.getCircuitBreaker().onSuccess(url);
+            }
+            if (HttpURLConnection.HTTP_NOT_MODIFIED != responseCode && HttpURLConnection.HTTP_OK != responseCode) {
+                // Keep the cache, the session handles the response when it is visited
+                SonicUtils.log(TAG, Log.INFO, "refreshSession:session(" + sessionId + ") response code = " + responseCode + ", ignore.");
+                return 0;
+            }
+
+            JSONObject result = new JSONObject();
+            result.put("code", responseCode);
+            result.put(SonicSessionConnection.HTTP_HEAD_CACHE_CONTROL.toLowerCase(), connection.getHeaderField(SonicSessionConnection.HTTP_HEAD_CACHE_CONTROL));
+            long bytes = 0;
+            if (HttpURLConnection.HTTP_OK == responseCode) {
+                byte[] body = read(connection.getInputStream(), byteBudget);
+                if (null == body) {
+                    SonicUtils.log(TAG, Log.INFO, "refreshSession:session(" + sessionId + ") response exceeds the byte budget " + byteBudget + ".");
+                    receivedBytes.addAndGet(byteBudget);
+                    return byteBudget;
+                }
+                bytes = body.length;
+                InputStream inputStream = SonicContentDecoder.decode(decoders, connection.getContentEncoding(), new ByteArrayInputStream(body));
+                String bodyString = new String(read(inputStream, Long.MAX_VALUE), "UTF-8");
+
+                String templateChange = connection.getHeaderField(SonicSessionConnection.CUSTOM_HEAD_FILED_TEMPLATE_CHANGE);
+                result.put(SonicSessionConnection.CUSTOM_HEAD_FILED_ETAG, connection.getHeaderField(SonicSessionConnection.CUSTOM_HEAD_FILED_ETAG));
+                result.put(SonicSessionConnection.CUSTOM_HEAD_FILED_TEMPLATE_TAG, connection.getHeaderField(SonicSessionConnection.CUSTOM_HEAD_FILED_TEMPLATE_TAG));
+                result.put(SonicSessionConnection.CUSTOM_HEAD_FILED_TEMPLATE_CHANGE, templateChange);
+                result.put(SonicSessionConnection.CUSTOM_HEAD_FILED_CACHE_OFFLINE, connection.getHeaderField(SonicSessionConnection.CUSTOM_HEAD_FILED_CACHE_OFFLINE));
+                if ("false".equals(templateChange) || "0".equals(templateChange)) {
+                    JSONObject serverRspJson = new JSONObject(bodyString);
+                    result.put("data", serverRspJson.optJSONObject("data"));
+                    result.put("html-sha1", serverRspJson.optString("html-sha1"));
+                } else {
+                    result.put("html", bodyString);
+                }
+            }
+            engine.getBatchRevalidator().apply(sessionId, result);
+            refreshCount.incrementAndGet();
+            receivedBytes.addAndGet(bytes);
+            return bytes;
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "refreshSession:session(" + sessionId + ") error:" + e.getMessage());
+        } finally {
+            if (null != connection) {
+                connection.disconnect();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return The bytes of stream, or null if the stream is longer than limit.
+     */
+    private static byte[] read(InputStream inputStream, long limit) throws Exception {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024 * 10];
+            int n;
+            while (-1 != (n = inputStream.read(buffer))) {
+                output.write(buffer, 0, n);
+                if (output.size() > limit) {
+                    return null;
+                }
+            }
+            return output.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+}
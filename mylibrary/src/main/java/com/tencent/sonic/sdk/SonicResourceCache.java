@@ -0,0 +1,831 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * <code>SonicResourceCache</code> caches the sub resources (css, js, images and fonts) of sonic pages
+ * on disk, and provides them to the kernel when the kernel intercepts the requests of them.
+ * <p>
+ * The cache honours the HTTP validators and freshness headers (ETag, Last-Modified, Cache-Control
+ * and Expires). A fresh resource is provided from disk directly, a stale one is provided from disk
+ * and revalidated in background, and a missing one is loaded by the kernel and downloaded into the
+ * cache in background. A stale resource which must be revalidated is loaded by the kernel, and it is
+ * revalidated when it is prefetched next time. The cache is limited by {@link SonicConfig#RESOURCE_CACHE_MAX_SIZE}, the least
+ * recently used resources are removed first.
+ * <p>
+ * The index of the cache is loaded in background when the engine is created, requests before it
+ * is loaded are loaded by the kernel. The downloads of missing resources run on threads of the cache,
+ * so they never delay the tasks on {@link SonicRuntime#postTaskToThread(Runnable, long)}.
+ *
+ * See also {@link SonicEngine#getResourceCache()}
+ */
+public class SonicResourceCache {
+
+    /**
+     * Log filter
+     */
+    private static final String TAG = SonicConstants.SONIC_SDK_LOG_PREFIX + "SonicResourceCache";
+
+    /**
+     * Resource data extensions
+     */
+    private static final String RESOURCE_EXT = ".res";
+
+    /**
+     * Resource meta extensions
+     */
+    private static final String META_EXT = ".meta";
+
+    private static final String TEMP_EXT = ".tmp";
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5 * 1000;
+
+    private static final int READ_TIMEOUT_MILLIS = 15 * 1000;
+
+    private static final int READ_BUF_SIZE = 1024 * 10;
+
+    /**
+     * A single resource can not be larger than 1/8 of the cache
+     */
+    private static final int MAX_ENTRY_SIZE_RATIO = 8;
+
+    /**
+     * The extensions of the resources cached
+     */
+    private static final String[] RESOURCE_EXTENSIONS = {".css", ".js", ".png", ".jpg", ".jpeg", ".gif", ".webp", ".svg", ".ico", ".woff", ".woff2", ".ttf", ".otf"};
+
+    private static final int FETCH_THREAD_POOL_SIZE = 2;
+
+    /**
+     * The response headers kept with the resource and provided to the kernel
+     */
+    private static final String[] KEPT_HEADERS = {"Access-Control-Allow-Origin", "Cache-Control", "ETag", "Last-Modified", "Timing-Allow-Origin"};
+
+    /**
+     * The max count of prefetches which are queued or running, so a resource requested by the kernel
+     * waits behind a few prefetches at most
+     */
+    private static final int MAX_PENDING_PREFETCH_COUNT = 4;
+
+    /**
+     * Cached resource
+     */
+    static class Entry {
+
+        String url;
+
+        String mime;
+
+        String encoding;
+
+        String eTag;
+
+        String lastModified;
+
+        /**
+         * The time (in milliseconds) after which the resource must be revalidated
+         */
+        long expiresTime;
+
+        /**
+         * The stale resource can not be used until it is revalidated
+         */
+        boolean mustRevalidate;
+
+        long size;
+
+        HashMap<String, String> headers = new HashMap<String, String>();
+
+        boolean isFresh(long now) {
+            return now < expiresTime;
+        }
+
+        JSONObject toJson() throws Exception {
+            JSONObject json = new JSONObject();
+            json.put("url", url);
+            json.put("mime", mime);
+            json.put("encoding", encoding);
+            json.put("eTag", eTag);
+            json.put("lastModified", lastModified);
+            json.put("expiresTime", expiresTime);
+            json.put("mustRevalidate", mustRevalidate);
+            json.put("size", size);
+            json.put("headers", new JSONObject(headers));
+            return json;
+        }
+
+        static Entry fromJson(JSONObject json) {
+            Entry entry = new Entry();
+            entry.url = json.optString("url", null);
+            entry.mime = json.optString("mime", null);
+            entry.encoding = json.optString("encoding", null);
+            entry.eTag = json.optString("eTag", null);
+            entry.lastModified = json.optString("lastModified", null);
+            entry.expiresTime = json.optLong("expiresTime");
+            entry.mustRevalidate = json.optBoolean("mustRevalidate");
+            entry.size = json.optLong("size");
+            JSONObject headers = json.optJSONObject("headers");
+            if (null != headers) {
+                Iterator<String> keys = headers.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    entry.headers.put(key, headers.optString(key));
+                }
+            }
+            return entry;
+        }
+    }
+
+    private final long maxSize;
+
+    /**
+     * All of the cached resources in access order, key is the md5 of url
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(32, 0.75f, true);
+
+    /**
+     * The urls which are being downloaded or revalidated
+     */
+    private final Set<String> fetchingUrls = new HashSet<String>();
+
+    /**
+     * The count of prefetches which are queued or running
+     */
+    private int pendingPrefetchCount;
+
+    private boolean loaded;
+
+    private boolean loading;
+
+    /**
+     * Increased when the cache is cleared, so an index loaded before is dropped
+     */
+    private int generation;
+
+    /**
+     * The threads which load the index and download the missing or stale resources
+     */
+    private final ScheduledThreadPoolExecutor fetchExecutor = SonicIOScheduler.createExecutor("pool-sonic-resource-thread-", FETCH_THREAD_POOL_SIZE);
+
+    private long totalSize;
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong staleHitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong downloadCount = new AtomicLong();
+
+    private final AtomicLong notModifiedCount = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    private final AtomicLong prefetchCount = new AtomicLong();
+
+    SonicResourceCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Load the index of cached resources from disk in background.
+     */
+    void preload() {
+        if (maxSize <= 0) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded || loading) {
+                return;
+            }
+            loading = true;
+        }
+        try {
+            fetchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    load();
+                }
+            });
+        } catch (Throwable e) {
+            synchronized (this) {
+                loading = false;
+            }
+            SonicUtils.log(TAG, Log.ERROR, "preload error:" + e.getMessage());
+        }
+    }
+
+    /**
+     * @return Whether the resource of the url can be cached.
+     */
+    boolean isCacheable(String url) {
+        if (maxSize <= 0 || TextUtils.isEmpty(url)) {
+            return false;
+        }
+        try {
+            URL resourceUrl = new URL(url);
+            String protocol = resourceUrl.getProtocol();
+            if (!"http".equals(protocol) && !"https".equals(protocol)) {
+                return false;
+            }
+            String path = resourceUrl.getPath().toLowerCase(Locale.US);
+            for (String extension : RESOURCE_EXTENSIONS) {
+                if (path.endsWith(extension)) {
+                    return true;
+                }
+            }
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "isCacheable error:" + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Provide the resource to the kernel if it is cached, it is called when the kernel intercepts a
+     * sub resource request of sonic page.
+     *
+     * @param url The url of the resource
+     * @return The web resource response created by {@link SonicRuntime#createWebResourceResponse},
+     *         or null if the kernel should load the resource by itself.
+     */
+    Object getResourceResponse(String url) {
+        if (!isCacheable(url)) {
+            return null;
+        }
+        requestCount.incrementAndGet();
+        String key = SonicUtils.getMD5(url);
+        Entry entry;
+        boolean isLoaded;
+        synchronized (this) {
+            isLoaded = loaded;
+            entry = entries.get(key);
+        }
+        if (!isLoaded) {
+            // Never wait for the disk on the thread of kernel
+            missCount.incrementAndGet();
+            preload();
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        if (null == entry) {
+            missCount.incrementAndGet();
+            scheduleFetch(url);
+            return null;
+        }
+
+        boolean isFresh = entry.isFresh(now);
+        if (!isFresh) {
+            if (entry.mustRevalidate) {
+                // The kernel requests the resource itself, revalidating it here would download it twice
+                missCount.incrementAndGet();
+                return null;
+            }
+            scheduleFetch(url);
+        }
+
+        InputStream inputStream;
+        try {
+            inputStream = new FileInputStream(getResourceFile(key));
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "getResourceResponse error:" + e.getMessage() + ", url = " + url);
+            remove(key);
+            missCount.incrementAndGet();
+            return null;
+        }
+        if (isFresh) {
+            hitCount.incrementAndGet();
+        } else {
+            staleHitCount.incrementAndGet();
+        }
+        if (SonicUtils.shouldLog(Log.DEBUG)) {
+            SonicUtils.log(TAG, Log.DEBUG, "getResourceResponse:hit " + (isFresh ? "fresh" : "stale") + " resource, url = " + url);
+        }
+        return SonicEngine.getInstance().getRuntime().createWebResourceResponse(entry.mime, entry.encoding, inputStream, new HashMap<String, String>(entry.headers));
+    }
+
+    /**
+     * Download the resources into the cache if they are not cached or are stale. The downloads run in
+     * the threads of the cache rather than the session threads, and at most
+     * {@link #MAX_PENDING_PREFETCH_COUNT} of them are pending, the other urls are skipped.
+     *
+     * @param urls The urls of the resources
+     * @return The count of downloads scheduled.
+     */
+    int prefetch(List<String> urls) {
+        int count = 0;
+        long now = System.currentTimeMillis();
+        for (String url : urls) {
+            if (!isCacheable(url)) {
+                continue;
+            }
+            String key = SonicUtils.getMD5(url);
+            synchronized (this) {
+                if (!loaded) {
+                    preload();
+                    break;
+                }
+                Entry entry = entries.get(key);
+                if (null != entry && entry.isFresh(now)) {
+                    continue;
+                }
+            }
+            if (scheduleFetch(url, true)) {
+                ++count;
+            }
+        }
+        prefetchCount.addAndGet(count);
+        return count;
+    }
+
+    private boolean scheduleFetch(final String url) {
+        return scheduleFetch(url, false);
+    }
+
+    private boolean scheduleFetch(final String url, final boolean isPrefetch) {
+        synchronized (this) {
+            if (isPrefetch && pendingPrefetchCount >= MAX_PENDING_PREFETCH_COUNT) {
+                return false;
+            }
+            if (!fetchingUrls.add(url)) {
+                return false;
+            }
+            if (isPrefetch) {
+                ++pendingPrefetchCount;
+            }
+        }
+        try {
+            fetchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        fetch(url);
+                    } finally {
+                        onFetchFinish(url, isPrefetch);
+                    }
+                }
+            });
+            return true;
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "scheduleFetch error:" + e.getMessage());
+            onFetchFinish(url, isPrefetch);
+            return false;
+        }
+    }
+
+    private synchronized void onFetchFinish(String url, boolean isPrefetch) {
+        fetchingUrls.remove(url);
+        if (isPrefetch) {
+            --pendingPrefetchCount;
+        }
+    }
+
+    private void fetch(String url) {
+        String key = SonicUtils.getMD5(url);
+        Entry oldEntry;
+        synchronized (this) {
+            oldEntry = entries.get(key);
+        }
+
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            SonicRuntime runtime = SonicEngine.getInstance().getRuntime();
+            String cookie = runtime.getCookie(url);
+            if (!TextUtils.isEmpty(cookie)) {
+                connection.setRequestProperty("cookie", cookie);
+            }
+            connection.setRequestProperty("User-Agent", SonicUtils.getUserAgent());
+            if (null != oldEntry) {
+                if (!TextUtils.isEmpty(oldEntry.eTag)) {
+                    connection.setRequestProperty("If-None-Match", oldEntry.eTag);
+                }
+                if (!TextUtils.isEmpty(oldEntry.lastModified)) {
+                    connection.setRequestProperty("If-Modified-Since", oldEntry.lastModified);
+                }
+            }
+
+            int responseCode = connection.getResponseCode();
+            if (HttpURLConnection.HTTP_NOT_MODIFIED == responseCode && null != oldEntry) {
+                notModifiedCount.incrementAndGet();
+                Entry entry = createEntry(url, connection, oldEntry);
+                if (null == entry) {
+                    remove(key);
+                } else {
+                    entry.size = oldEntry.size;
+                    saveMeta(key, entry);
+                    synchronized (this) {
+                        if (entries.containsKey(key)) {
+                            entries.put(key, entry);
+                        }
+                    }
+                }
+                SonicUtils.log(TAG, Log.INFO, "fetch:resource is not modified, url = " + url);
+            } else if (HttpURLConnection.HTTP_OK == responseCode) {
+                Entry entry = createEntry(url, connection, null);
+                if (null == entry) {
+                    remove(key);
+                    SonicUtils.log(TAG, Log.INFO, "fetch:resource can not be cached, url = " + url);
+                } else {
+                    saveResource(key, entry, connection.getInputStream());
+                }
+            } else if (HttpURLConnection.HTTP_NOT_FOUND == responseCode || HttpURLConnection.HTTP_GONE == responseCode) {
+                remove(key);
+            } else {
+                SonicUtils.log(TAG, Log.ERROR, "fetch error:response code = " + responseCode + ", url = " + url);
+            }
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "fetch error:" + e.getMessage() + ", url = " + url);
+        } finally {
+            if (null != connection) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Create the entry by the response headers
+     *
+     * @return The entry, or null if the response can not be cached.
+     */
+    private Entry createEntry(String url, HttpURLConnection connection, Entry oldEntry) {
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry();
+        entry.url = url;
+
+        String contentType = connection.getHeaderField("Content-Type");
+        if (null == contentType && null != oldEntry) {
+            entry.mime = oldEntry.mime;
+            entry.encoding = oldEntry.encoding;
+        } else {
+            entry.mime = SonicUtils.getMime(url);
+            if (!TextUtils.isEmpty(contentType)) {
+                String[] parts = contentType.split(";");
+                entry.mime = parts[0].trim();
+                for (int i = 1; i < parts.length; ++i) {
+                    String part = parts[i].trim();
+                    if (part.toLowerCase(Locale.US).startsWith("charset=")) {
+                        entry.encoding = part.substring("charset=".length()).trim();
+                    }
+                }
+            }
+        }
+
+        // A 304 response may omit the validators, so keep the old ones
+        entry.eTag = connection.getHeaderField("ETag");
+        entry.lastModified = connection.getHeaderField("Last-Modified");
+        if (null != oldEntry) {
+            if (null == entry.eTag) {
+                entry.eTag = oldEntry.eTag;
+            }
+            if (null == entry.lastModified) {
+                entry.lastModified = oldEntry.lastModified;
+            }
+            entry.headers.putAll(oldEntry.headers);
+        }
+        // The cache is keyed on url only, so the variants of a resource can not be told apart. Accept-Encoding
+        // is the exception, HttpURLConnection always provides the decoded body.
+        String vary = connection.getHeaderField("Vary");
+        if (!TextUtils.isEmpty(vary)) {
+            for (String header : vary.split(",")) {
+                if (!"accept-encoding".equals(header.trim().toLowerCase(Locale.US))) {
+                    SonicUtils.log(TAG, Log.INFO, "createEntry:response varies by " + vary + ", url = " + url);
+                    return null;
+                }
+            }
+        }
+        for (String header : KEPT_HEADERS) {
+            String value = connection.getHeaderField(header);
+            if (null != value) {
+                entry.headers.put(header, value);
+            }
+        }
+
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        long maxAge = -1;
+        if (!TextUtils.isEmpty(cacheControl)) {
+            for (String directive : cacheControl.toLowerCase(Locale.US).split(",")) {
+                directive = directive.trim();
+                if ("no-store".equals(directive) || "private".equals(directive)) {
+                    return null;
+                } else if ("no-cache".equals(directive)) {
+                    maxAge = 0;
+                    entry.mustRevalidate = true;
+                } else if ("must-revalidate".equals(directive)) {
+                    entry.mustRevalidate = true;
+                } else if (directive.startsWith("max-age=") && maxAge != 0) {
+                    try {
+                        maxAge = Long.parseLong(directive.substring("max-age=".length()).trim());
+                    } catch (NumberFormatException e) {
+                        maxAge = 0;
+                    }
+                }
+            }
+        }
+
+        if (maxAge >= 0) {
+            entry.expiresTime = now + maxAge * 1000;
+        } else if (connection.getExpiration() > 0) {
+            entry.expiresTime = connection.getExpiration();
+        } else if (connection.getLastModified() > 0) {
+            // Heuristic freshness: 10% of the time since the resource was last modified
+            long date = connection.getDate() > 0 ? connection.getDate() : now;
+            entry.expiresTime = now + Math.max(0, date - connection.getLastModified()) / 10;
+        } else {
+            entry.expiresTime = now;
+        }
+
+        if (entry.expiresTime <= now && TextUtils.isEmpty(entry.eTag) && TextUtils.isEmpty(entry.lastModified)) {
+            return null; // it can neither be used nor be revalidated
+        }
+        return entry;
+    }
+
+    private void saveResource(String key, Entry entry, InputStream inputStream) {
+        long maxEntrySize = maxSize / MAX_ENTRY_SIZE_RATIO;
+        File tempFile = new File(getResourceFile(key).getAbsolutePath() + TEMP_EXT);
+        FileOutputStream outputStream = null;
+        long size = 0;
+        boolean success = false;
+        try {
+            outputStream = new FileOutputStream(tempFile);
+            byte[] buffer = new byte[READ_BUF_SIZE];
+            int n;
+            while (-1 != (n = inputStream.read(buffer))) {
+                size += n;
+                if (size > maxEntrySize) {
+                    SonicUtils.log(TAG, Log.INFO, "saveResource:resource is too large, url = " + entry.url);
+                    break;
+                }
+                outputStream.write(buffer, 0, n);
+            }
+            outputStream.flush();
+            success = size <= maxEntrySize;
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "saveResource error:" + e.getMessage() + ", url = " + entry.url);
+        } finally {
+            if (null != outputStream) {
+                try {
+                    outputStream.close();
+                } catch (Throwable e) {
+                    SonicUtils.log(TAG, Log.ERROR, "saveResource close error:" + e.getMessage());
+                }
+            }
+            try {
+                inputStream.close();
+            } catch (Throwable e) {
+                SonicUtils.log(TAG, Log.ERROR, "saveResource close error:" + e.getMessage());
+            }
+        }
+
+        if (!success) {
+            tempFile.delete();
+            return;
+        }
+
+        entry.size = size;
+        synchronized (this) {
+            Entry oldEntry = entries.remove(key);
+            if (null != oldEntry) {
+                totalSize -= oldEntry.size;
+            }
+            // The old file may be read by the kernel now, it is safe to replace it with rename
+            if (!tempFile.renameTo(getResourceFile(key)) || !saveMeta(key, entry)) {
+                tempFile.delete();
+                deleteFiles(key);
+                return;
+            }
+            entries.put(key, entry);
+            totalSize += size;
+            trimToSize();
+        }
+        downloadCount.incrementAndGet();
+        SonicUtils.log(TAG, Log.INFO, "saveResource:save resource success, size = " + size + ", url = " + entry.url);
+    }
+
+    private boolean saveMeta(String key, Entry entry) {
+        try {
+            String metaPath = getMetaFile(key).getAbsolutePath();
+            File tempFile = new File(metaPath + TEMP_EXT);
+            return SonicFileUtils.writeFile(entry.toJson().toString(), tempFile.getAbsolutePath()) && tempFile.renameTo(new File(metaPath));
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "saveMeta error:" + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Must be called with the lock held
+     */
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (totalSize > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            iterator.remove();
+            totalSize -= eldest.getValue().size;
+            deleteFiles(eldest.getKey());
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    private synchronized void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (null != entry) {
+            totalSize -= entry.size;
+        }
+        deleteFiles(key);
+    }
+
+    private void deleteFiles(String key) {
+        File resourceFile = getResourceFile(key);
+        if (resourceFile.exists() && !resourceFile.delete()) {
+            SonicUtils.log(TAG, Log.ERROR, "deleteFiles error:delete " + resourceFile.getName() + " fail.");
+        }
+        File metaFile = getMetaFile(key);
+        if (metaFile.exists() && !metaFile.delete()) {
+            SonicUtils.log(TAG, Log.ERROR, "deleteFiles error:delete " + metaFile.getName() + " fail.");
+        }
+    }
+
+    /**
+     * Load the index of cached resources from disk without the lock held, no resource is downloaded
+     * until it is loaded, see {@link #preload()}.
+     */
+    private void load() {
+        int loadGeneration;
+        synchronized (this) {
+            loadGeneration = generation;
+        }
+        long startTime = System.currentTimeMillis();
+        LinkedHashMap<String, Entry> loadedEntries = new LinkedHashMap<String, Entry>();
+        List<String> invalidKeys = new ArrayList<String>();
+        File[] files = new File(SonicFileUtils.getSonicResourceCacheDirPath()).listFiles();
+        if (null != files) {
+            List<File> metaFiles = new ArrayList<File>();
+            for (File file : files) {
+                if (file.getName().endsWith(TEMP_EXT)) {
+                    file.delete(); // left by an interrupted download
+                } else if (file.getName().endsWith(META_EXT)) {
+                    metaFiles.add(file);
+                }
+            }
+            for (File metaFile : metaFiles) {
+                String key = metaFile.getName().substring(0, metaFile.getName().length() - META_EXT.length());
+                try {
+                    Entry entry = Entry.fromJson(new JSONObject(SonicFileUtils.readFile(metaFile)));
+                    if (getResourceFile(key).length() == entry.size && !TextUtils.isEmpty(entry.url)) {
+                        loadedEntries.put(key, entry);
+                        continue;
+                    }
+                } catch (Throwable e) {
+                    SonicUtils.log(TAG, Log.ERROR, "load error:" + e.getMessage());
+                }
+                invalidKeys.add(key);
+            }
+        }
+
+        synchronized (this) {
+            loading = false;
+            if (loadGeneration != generation) {
+                return; // the cache is cleared while loading
+            }
+            for (String key : invalidKeys) {
+                deleteFiles(key);
+            }
+            for (Map.Entry<String, Entry> loadedEntry : loadedEntries.entrySet()) {
+                entries.put(loadedEntry.getKey(), loadedEntry.getValue());
+                totalSize += loadedEntry.getValue().size;
+            }
+            loaded = true;
+            trimToSize();
+            SonicUtils.log(TAG, Log.INFO, "load:load " + entries.size() + " resources, size = " + totalSize + ", cost " + (System.currentTimeMillis() - startTime) + " ms.");
+        }
+    }
+
+    /**
+     * Forget all of the cached resources, the files are deleted by the caller.
+     */
+    synchronized void clear() {
+        entries.clear();
+        totalSize = 0;
+        loaded = false;
+        ++generation;
+    }
+
+    private static File getResourceFile(String key) {
+        return new File(SonicFileUtils.getSonicResourceCacheDirPath() + key + RESOURCE_EXT);
+    }
+
+    private static File getMetaFile(String key) {
+        return new File(SonicFileUtils.getSonicResourceCacheDirPath() + key + META_EXT);
+    }
+
+    /**
+     * @return The size (in bytes) of resources cached on disk now.
+     */
+    public synchronized long getSize() {
+        return totalSize;
+    }
+
+    /**
+     * @return The count of resources cached on disk now.
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return The count of cacheable resource requests intercepted by the kernel.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return The count of requests provided with fresh resources.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return The count of requests provided with stale resources which were revalidated in background.
+     */
+    public long getStaleHitCount() {
+        return staleHitCount.get();
+    }
+
+    /**
+     * @return The count of requests which were loaded by the kernel.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return The count of resources downloaded into the cache.
+     */
+    public long getDownloadCount() {
+        return downloadCount.get();
+    }
+
+    /**
+     * @return The count of revalidations that the server answered not modified.
+     */
+    public long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    /**
+     * @return The count of downloads scheduled by prefetch.
+     */
+    public long getPrefetchCount() {
+        return prefetchCount.get();
+    }
+
+    /**
+     * @return The count of resources removed because {@link SonicConfig#RESOURCE_CACHE_MAX_SIZE} was reached.
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+}
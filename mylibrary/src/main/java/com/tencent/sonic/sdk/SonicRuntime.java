@@ -14,7 +14,11 @@
 package com.tencent.sonic.sdk;
 
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
 import android.net.Uri;
+import android.os.BatteryManager;
 import android.os.Handler;
 import android.os.Looper;
 import android.text.TextUtils;
@@ -256,6 +260,38 @@ public abstract class SonicRuntime {
      */
     public abstract boolean isNetworkValid();
 
+    /**
+     * This method is used to judge whether the network is unmetered, such as wifi, sonic refreshes
+     * the cache in background only when the network is unmetered.
+     * The default implementation requires android.permission.ACCESS_NETWORK_STATE.
+     *
+     * @return Network unmetered or not
+     */
+    public boolean isNetworkUnmetered() {
+        try {
+            ConnectivityManager connectivityManager = (ConnectivityManager) getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+            return null != connectivityManager && !connectivityManager.isActiveNetworkMetered();
+        } catch (Throwable e) {
+            log(TAG, Log.ERROR, "isNetworkUnmetered error:" + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * This method is used to judge whether the device is charging.
+     *
+     * @return Charging or not
+     */
+    public boolean isCharging() {
+        try {
+            Intent batteryStatus = getContext().registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            return null != batteryStatus && 0 != batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+        } catch (Throwable e) {
+            log(TAG, Log.ERROR, "isCharging error:" + e.getMessage());
+        }
+        return false;
+    }
+
     /**
      * Get the direct address of a url(host)，format as[ip:port]，the default http port is 80 and
      * 443 for https.
@@ -277,12 +313,16 @@ public abstract class SonicRuntime {
 
     /**
      * Post a task to the thread(a io thread is better) which used to separate template and data.
+     * The default implementation runs the task on sonic's low priority io threads, see
+     * {@link SonicConfig#IO_THREAD_POOL_SIZE}.
      *
      * @param task A runnable task
      * @param delayMillis The delay (in milliseconds) until the Runnable
      *        will be executed.
      */
-    public abstract void postTaskToThread(Runnable task, long delayMillis);
+    public void postTaskToThread(Runnable task, long delayMillis) {
+        SonicIOScheduler.postTask(task, delayMillis);
+    }
 
     /**
      * Post a task to session thread(a high priority thread is better)
@@ -293,6 +333,21 @@ public abstract class SonicRuntime {
         SonicSessionThreadPool.postTask(task);
     }
 
+    /**
+     * Post a task to session thread with priority, tasks of preloaded sessions have a lower priority
+     * than the tasks of sessions which are bound to clients.
+     *
+     * @param task     A runnable task
+     * @param priority The priority of task, a smaller value means a higher priority
+     */
+    public void postTaskToSessionThread(Runnable task, int priority) {
+        SonicSessionThreadPool.RejectedCallback rejectedCallback = null;
+        if (task instanceof SonicSessionThreadPool.RejectedCallback) {
+            rejectedCallback = (SonicSessionThreadPool.RejectedCallback) task;
+        }
+        SonicSessionThreadPool.postTask(task, priority, rejectedCallback);
+    }
+
     /**
      * Post a task in main thread
      *
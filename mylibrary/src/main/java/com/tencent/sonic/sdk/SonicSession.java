@@ -25,7 +25,7 @@ import android.widget.Toast;
 
 import org.json.JSONObject;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
@@ -35,6 +35,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -47,7 +50,7 @@ import java.util.concurrent.atomic.AtomicInteger;
  *
  */
 
-public class SonicSession implements SonicSessionStream.Callback, Handler.Callback {
+public class SonicSession implements SonicSessionPipe.Callback, Handler.Callback {
 
     /**
      * Log filter
@@ -122,6 +125,28 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
      */
     public static final String OFFLINE_MODE_HTTP = "http";
 
+    /**
+     * The value of {@link SonicSessionConnection#CUSTOM_HEAD_FILED_UNAVAILABLE_SCOPE}, it means all the
+     * urls of the host are unavailable.
+     */
+    public static final String UNAVAILABLE_SCOPE_HOST = "host";
+
+    /**
+     * The cache is validated within {@link SonicSessionConfig#CACHE_FRESH_TIME}, the connection is skipped.
+     */
+    private static final int CACHE_FRESHNESS_FRESH = 0;
+
+    /**
+     * The cache is validated within {@link SonicSessionConfig#CACHE_STALE_TIME}, the cache is used and
+     * refreshed in background.
+     */
+    private static final int CACHE_FRESHNESS_STALE = 1;
+
+    /**
+     * The cache needs to be validated by the connection.
+     */
+    private static final int CACHE_FRESHNESS_EXPIRED = 2;
+
     /**
      * The value of "cache-offline" in http(s) response headers.
      * <p>
@@ -265,6 +290,45 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
      */
     protected boolean isPreload;
 
+    /**
+     * The priority of sonic flow task in session thread pool
+     */
+    volatile int taskPriority = SonicSessionThreadPool.PRIORITY_FOREGROUND;
+
+    /**
+     * The count of sonic flow tasks which are posted but not run or rejected yet
+     */
+    private final AtomicInteger pendingFlowTaskCount = new AtomicInteger(0);
+
+    /**
+     * Whether one of the sonic flow tasks has run
+     */
+    private final AtomicBoolean isFlowTaskStarted = new AtomicBoolean(false);
+
+    /**
+     * The sonic flow task. A preloaded session posts it again with foreground priority when it is
+     * bound to a client, so only the first task which runs starts the sonic flow, and the session is
+     * rejected only when all of its tasks are rejected.
+     */
+    private class SonicFlowTask implements Runnable, SonicSessionThreadPool.RejectedCallback {
+
+        @Override
+        public void run() {
+            pendingFlowTaskCount.decrementAndGet();
+            if (isFlowTaskStarted.compareAndSet(false, true)) {
+                //开始请求数据
+                runSonicFlow();
+            }
+        }
+
+        @Override
+        public void onRejected() {
+            if (0 == pendingFlowTaskCount.decrementAndGet() && !isFlowTaskStarted.get()) {
+                onSessionTaskRejected();
+            }
+        }
+    }
+
     /**
      * The time of current session created.
      */
@@ -290,6 +354,53 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
 
     protected SonicDiffDataCallback diffDataCallback;
 
+    /**
+     * The streams which capture the response data of this session, the capacity reserved by them
+     * is released when the session is destroyed.
+     */
+    protected final CopyOnWriteArrayList<SonicCaptureOutputStream> captureStreams = new CopyOnWriteArrayList<SonicCaptureOutputStream>();
+
+    /**
+     * The pipes which stream response data to the client, they are aborted when the session is destroyed.
+     */
+    protected final CopyOnWriteArrayList<SonicSessionPipe> sessionPipes = new CopyOnWriteArrayList<SonicSessionPipe>();
+
+    /**
+     * The delay of saving cache after the html is received, in order not to seize the cpu resources
+     * and affect the rendering of the kernel.
+     */
+    protected static final long SAVE_CACHE_DELAY_MILLIS = 1500;
+
+    /**
+     * The scheduled task of saving cache, it is cancelled when the session is destroyed.
+     */
+    protected volatile ScheduledFuture<?> pendingSaveCacheFuture;
+
+    /**
+     * The capture stream whose html is saved by {@link #postSaveCacheTask(String, SonicCaptureOutputStream)},
+     * it is held by the save task and by the pipe which replays it to the kernel, the last holder
+     * releases it. Guarded by <code>saveCacheLock</code>.
+     */
+    private SonicCaptureOutputStream savingCaptureStream;
+
+    /**
+     * The count of holders of <code>savingCaptureStream</code>
+     */
+    private int savingCaptureStreamHolders;
+
+    /**
+     * Whether the save task is running, destroy leaves <code>savingCaptureStream</code> to it.
+     */
+    private boolean isSaveCacheTaskRunning;
+
+    private final Object saveCacheLock = new Object();
+
+    /**
+     * Opened once the resource for the client is decided: <code>pendingWebResourceStream</code> is
+     * ready, or the session leaves {@link #STATE_RUNNING}, or the session is destroyed.
+     */
+    protected final CountDownLatch pendingResourceLatch = new CountDownLatch(1);
+
     /**
      * The interface is used to inform the listeners that the state of the
      * session has changed.
@@ -359,16 +470,16 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
         statistics.sonicStartTime = System.currentTimeMillis();
         //设置需要等待sessin线程
         isWaitingForSessionThread.set(true);
-        //让操作在sessionThread中执行
-        SonicEngine.getInstance().getRuntime().postTaskToSessionThread(new Runnable() {
-            @Override
-            public void run() {
-                //开始请求数据
-                runSonicFlow();
-            }
-        });
         //通知状态由STATE_NONE变为STATE_RUNNING，通过SonicSession.addCallback添加
+        //需要在投递任务前通知，任务被拒绝时会立刻切换到STATE_READY
         notifyStateChange(STATE_NONE, STATE_RUNNING, null);
+        //让操作在sessionThread中执行，预加载会话的优先级低于前台会话
+        postFlowTask(taskPriority);
+    }
+
+    private void postFlowTask(int priority) {
+        pendingFlowTaskCount.incrementAndGet();
+        SonicEngine.getInstance().getRuntime().postTaskToSessionThread(new SonicFlowTask(), priority);
     }
     //开始请求数据
     private void runSonicFlow() {
@@ -388,8 +499,17 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
         //处理该会话对应的html文件，本地有缓存就直接加载缓存html内容，本地没有缓存就让webView加载url
         handleLocalHtml(htmlString);
         final SonicRuntime runtime = SonicEngine.getInstance().getRuntime();
-        //网络是否可用
-        if (!runtime.isNetworkValid()) {
+        //缓存在新鲜期内直接当作命中缓存，不请求网络；已不新鲜但未过期时也先使用缓存，再在后台更新缓存
+        int cacheFreshness = hasHtmlCache ? getCacheFreshness() : CACHE_FRESHNESS_EXPIRED;
+        if (CACHE_FRESHNESS_EXPIRED != cacheFreshness) {
+            statistics.isCacheFresh = CACHE_FRESHNESS_FRESH == cacheFreshness;
+            statistics.isCacheStale = CACHE_FRESHNESS_STALE == cacheFreshness;
+            SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") runSonicFlow:cache is " + (statistics.isCacheFresh ? "fresh" : "stale") + ", skip connection.");
+            if (statistics.isCacheStale && runtime.isNetworkValid()) {
+                SonicEngine.getInstance().getRefreshScheduler().refreshInBackground(id, srcUrl, config);
+            }
+            handleFlow_304();
+        } else if (!runtime.isNetworkValid()) {//网络是否可用
             //当网络不可用，且本地有缓存的时候
             if (hasHtmlCache && !TextUtils.isEmpty(config.USE_SONIC_CACHE_IN_BAD_NETWORK_TOAST)) {
                 runtime.postTaskToMainThread(new Runnable() {
@@ -405,6 +525,10 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
             }
             SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") runSonicFlow error:network is not valid!");
         } else {//如果当前网络可用，处理与服务器的连接
+            //主文档验证期间，提前下载缓存html引用的子资源
+            if (hasHtmlCache) {
+                prefetchSubResources(htmlString);
+            }
             handleFlow_Connection(htmlString);
             //记录连接完成的时间
             statistics.connectionFlowFinishTime = System.currentTimeMillis();
@@ -419,10 +543,70 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
             SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") runSonicFlow:send force destroy message.");
         }
     }
+    /**
+     * The sonic flow task is rejected by session thread pool, the session will never run, so the client
+     * loads the url by itself.
+     */
+    private void onSessionTaskRejected() {
+        if (STATE_RUNNING != sessionState.get()) {
+            return;
+        }
+        SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") onSessionTaskRejected: sonic flow is rejected by session thread pool.");
+        SonicEngine.getInstance().getRuntime().notifyError(sessionClient, srcUrl, SonicConstants.ERROR_CODE_SESSION_TASK_REJECTED);
+
+        handleFlow_TaskRejected();
+
+        switchState(STATE_RUNNING, STATE_READY, true);
+
+        isWaitingForSessionThread.set(false);
+
+        if (postForceDestroyIfNeed()) {
+            SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") onSessionTaskRejected:send force destroy message.");
+        }
+    }
+
+    /**
+     * Handle the sonic flow task is rejected by session thread pool.
+     */
+    protected void handleFlow_TaskRejected() {
+
+    }
+
+    //根据缓存最近一次与服务器校验的时间，判断缓存是否还新鲜
+    private int getCacheFreshness() {
+        SonicDataHelper.SessionFreshness sessionFreshness = SonicDataHelper.getSessionFreshness(id);
+        long freshTime = config.CACHE_FRESH_TIME;
+        long staleTime = config.CACHE_STALE_TIME;
+        if (config.USE_SERVER_CACHE_CONTROL && sessionFreshness.maxAge >= 0) {
+            freshTime = sessionFreshness.maxAge * 1000;
+            staleTime = sessionFreshness.staleWhileRevalidate >= 0 ? freshTime + sessionFreshness.staleWhileRevalidate * 1000 : Math.max(freshTime, staleTime);
+        }
+        long age = System.currentTimeMillis() - sessionFreshness.validateTime;
+        if (sessionFreshness.validateTime <= 0 || age < 0) {
+            return CACHE_FRESHNESS_EXPIRED;
+        }
+        if (age < freshTime) {
+            return CACHE_FRESHNESS_FRESH;
+        }
+        return age < staleTime ? CACHE_FRESHNESS_STALE : CACHE_FRESHNESS_EXPIRED;
+    }
+
     //网络可用，处理网络请求
     protected void handleFlow_Connection(String htmlString) {
         //设置连接服务器的时间
         statistics.connectionFlowStartTime = System.currentTimeMillis();
+        //该域名连续失败已熔断，跳过网络请求，直接使用缓存或由WebView加载url
+        if (!SonicEngine.getInstance().getCircuitBreaker().allowRequest(srcUrl)) {
+            statistics.isCircuitOpen = true;
+            SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") handleFlow_Connection: circuit of host is open, skip connection.");
+            if (!TextUtils.isEmpty(htmlString)) {
+                //有缓存时当作命中缓存，不能让WebView再去请求失败的域名
+                handleFlow_304();
+            } else {
+                handleFlow_ServiceUnavailable();
+            }
+            return;
+        }
         //得到该会话对应的本地缓存数据
         SonicDataHelper.SessionData sessionData = SonicDataHelper.getSessionData(id);
         //创建一个intent
@@ -431,7 +615,7 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
         intent.putExtra(SonicSessionConnection.CUSTOM_HEAD_FILED_ETAG, sessionData.etag);
         intent.putExtra(SonicSessionConnection.CUSTOM_HEAD_FILED_TEMPLATE_TAG, sessionData.templateTag);
         //域名转行成ip地址
-        String hostDirectAddress = SonicEngine.getInstance().getRuntime().getHostDirectAddress(srcUrl);
+        String hostDirectAddress = SonicEngine.getInstance().getHostDirectAddress(srcUrl);
         //是否有域名转换成ip地址
         if (!TextUtils.isEmpty(hostDirectAddress)) {
             //设置是一个ip地址
@@ -445,10 +629,20 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
         long startTime = System.currentTimeMillis();
         //得到请求代码
         int responseCode = sessionConnection.connect();
+        //直连IP连接失败，下次使用该域名的其他IP；并行请求时由SonicHedgedSessionConnection上报实际失败的IP
+        if (!config.HEDGE_MAIN_DOCUMENT && (SonicConstants.ERROR_CODE_CONNECT_IOE == responseCode || SonicConstants.ERROR_CODE_CONNECT_TOE == responseCode)) {
+            SonicEngine.getInstance().getDnsCache().onAddressFailed(srcUrl, sessionConnection.getDirectAddress());
+        }
+        //设置会话连接的时间
+        statistics.connectionConnectTime = System.currentTimeMillis();
+        SonicNetworkTimingTracker timingTracker = SonicEngine.getInstance().getNetworkTimingTracker();
+        //并行请求时由SonicHedgedSessionConnection记录每个请求的耗时；超时也要记录，否则超时时间无法再变长
+        if (!config.HEDGE_MAIN_DOCUMENT && (!statistics.isConnectRetried || SonicConstants.ERROR_CODE_CONNECT_TOE == responseCode)) {
+            //记录连接耗时，用于自动调整超时时间
+            timingTracker.recordConnectResult(srcUrl, config, responseCode, statistics.connectionConnectTime - startTime);
+        }
         //如果请求成功
         if (SonicConstants.ERROR_CODE_SUCCESS == responseCode) {
-            //设置会话连接的时间
-            statistics.connectionConnectTime = System.currentTimeMillis();
             if (SonicUtils.shouldLog(Log.DEBUG)) {
                 SonicUtils.log(TAG, Log.DEBUG, "session(" + sId + ") connection connect cost = " + (System.currentTimeMillis() - startTime) + " ms.");
             }
@@ -457,6 +651,10 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
             responseCode = sessionConnection.getResponseCode();
             //设置得到服务器响应时间
             statistics.connectionRespondTime = System.currentTimeMillis();
+            if (!config.HEDGE_MAIN_DOCUMENT) {
+                //与SonicHedgedSessionConnection一样，从连接完成算到收到响应码
+                timingTracker.recordRespondResult(srcUrl, config, responseCode, statistics.connectionRespondTime - statistics.connectionConnectTime);
+            }
             if (SonicUtils.shouldLog(Log.DEBUG)) {
                 SonicUtils.log(TAG, Log.DEBUG, "session(" + sId + ") connection response cost = " + (System.currentTimeMillis() - startTime) + " ms.");
             }
@@ -487,8 +685,16 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
             SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") handleFlow_Connection: destroy before server response.");
             return;
         }
+        //连接失败或服务器5xx错误计入熔断器
+        if (responseCode < 0 || responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+            SonicEngine.getInstance().getCircuitBreaker().onFailure(srcUrl);
+        } else {
+            SonicEngine.getInstance().getCircuitBreaker().onSuccess(srcUrl);
+        }
         //如果服务器返回304，表示完全缓存，客户端和服务器数据一摸一样
         if (HttpURLConnection.HTTP_NOT_MODIFIED == responseCode) {
+            //记录缓存的校验时间，缓存之后被删除时校验时间一起删除；200时在新缓存保存成功后再记录
+            SonicUtils.saveSessionValidation(id, sessionConnection.getResponseHeaderField(SonicSessionConnection.HTTP_HEAD_CACHE_CONTROL));
             handleFlow_304();
             return;
         }
@@ -508,8 +714,14 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
                 SonicUtils.removeSessionCache(id);
             }
             long unavailableTime = System.currentTimeMillis() + SonicEngine.getInstance().getConfig().SONIC_UNAVAILABLE_TIME;
-            //设置服务器什么时候可以再次访问
-            SonicDataHelper.setSonicUnavailableTime(id, unavailableTime);
+            //设置服务器什么时候可以再次访问，sonic-unavailable-scope为host时整个域名都不可用
+            String unavailableScope = sessionConnection.getResponseHeaderField(SonicSessionConnection.CUSTOM_HEAD_FILED_UNAVAILABLE_SCOPE);
+            String host = Uri.parse(srcUrl).getHost();
+            if (UNAVAILABLE_SCOPE_HOST.equals(unavailableScope) && !TextUtils.isEmpty(host)) {
+                SonicEngine.getInstance().getUnavailableTable().setHostUnavailableTime(host, unavailableTime);
+            } else {
+                SonicEngine.getInstance().getUnavailableTable().setSessionUnavailableTime(id, unavailableTime);
+            }
             handleFlow_ServiceUnavailable();
             return;
         }
@@ -586,6 +798,8 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
     void setIsPreload(String url) {
         //设置已经预加载过
         isPreload = true;
+        int oldTaskPriority = taskPriority;
+        taskPriority = SonicSessionThreadPool.PRIORITY_FOREGROUND;
         //记录地址
         statistics.srcUrl = url.trim();
         //设置资源url
@@ -594,6 +808,96 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
         if (SonicUtils.shouldLog(Log.INFO)) {
             SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") is preload, new url=" + url + ".");
         }
+        //预加载会话的任务还在排队时，以前台优先级重新投递，先执行的任务生效
+        if (oldTaskPriority != taskPriority && STATE_RUNNING == sessionState.get() && !isFlowTaskStarted.get()) {
+            SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") setIsPreload: sonic flow is still queued, post it again with foreground priority.");
+            postFlowTask(taskPriority);
+        }
+    }
+
+    /**
+     * @return The size of response data which has been read from the server but not consumed by
+     * the client yet. It's an estimate used by statistics.
+     */
+    long getPendingDataSize() {
+        InputStream pendingStream = pendingWebResourceStream;
+        if (pendingStream instanceof SonicSessionPipe.PipeInputStream) {
+            return ((SonicSessionPipe.PipeInputStream) pendingStream).getBufferedSize();
+        }
+        if (null != pendingStream) {
+            try {
+                return pendingStream.available();
+            } catch (Throwable e) {
+                SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") getPendingDataSize error:" + e.getMessage());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Release the response data buffered for the client if the client is not visible, which means
+     * no client is bound or the client is not ready yet. When the client requests the resource later,
+     * it will load the resource from network by itself.
+     *
+     * @return The size of data released
+     */
+    long trimPendingData() {
+        if (null != sessionClient && clientIsReady.get()) {
+            return 0;
+        }
+        long releasedSize = getPendingDataSize();
+        InputStream pendingStream = pendingWebResourceStream;
+        pendingWebResourceStream = null;
+        if (pendingStream instanceof SonicSessionPipe.PipeInputStream) {
+            ((SonicSessionPipe.PipeInputStream) pendingStream).abort();
+            SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") trimPendingData: abort pipe, release " + releasedSize + " bytes.");
+        } else if (null != pendingStream) {
+            try {
+                pendingStream.close();
+            } catch (Throwable e) {
+                SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") trimPendingData close error:" + e.getMessage());
+            }
+            SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") trimPendingData: release " + releasedSize + " bytes.");
+        }
+        return releasedSize;
+    }
+
+    /**
+     * Create a stream to capture response data, the capacity is reserved from
+     * the global budget({@link SonicConfig#MAX_BUFFERED_RESPONSE_BYTES}), large data is
+     * spilled to file({@link SonicConfig#CAPTURE_SPILL_THRESHOLD}).
+     *
+     * @return The capture stream
+     */
+    SonicCaptureOutputStream createCaptureStream() {
+        SonicCaptureOutputStream captureStream = SonicEngine.getInstance().createCaptureStream();
+        captureStreams.add(captureStream);
+        return captureStream;
+    }
+
+    /**
+     * Create a pipe to stream response data to the client.
+     *
+     * @param captureStream  The data read from network
+     * @param responseStream Unread data from network
+     * @return The pipe
+     */
+    SonicSessionPipe createPipe(SonicCaptureOutputStream captureStream, BufferedInputStream responseStream) {
+        SonicSessionPipe pipe = new SonicSessionPipe(this, captureStream, responseStream, config);
+        sessionPipes.add(pipe);
+        return pipe;
+    }
+
+    /**
+     * @param excludeStream The stream which is not released
+     */
+    private void releaseCaptureStreams(SonicCaptureOutputStream excludeStream) {
+        for (SonicCaptureOutputStream captureStream : captureStreams) {
+            if (captureStream != excludeStream) {
+                captureStream.release();
+                captureStreams.remove(captureStream);
+            }
+        }
     }
 
     public boolean isPreload() {
@@ -649,12 +953,39 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
         return true;
     }
 
+    /**
+     * Wake up the client which is waiting for <code>pendingWebResourceStream</code> in
+     * {@link #waitForPendingResource()}.
+     */
+    protected void notifyPendingResourceReady() {
+        pendingResourceLatch.countDown();
+    }
+
+    /**
+     * Block the calling thread (the kernel's resource thread) until <code>pendingWebResourceStream</code>
+     * is ready or the session is no longer running, at most {@link SonicSessionConfig#PENDING_RESOURCE_TIMEOUT_MILLIS}.
+     */
+    protected void waitForPendingResource() {
+        if (sessionState.get() == STATE_RUNNING && pendingResourceLatch.getCount() > 0) {
+            SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") now wait for pendingWebResourceStream!");
+            try {
+                if (!pendingResourceLatch.await(config.PENDING_RESOURCE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") wait for pendingWebResourceStream timeout.");
+                }
+            } catch (Throwable e) {
+                SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") wait for pendingWebResourceStream failed" + e.getMessage());
+            }
+        } else {
+            if (SonicUtils.shouldLog(Log.DEBUG)) {
+                SonicUtils.log(TAG, Log.DEBUG, "session(" + sId + ") is not in running state: " + sessionState);
+            }
+        }
+    }
+
     protected boolean switchState(int fromState, int toState, boolean notify) {
         if (sessionState.compareAndSet(fromState, toState)) {
             if (notify) {
-                synchronized (sessionState) {
-                    sessionState.notify();
-                }
+                notifyPendingResourceReady();
             }
             notifyStateChange(fromState, toState, null);
             return true;
@@ -663,9 +994,9 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
     }
 
     /**
-     * If the kernel obtain inputStream from a <code>SonicSessionStream</code>, the inputStream
-     * will be closed when the kernel reads the data.This method is invoked when the sonicSessionStream
-     * close.
+     * If the kernel obtain inputStream from a <code>SonicSessionPipe</code>, the inputStream
+     * will be closed when the kernel reads the data.This method is invoked when both the kernel and
+     * the session thread finish with the pipe.
      *
      * <p>
      *  If the html is read complete, sonic will separate the html to template and data, and save these
@@ -675,12 +1006,19 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
      * @param outputStream The html content.
      */
     @Override
-    public void onClose(final boolean readComplete, final ByteArrayOutputStream outputStream) {
+    public void onClose(final boolean readComplete, final SonicCaptureOutputStream outputStream) {
         // set pendingWebResourceStream to null，or it has a problem when client reload the page.
         if (null != pendingWebResourceStream) {
             pendingWebResourceStream = null;
         }
 
+        // The html read completely before the kernel attached is saved by postSaveCacheTask, so it
+        // is not saved again, the capture stream is released once the save task finishes as well.
+        if (null != outputStream && releaseSavingCaptureStream(outputStream, false)) {
+            SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") onClose:html is saved by postSaveCacheTask.");
+            return;
+        }
+
         isWaitingForSaveFile.set(true);
         long onCloseStartTime = System.currentTimeMillis();
 
@@ -707,9 +1045,10 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
 
                         if (!TextUtils.isEmpty(htmlString)) {
                             long startTime = System.currentTimeMillis();
-                            separateAndSaveCache(htmlString);
+                            separateAndSaveCache(htmlString, outputStream);
                             SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") onClose:separate And save ache finish, cost " + (System.currentTimeMillis() - startTime) + " ms.");
                         }
+                        outputStream.release();
 
                         // Current session can be destroyed if it is waiting for destroy.
                         isWaitingForSaveFile.set(false);
@@ -725,6 +1064,10 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
             SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") onClose error:readComplete =" + readComplete + ", outputStream is null -> " + (outputStream == null));
         }
 
+        if (null != outputStream) {
+            outputStream.release();
+        }
+
         // Current session can be destroyed if it is waiting for destroy.
         isWaitingForSaveFile.set(false);
         if (postForceDestroyIfNeed()) {
@@ -737,6 +1080,94 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
     }
 
     protected void separateAndSaveCache(String htmlString) {
+        separateAndSaveCache(htmlString, null);
+    }
+
+    /**
+     * Separate and save the html on I/O thread after {@link #SAVE_CACHE_DELAY_MILLIS}, the session
+     * can not be destroyed until the task finishes unless it is forced.
+     *
+     * @param htmlString    The html content
+     * @param captureStream The stream which captured the html
+     */
+    protected void postSaveCacheTask(final String htmlString, final SonicCaptureOutputStream captureStream) {
+        isWaitingForSaveFile.set(true);
+        if (null != captureStream) {
+            synchronized (saveCacheLock) {
+                savingCaptureStream = captureStream;
+                savingCaptureStreamHolders = 1;
+                for (SonicSessionPipe pipe : sessionPipes) {
+                    if (captureStream == pipe.getCaptureStream()) {
+                        savingCaptureStreamHolders = 2;
+                    }
+                }
+            }
+        }
+        pendingSaveCacheFuture = SonicIOScheduler.postTask(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                synchronized (saveCacheLock) {
+                    isSaveCacheTaskRunning = true;
+                }
+                try {
+                    separateAndSaveCache(htmlString, captureStream);
+                    SonicUtils.log(TAG, Log.DEBUG, "session(" + sId + ") postSaveCacheTask: finish separate and save cache cost " + (System.currentTimeMillis() - startTime) + " ms.");
+                } catch (Throwable e) {
+                    SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") postSaveCacheTask error:" + e.getMessage());
+                } finally {
+                    synchronized (saveCacheLock) {
+                        isSaveCacheTaskRunning = false;
+                        if (null != captureStream) {
+                            releaseSavingCaptureStream(captureStream, STATE_DESTROY == sessionState.get());
+                        }
+                    }
+                }
+
+                pendingSaveCacheFuture = null;
+                // Current session can be destroyed if it is waiting for destroy.
+                isWaitingForSaveFile.set(false);
+                if (postForceDestroyIfNeed()) {
+                    SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") postSaveCacheTask: postForceDestroyIfNeed send destroy message.");
+                }
+            }
+        }, SAVE_CACHE_DELAY_MILLIS);
+
+        if (null == pendingSaveCacheFuture) {
+            isWaitingForSaveFile.set(false);
+        }
+    }
+
+    /**
+     * Drop a holder of <code>savingCaptureStream</code>, the stream is released when no one holds it.
+     *
+     * @param captureStream The capture stream
+     * @param force         Release the stream even if it is still held
+     * @return Return false if <code>captureStream</code> is not <code>savingCaptureStream</code>.
+     */
+    private boolean releaseSavingCaptureStream(SonicCaptureOutputStream captureStream, boolean force) {
+        synchronized (saveCacheLock) {
+            if (captureStream != savingCaptureStream) {
+                return false;
+            }
+            if (--savingCaptureStreamHolders <= 0 || force) {
+                captureStream.release();
+                captureStreams.remove(captureStream);
+                savingCaptureStream = null;
+                savingCaptureStreamHolders = 0;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Separate the html to template and data, and save them.
+     *
+     * @param htmlString   The html content
+     * @param captureStream The stream which captured the html, if its data has been spilled to file,
+     *                      the file is moved into cache instead of writing <code>htmlString</code> again.
+     */
+    protected void separateAndSaveCache(String htmlString, SonicCaptureOutputStream captureStream) {
         if (TextUtils.isEmpty(htmlString) || null == sessionConnection) {
             SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") separateAndSaveCache error:htmlString is null or sessionConnection is null.");
             return;
@@ -753,9 +1184,15 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
         StringBuilder templateStringBuilder = new StringBuilder();
         StringBuilder dataStringBuilder = new StringBuilder();
         if (SonicUtils.separateTemplateAndData(id, htmlString, templateStringBuilder, dataStringBuilder)) {
-            if (SonicUtils.saveSessionFiles(id, htmlString, templateStringBuilder.toString(), dataStringBuilder.toString())) {
+            String htmlToWrite = htmlString;
+            if (null != captureStream && captureStream.moveTo(new File(SonicFileUtils.getSonicHtmlPath(id)))) {
+                htmlToWrite = null;
+                SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") separateAndSaveCache: move spill file to html cache.");
+            }
+            if (SonicUtils.saveSessionFiles(id, htmlToWrite, templateStringBuilder.toString(), dataStringBuilder.toString())) {
                 long htmlSize = new File(SonicFileUtils.getSonicHtmlPath(id)).length();
                 SonicUtils.saveSonicData(id, eTag, templateTag, SonicUtils.getSHA1(htmlString), htmlSize, cspContent, cspReportOnlyContent);
+                SonicUtils.saveSessionValidation(id, sessionConnection.getResponseHeaderField(SonicSessionConnection.HTTP_HEAD_CACHE_CONTROL));
             } else {
                 SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") separateAndSaveCache: save session files fail.");
                 SonicEngine.getInstance().getRuntime().notifyError(sessionClient, srcUrl, SonicConstants.ERROR_CODE_WRITE_FILE_FAIL);
@@ -891,6 +1328,43 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
         return false;
     }
 
+    /**
+     * Download the sub resources (stylesheets, scripts and preload hints) referenced by the html into
+     * {@link SonicResourceCache} in background, so they are ready when the kernel requests them.
+     *
+     * @param htmlString The cached html or the html from server
+     */
+    protected void prefetchSubResources(String htmlString) {
+        if (config.MAX_PREFETCH_SUB_RESOURCE_COUNT <= 0 || TextUtils.isEmpty(htmlString)) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        List<String> urls = SonicUtils.extractSubResourceUrls(htmlString, currUrl, config.MAX_PREFETCH_SUB_RESOURCE_COUNT);
+        int count = SonicEngine.getInstance().getResourceCache().prefetch(urls);
+        if (SonicUtils.shouldLog(Log.INFO)) {
+            SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") prefetchSubResources:find " + urls.size() + " sub resources, prefetch " + count + ", cost " + (System.currentTimeMillis() - startTime) + " ms.");
+        }
+    }
+
+    /**
+     * The kernel intercepts a request which is not the main document, such as css, js and images.
+     * The resource will be provided by {@link SonicOfflinePackageManager} if it is in an offline
+     * package, or by {@link SonicResourceCache} if it is cached.
+     *
+     * @param url The url of the sub resource
+     * @return The data to kernel, or null if the kernel should load the resource by itself.
+     */
+    protected Object onClientRequestSubResource(String url) {
+        if (isDestroyedOrWaitingForDestroy()) {
+            return null;
+        }
+        Object webResourceResponse = SonicEngine.getInstance().getOfflinePackageManager().getResourceResponse(url);
+        if (null != webResourceResponse) {
+            return webResourceResponse;
+        }
+        return SonicEngine.getInstance().getResourceCache().getResourceResponse(url);
+    }
+
     /**
      * Whether the incoming url matches the current url,it will
      * ignore url parameters
@@ -979,6 +1453,12 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
 
             clearSessionData();
 
+            // Stop the session thread which is streaming response data, nobody will read it
+            for (SonicSessionPipe pipe : sessionPipes) {
+                pipe.getInputStream().abort();
+            }
+            sessionPipes.clear();
+
             if (force || canDestroy()) {
                 if (null != sessionConnection && !force) {
                     sessionConnection.disconnect();
@@ -986,15 +1466,29 @@ public class SonicSession implements SonicSessionStream.Callback, Handler.Callba
                 }
 
                 sessionState.set(STATE_DESTROY);
-                synchronized (sessionState) {
-                    sessionState.notify();
-                }
+                notifyPendingResourceReady();
                 notifyStateChange(curState, STATE_DESTROY, null);
 
                 mainHandler.removeMessages(SESSION_MSG_FORCE_DESTROY);
 
                 callbackWeakRefList.clear();
 
+                ScheduledFuture<?> saveCacheFuture = pendingSaveCacheFuture;
+                if (null != saveCacheFuture) {
+                    saveCacheFuture.cancel(false);
+                    pendingSaveCacheFuture = null;
+                    SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") destroy: cancel pending save cache task.");
+                }
+
+                synchronized (saveCacheLock) {
+                    // The running save task releases its capture stream when it finishes
+                    releaseCaptureStreams(isSaveCacheTaskRunning ? savingCaptureStream : null);
+                    if (!isSaveCacheTaskRunning) {
+                        savingCaptureStream = null;
+                        savingCaptureStreamHolders = 0;
+                    }
+                }
+
                 isWaitingForDestroy.set(false);
 
                 SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") final destroy, force=" + force + ".");
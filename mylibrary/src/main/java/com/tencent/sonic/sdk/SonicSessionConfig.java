@@ -15,18 +15,47 @@ package com.tencent.sonic.sdk;
 
 import android.os.Build;
 
+import java.util.ArrayList;
+import java.util.List;
+
 //SonicSession配置
 public class SonicSessionConfig {
     //链接超时时间 默认5s
     int CONNECT_TIMEOUT_MILLIS = 5 * 1000;
     //读取数据超时 默认15s
     int READ_TIMEOUT_MILLIS = 15 * 1000;
+    //是否根据该域名最近的连接、响应耗时(p95)自动调整连接和读取超时时间 默认关闭
+    boolean ADAPTIVE_TIMEOUT = false;
+    //自动调整后的超时时间下限 默认1s
+    int ADAPTIVE_TIMEOUT_FLOOR_MILLIS = 1000;
+    //自动调整后的超时时间上限 默认30s
+    int ADAPTIVE_TIMEOUT_CEILING_MILLIS = 30 * 1000;
+    //首次连接使用该域名p95连接耗时作为超时时间，超时后用正常的超时时间重试一次(不是并行请求，并行请求见HEDGE_MAIN_DOCUMENT) 默认关闭
+    boolean RETRY_SLOW_CONNECT = false;
+    //主文档请求超过该域名p95耗时仍未收到响应头时，向该域名的另一个IP(或同一域名)并行发起第二个请求，先返回的请求胜出 默认关闭
+    boolean HEDGE_MAIN_DOCUMENT = false;
     //读取buf数据的大小 默认10k
     int READ_BUF_SIZE = 1024 * 10;
+    //WebView拦截主文档请求时等待sonic数据流就绪的最长时间 默认30s
+    long PENDING_RESOURCE_TIMEOUT_MILLIS = 30 * 1000;
+    //会话线程向WebView传输数据的环形缓冲区大小 默认64k
+    int STREAM_PIPE_BUFFER_SIZE = 1024 * 64;
+    //标准模式命中缓存时，先把缓存模板中第一个数据块之前的静态头部传给WebView，剩余部分等服务器结果确定后再传 默认关闭
+    boolean EARLY_FLUSH_TEMPLATE_HEAD = false;
+    //从缓存或新下载的html中提取css、js等子资源并提前下载到子资源缓存的最大数量 默认16个，小于等于0表示不预取
+    int MAX_PREFETCH_SUB_RESOURCE_COUNT = 16;
     //预加载会话保留时间 默认3分钟
     long PRELOAD_SESSION_EXPIRED_TIME = 3 * 60 * 1000;
     //是否开启dif，如果为true则服务器只会返回和客户端动态数据变化的部分
     boolean ACCEPT_DIFF_DATA = true;
+    //模板变化时是否接受服务器返回基于本地模板的增量(copy/insert指令)，合成后校验sha1，失败则重新请求完整页面 默认关闭
+    boolean ACCEPT_TEMPLATE_DELTA = false;
+    //缓存最近一次与服务器校验后该时间内直接使用缓存，不再请求网络 默认0，表示总是请求网络
+    long CACHE_FRESH_TIME = 0;
+    //缓存校验时间超过CACHE_FRESH_TIME但未超过该时间时，先使用缓存，再在后台请求网络更新缓存(不通知页面) 默认0，小于等于CACHE_FRESH_TIME表示不在后台更新
+    long CACHE_STALE_TIME = 0;
+    //是否使用服务器Cache-Control中的max-age、stale-while-revalidate代替上面两个时间(服务器未返回时仍使用上面两个时间) 默认关闭
+    boolean USE_SERVER_CACHE_CONTROL = false;
     //本地缓存是否关联账号，如果关联账号，那么每个账号都有独立的缓存文件
     boolean IS_ACCOUNT_RELATED = true;
     //在网路不好的时候是否读取数据
@@ -41,6 +70,8 @@ public class SonicSessionConfig {
     SonicCacheInterceptor cacheInterceptor = null;
     //网络连接提供者
     SonicSessionConnectionInterceptor connectionInterceptor = null;
+    //宿主提供的内容解码器(如br、zstd)，优先级高于内置的gzip、deflate，按添加顺序协商
+    List<SonicContentDecoder> contentDecoders = new ArrayList<SonicContentDecoder>();
 
     @Override
     public boolean equals(Object other) {
@@ -61,10 +92,46 @@ public class SonicSessionConfig {
             target.READ_TIMEOUT_MILLIS = readTimeoutMillis;
             return this;
         }
+        public Builder setAdaptiveTimeout(boolean adaptiveTimeout) {
+            target.ADAPTIVE_TIMEOUT = adaptiveTimeout;
+            return this;
+        }
+        public Builder setAdaptiveTimeoutFloorMillis(int adaptiveTimeoutFloorMillis) {
+            target.ADAPTIVE_TIMEOUT_FLOOR_MILLIS = adaptiveTimeoutFloorMillis;
+            return this;
+        }
+        public Builder setAdaptiveTimeoutCeilingMillis(int adaptiveTimeoutCeilingMillis) {
+            target.ADAPTIVE_TIMEOUT_CEILING_MILLIS = adaptiveTimeoutCeilingMillis;
+            return this;
+        }
+        public Builder setRetrySlowConnect(boolean retrySlowConnect) {
+            target.RETRY_SLOW_CONNECT = retrySlowConnect;
+            return this;
+        }
+        public Builder setHedgeMainDocument(boolean hedgeMainDocument) {
+            target.HEDGE_MAIN_DOCUMENT = hedgeMainDocument;
+            return this;
+        }
         public Builder setReadBufferSize(int readBufferSize) {
             target.READ_BUF_SIZE = readBufferSize;
             return this;
         }
+        public Builder setPendingResourceTimeoutMillis(long pendingResourceTimeoutMillis) {
+            target.PENDING_RESOURCE_TIMEOUT_MILLIS = pendingResourceTimeoutMillis;
+            return this;
+        }
+        public Builder setStreamPipeBufferSize(int streamPipeBufferSize) {
+            target.STREAM_PIPE_BUFFER_SIZE = streamPipeBufferSize;
+            return this;
+        }
+        public Builder setEarlyFlushTemplateHead(boolean earlyFlushTemplateHead) {
+            target.EARLY_FLUSH_TEMPLATE_HEAD = earlyFlushTemplateHead;
+            return this;
+        }
+        public Builder setMaxPrefetchSubResourceCount(int maxPrefetchSubResourceCount) {
+            target.MAX_PREFETCH_SUB_RESOURCE_COUNT = maxPrefetchSubResourceCount;
+            return this;
+        }
         public Builder setPreloadSessionExpiredTimeMillis(long preloadSessionExpiredTimeMillis) {
             target.PRELOAD_SESSION_EXPIRED_TIME = preloadSessionExpiredTimeMillis;
             return this;
@@ -73,6 +140,10 @@ public class SonicSessionConfig {
             target.ACCEPT_DIFF_DATA = enable;
             return this;
         }
+        public Builder setAcceptTemplateDelta(boolean acceptTemplateDelta) {
+            target.ACCEPT_TEMPLATE_DELTA = acceptTemplateDelta;
+            return this;
+        }
         public Builder setIsAccountRelated(boolean value) {
             target.IS_ACCOUNT_RELATED = value;
             return this;
@@ -101,6 +172,22 @@ public class SonicSessionConfig {
             target.connectionInterceptor = intercepter;
             return this;
         }
+        public Builder setCacheFreshTime(long cacheFreshTime) {
+            target.CACHE_FRESH_TIME = cacheFreshTime;
+            return this;
+        }
+        public Builder setCacheStaleTime(long cacheStaleTime) {
+            target.CACHE_STALE_TIME = cacheStaleTime;
+            return this;
+        }
+        public Builder setUseServerCacheControl(boolean useServerCacheControl) {
+            target.USE_SERVER_CACHE_CONTROL = useServerCacheControl;
+            return this;
+        }
+        public Builder addContentDecoder(SonicContentDecoder decoder) {
+            target.contentDecoders.add(decoder);
+            return this;
+        }
         public SonicSessionConfig build() {
             return target;
         }
@@ -19,6 +19,7 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -29,11 +30,8 @@ import java.net.URLConnection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.zip.GZIPInputStream;
 
-import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLSession;
 
 /**
  *
@@ -56,7 +54,7 @@ public abstract class SonicSessionConnection {
      * HTTP header:accept-diff. <br>
      * This header represents that client accepts data incremental scene updates or not.
      */
-    private final static String CUSTOM_HEAD_FILED_ACCEPT_DIFF = "accept-diff";
+    final static String CUSTOM_HEAD_FILED_ACCEPT_DIFF = "accept-diff";
 
     /**
      * HTTP header:template_tag. <br>
@@ -70,12 +68,33 @@ public abstract class SonicSessionConnection {
      */
     public final static String CUSTOM_HEAD_FILED_TEMPLATE_CHANGE = "template-change";
 
+    /**
+     * HTTP header:accept-template-delta. <br>
+     * This header represents that client accepts a delta against the template represented by
+     * {@link #CUSTOM_HEAD_FILED_TEMPLATE_TAG} when the template changes.
+     */
+    private final static String CUSTOM_HEAD_FILED_ACCEPT_TEMPLATE_DELTA = "accept-template-delta";
+
+    /**
+     * HTTP header:sonic-template-delta. <br>
+     * This header indicates that the response is a delta against the cached template (see {@link SonicTemplateDelta}),
+     * its value is the SHA1 value of the new website.
+     */
+    public final static String CUSTOM_HEAD_FILED_TEMPLATE_DELTA = "sonic-template-delta";
+
     /**
      * HTTP header:cache-offline. <br>
      * This header indicates whether the website needs to be refreshed or not.
      */
     public final static String CUSTOM_HEAD_FILED_CACHE_OFFLINE = "cache-offline";
 
+    /**
+     * HTTP header:sonic-unavailable-scope. <br>
+     * This header indicates the scope of "cache-offline: http", "host" means all the urls of the host
+     * are unavailable, otherwise only the current session is unavailable.
+     */
+    public final static String CUSTOM_HEAD_FILED_UNAVAILABLE_SCOPE = "sonic-unavailable-scope";
+
     /**
      * HTTP header:dns-prefetch-address <br>
      * This header represents the ip address of the server. <br>
@@ -87,7 +106,7 @@ public abstract class SonicSessionConnection {
      * HTTP Header:sdk_version. <br>
      * This header represents the version of SDK.
      */
-    private final static String CUSTOM_HEAD_FILED_SDK_VERSION = "sonic-sdk-version";
+    final static String CUSTOM_HEAD_FILED_SDK_VERSION = "sonic-sdk-version";
 
     /**
      * HTTP Header:dns-prefetch. <br>
@@ -107,6 +126,13 @@ public abstract class SonicSessionConnection {
      */
     public final static String HTTP_HEAD_CSP_REPORT_ONLY = "Content-Security-Policy-Report-Only";
 
+    /**
+     * HTTP Header：Cache-Control. <br>
+     * The max-age and stale-while-revalidate of this header decide the freshness of session cache,
+     * see {@link SonicSessionConfig#USE_SERVER_CACHE_CONTROL}.
+     */
+    public final static String HTTP_HEAD_CACHE_CONTROL = "Cache-Control";
+
     /**
      * SonicSession Object used by SonicSessionConnection.
      */
@@ -142,6 +168,13 @@ public abstract class SonicSessionConnection {
         return internalConnect();
     }
 
+    /**
+     * @return The direct address the connection is sent to, see {@link #DNS_PREFETCH_ADDRESS}.
+     */
+    String getDirectAddress() {
+        return intent.getStringExtra(DNS_PREFETCH_ADDRESS);
+    }
+
     /**
      * Disconnect the communications link to the resource referenced by Sonic session
      */
@@ -203,22 +236,23 @@ public abstract class SonicSessionConnection {
 
         BufferedInputStream responseStream;
 
-        ByteArrayOutputStream outputStream;
+        SonicCaptureOutputStream outputStream;
     }
     //获取服务器的响应数据
-    public synchronized ResponseDataTuple getResponseData(AtomicBoolean breakCondition, ByteArrayOutputStream outputStream) {
+    public synchronized ResponseDataTuple getResponseData(AtomicBoolean breakCondition, SonicCaptureOutputStream outputStream) {
         BufferedInputStream responseStream = getResponseStream();
         if (null != responseStream) {
             if (null == outputStream) {
-                outputStream = new ByteArrayOutputStream();
+                outputStream = session.createCaptureStream();
             }
             byte[] buffer = new byte[session.config.READ_BUF_SIZE];
             try {
                 int n = 0;
                 //如果webview已经发起资源拦截请求，就中断网络数据的读取，将已经读取的数据和未读取的网络数据拼接成桥接流
-                //SonicSessionStream，并将其赋值给SonicSession的pendingWebResourceStream
-                while (!breakCondition.get() && -1 != (n = responseStream.read(buffer)))
-                    outputStream.write(buffer, 0, n);
+                //SonicSessionPipe，并将其赋值给SonicSession的pendingWebResourceStream
+                //无法再捕获数据时（预算耗尽且无法转存到文件）也停止预读，剩余数据交给SonicSessionPipe边读边传
+                while (!breakCondition.get() && outputStream.canCapture() && -1 != (n = responseStream.read(buffer)))
+                    outputStream.forceWrite(buffer, 0, n);
                 ResponseDataTuple responseDataTuple = new ResponseDataTuple();
                 responseDataTuple.responseStream = responseStream;
                 responseDataTuple.outputStream = outputStream;
@@ -243,14 +277,49 @@ public abstract class SonicSessionConnection {
          */
         private URLConnection connectionImpl;
 
+        /**
+         * Whether the connection is the first attempt with the p95 connect timeout, see {@link SonicSessionConfig#RETRY_SLOW_CONNECT}
+         */
+        private boolean isFastTimeoutAttempt;
+
+        /**
+         * The cached template which the server delta is applied to, it is null if delta is not accepted.
+         */
+        private byte[] deltaTemplate;
+
+        /**
+         * Whether the delta failed and the full website is requested
+         */
+        private boolean isTemplateDeltaDisabled;
+
+        /**
+         * Whether the response was encoded by an unsupported coding and is requested with identity
+         */
+        private boolean isContentEncodingDisabled;
+
         public SessionConnectionDefaultImpl(SonicSession session, Intent intent) {
             super(session, intent);
         }
 
         private URLConnection createConnection() {
+            String dnsPrefetchAddress = intent.getStringExtra(SonicSessionConnection.DNS_PREFETCH_ADDRESS);
+            URLConnection connection = openConnection(session.currUrl, dnsPrefetchAddress);
+            if (null != connection) {
+                // The connection prewarmed by SonicEngine#prewarm is picked up from pool
+                session.statistics.isConnectionPrewarmed = SonicEngine.getInstance().getConnectionWarmer().onConnect(session.currUrl, dnsPrefetchAddress);
+            }
+            return connection;
+        }
 
-            String currentUrl = session.currUrl;
-
+        /**
+         * Open a connection to the url, the connections to the same url and direct address are created
+         * in the same way, so they can share the keep-alive connections in pool.
+         *
+         * @param currentUrl         The url
+         * @param dnsPrefetchAddress The direct address of the url, see {@link SonicRuntime#getHostDirectAddress(String)}
+         * @return The connection, or null if the url is invalid.
+         */
+        static URLConnection openConnection(String currentUrl, String dnsPrefetchAddress) {
             if (TextUtils.isEmpty(currentUrl)) {
                 return null;
             }
@@ -258,7 +327,6 @@ public abstract class SonicSessionConnection {
             URLConnection connection = null;
             try {
                 URL url = new URL(currentUrl);
-                String dnsPrefetchAddress = intent.getStringExtra(SonicSessionConnection.DNS_PREFETCH_ADDRESS);
                 String originHost = null;
                 /**
                  * Use the ip value mapped by {@code SonicSessionConnection.DNS_PREFETCH_ADDRESS} to avoid the cost time of DNS resolution.
@@ -266,7 +334,8 @@ public abstract class SonicSessionConnection {
                  */
                 if (!TextUtils.isEmpty(dnsPrefetchAddress)) {
                     originHost = url.getHost();
-                    url = new URL(currentUrl.replace(originHost, dnsPrefetchAddress));
+                    // Only the host is replaced, the same text in path or query is kept
+                    url = new URL(url.getProtocol(), dnsPrefetchAddress, url.getPort(), url.getFile());
                     SonicUtils.log(TAG, Log.INFO, "create UrlConnection with DNS-Prefetch(" + originHost + " -> " + dnsPrefetchAddress + ").");
                 }
                 connection = url.openConnection();
@@ -287,22 +356,9 @@ public abstract class SonicSessionConnection {
                             /**
                              * If the scheme of url is https, then it needs extra processing, such as the sni support.
                              */
-                            final String finalOriginHost = originHost;
-                            final URL finalUrl = url;
                             HttpsURLConnection httpsConnection = (HttpsURLConnection) connection;
-                            httpsConnection.setSSLSocketFactory(new SonicSniSSLSocketFactory(SonicEngine.getInstance().getRuntime().getContext(), originHost));
-                            httpsConnection.setHostnameVerifier(new HostnameVerifier() {
-                                @Override
-                                public boolean verify(String hostname, SSLSession session) {
-                                    boolean verifySuccess = false;
-                                    long startTime = System.currentTimeMillis();
-                                    if (finalUrl.getHost().equals(hostname)) {
-                                        verifySuccess = HttpsURLConnection.getDefaultHostnameVerifier().verify(finalOriginHost, session);
-                                        SonicUtils.log(TAG, Log.DEBUG, "verify hostname cost " + (System.currentTimeMillis() - startTime) + " ms.");
-                                    }
-                                    return verifySuccess;
-                                }
-                            });
+                            httpsConnection.setSSLSocketFactory(SonicSniSSLSocketFactory.getSocketFactory(SonicEngine.getInstance().getRuntime().getContext(), originHost));
+                            httpsConnection.setHostnameVerifier(SonicSniSSLSocketFactory.getHostnameVerifier(url.getHost(), originHost));
                         }
                     }
                 }
@@ -321,50 +377,92 @@ public abstract class SonicSessionConnection {
                 if (null != connectionImpl) {
                     String currentUrl = session.srcUrl;
                     SonicSessionConfig config = session.config;
-                    connectionImpl.setConnectTimeout(config.CONNECT_TIMEOUT_MILLIS);
-                    connectionImpl.setReadTimeout(config.READ_TIMEOUT_MILLIS);
-                    /**
-                     *  {@link SonicSessionConnection#CUSTOM_HEAD_FILED_ACCEPT_DIFF} is need to be set If client accepts incrementally updates. <br>
-                     *  <p><b>Note: It doesn't support incrementally updated for template file.</b><p/>
-                     */
-                    connectionImpl.setRequestProperty(CUSTOM_HEAD_FILED_ACCEPT_DIFF, config.ACCEPT_DIFF_DATA ? "true" : "false");
-
-                    String eTag = intent.getStringExtra(CUSTOM_HEAD_FILED_ETAG);
-                    if (null == eTag) eTag = "";
-                    connectionImpl.setRequestProperty("If-None-Match", eTag);
+                    SonicNetworkTimingTracker timingTracker = SonicEngine.getInstance().getNetworkTimingTracker();
+                    int connectTimeout = timingTracker.getConnectTimeout(currentUrl, config);
+                    long connectP95 = timingTracker.getConnectP95(currentUrl);
+                    if (config.RETRY_SLOW_CONNECT && !session.statistics.isConnectRetried && connectP95 >= 0) {
+                        // 首次连接超过p95仍未完成时放弃，用正常的超时时间重新连接一次
+                        int fastTimeout = SonicNetworkTimingTracker.clamp(config, connectP95);
+                        if (fastTimeout < connectTimeout) {
+                            connectTimeout = fastTimeout;
+                            isFastTimeoutAttempt = true;
+                        }
+                    }
+                    connectionImpl.setConnectTimeout(connectTimeout);
+                    connectionImpl.setReadTimeout(timingTracker.getReadTimeout(currentUrl, config));
 
                     String templateTag = intent.getStringExtra(CUSTOM_HEAD_FILED_TEMPLATE_TAG);
-                    if (null == templateTag) templateTag = "";
-                    connectionImpl.setRequestProperty(CUSTOM_HEAD_FILED_TEMPLATE_TAG, templateTag);
-
-                    connectionImpl.setRequestProperty("method", "GET");
-                    connectionImpl.setRequestProperty("accept-Charset", "utf-8");
-                    connectionImpl.setRequestProperty("accept-Encoding", "gzip");
-                    connectionImpl.setRequestProperty("accept-Language", "zh-CN,zh;");
-                    connectionImpl.setRequestProperty(CUSTOM_HEAD_FILED_SDK_VERSION, "Sonic/" + SonicConstants.SONIC_VERSION_NUM);
-
-                    SonicRuntime runtime = SonicEngine.getInstance().getRuntime();
-                    String cookie = runtime.getCookie(currentUrl);
-                    if (!TextUtils.isEmpty(cookie)) {
-                        connectionImpl.setRequestProperty("cookie", cookie);
-                    } else {
-                        SonicUtils.log(TAG, Log.ERROR, "create UrlConnection cookie is empty");
+                    setRequestHeaders(connectionImpl, currentUrl, config, intent.getStringExtra(CUSTOM_HEAD_FILED_ETAG), templateTag);
+                    if (isContentEncodingDisabled) {
+                        connectionImpl.setRequestProperty("accept-Encoding", "identity");
                     }
-                    String userAgent = runtime.getUserAgent();
-                    if (!TextUtils.isEmpty(userAgent)) {
-                        userAgent += " Sonic/" + SonicConstants.SONIC_VERSION_NUM;
-                    } else {
-                        userAgent = "Sonic/" + SonicConstants.SONIC_VERSION_NUM;
+
+                    deltaTemplate = null;
+                    if (config.ACCEPT_TEMPLATE_DELTA && !isTemplateDeltaDisabled && !TextUtils.isEmpty(templateTag)) {
+                        deltaTemplate = SonicTemplateDelta.readTemplate(session.id);
+                        if (null != deltaTemplate) {
+                            connectionImpl.setRequestProperty(CUSTOM_HEAD_FILED_ACCEPT_TEMPLATE_DELTA, "true");
+                        }
                     }
-                    connectionImpl.setRequestProperty("User-Agent", userAgent);
                 }
             }
             return connectionImpl;
         }
+
+        /**
+         * Set the request headers of sonic, the requests which refresh sessions in background
+         * use them too, see {@link SonicRefreshScheduler}.
+         *
+         * @param connection  The connection
+         * @param currentUrl  The url of session
+         * @param config      The config of session
+         * @param eTag        The eTag of session cache
+         * @param templateTag The template tag of session cache
+         */
+        static void setRequestHeaders(URLConnection connection, String currentUrl, SonicSessionConfig config, String eTag, String templateTag) {
+            /**
+             *  {@link SonicSessionConnection#CUSTOM_HEAD_FILED_ACCEPT_DIFF} is need to be set If client accepts incrementally updates. <br>
+             *  <p><b>Note: It doesn't support incrementally updated for template file.</b><p/>
+             */
+            connection.setRequestProperty(CUSTOM_HEAD_FILED_ACCEPT_DIFF, config.ACCEPT_DIFF_DATA ? "true" : "false");
+
+            if (null == eTag) eTag = "";
+            connection.setRequestProperty("If-None-Match", eTag);
+
+            if (null == templateTag) templateTag = "";
+            connection.setRequestProperty(CUSTOM_HEAD_FILED_TEMPLATE_TAG, templateTag);
+
+            connection.setRequestProperty("method", "GET");
+            connection.setRequestProperty("accept-Charset", "utf-8");
+            connection.setRequestProperty("accept-Encoding", SonicContentDecoder.getAcceptEncoding(SonicContentDecoder.getDecoders(config.contentDecoders)));
+            connection.setRequestProperty("accept-Language", "zh-CN,zh;");
+            connection.setRequestProperty(CUSTOM_HEAD_FILED_SDK_VERSION, "Sonic/" + SonicConstants.SONIC_VERSION_NUM);
+
+            SonicRuntime runtime = SonicEngine.getInstance().getRuntime();
+            String cookie = runtime.getCookie(currentUrl);
+            if (!TextUtils.isEmpty(cookie)) {
+                connection.setRequestProperty("cookie", cookie);
+            } else {
+                SonicUtils.log(TAG, Log.ERROR, "create UrlConnection cookie is empty");
+            }
+            connection.setRequestProperty("User-Agent", SonicUtils.getUserAgent());
+        }
         //开始连接
         @Override
         protected synchronized int internalConnect() {
-            URLConnection urlConnection = getConnection();
+            int responseCode = connectOnce(getConnection());
+            if (isFastTimeoutAttempt && SonicConstants.ERROR_CODE_CONNECT_TOE == responseCode) {
+                SonicUtils.log(TAG, Log.INFO, "session(" + session.sId + ") connect is slower than p95, retry with the normal timeout.");
+                session.statistics.isConnectRetried = true;
+                isFastTimeoutAttempt = false;
+                disconnect();
+                connectionImpl = null;
+                responseCode = connectOnce(getConnection());
+            }
+            return responseCode;
+        }
+
+        private int connectOnce(URLConnection urlConnection) {
             if (urlConnection instanceof HttpURLConnection) {
                 HttpURLConnection httpURLConnection = (HttpURLConnection) urlConnection;
                 try {
@@ -422,8 +520,31 @@ public abstract class SonicSessionConnection {
             if (null == responseStream && null != connectionImpl) {
                 try {
                     InputStream inputStream = connectionImpl.getInputStream();
-                    if ("gzip".equalsIgnoreCase(connectionImpl.getContentEncoding())) {
-                        responseStream = new BufferedInputStream(new GZIPInputStream(inputStream));
+                    // 按Content-Encoding边接收边解码，解码后的数据直接进入捕获流
+                    List<SonicContentDecoder> decoders = SonicContentDecoder.getDecoders(session.config.contentDecoders);
+                    try {
+                        inputStream = SonicContentDecoder.decode(decoders, connectionImpl.getContentEncoding(), inputStream);
+                    } catch (SonicContentDecoder.UnsupportedContentEncodingException e) {
+                        // 不能把未解码的数据交给内核或写入缓存，不接受压缩重新请求一次，仍然失败则当作连接错误
+                        if (isContentEncodingDisabled) {
+                            throw e;
+                        }
+                        SonicUtils.log(TAG, Log.ERROR, "session(" + session.sId + ") " + e.getMessage() + ", request with identity encoding.");
+                        isContentEncodingDisabled = true;
+                        return requestAgain();
+                    }
+                    String deltaSha1 = connectionImpl.getHeaderField(CUSTOM_HEAD_FILED_TEMPLATE_DELTA);
+                    if (null != deltaTemplate && !TextUtils.isEmpty(deltaSha1)) {
+                        // 服务器返回的是基于本地模板的增量，边接收边合成新的html，校验通过后才交给内核
+                        try {
+                            byte[] html = SonicTemplateDelta.apply(deltaTemplate, inputStream, deltaSha1, SonicEngine.getInstance().getConfig().MAX_BUFFERED_RESPONSE_BYTES);
+                            session.statistics.isTemplateDeltaApplied = true;
+                            SonicUtils.log(TAG, Log.INFO, "session(" + session.sId + ") apply template delta, html size = " + html.length + ".");
+                            responseStream = new BufferedInputStream(new ByteArrayInputStream(html));
+                        } catch (Throwable e) {
+                            SonicUtils.log(TAG, Log.ERROR, "session(" + session.sId + ") apply template delta error:" + e.getMessage() + ", request the full website.");
+                            return requestFullWebsite();
+                        }
                     } else {
                         responseStream = new BufferedInputStream(inputStream);
                     }
@@ -433,6 +554,34 @@ public abstract class SonicSessionConnection {
             }
             return responseStream;
         }
+
+        /**
+         * The template delta can not be applied, request the website again without accepting delta.
+         *
+         * @return The stream of the full website, or null if the request failed.
+         */
+        private BufferedInputStream requestFullWebsite() {
+            session.statistics.isTemplateDeltaFallback = true;
+            isTemplateDeltaDisabled = true;
+            return requestAgain();
+        }
+
+        /**
+         * Send the request again with a new connection, the response must be 200.
+         */
+        private BufferedInputStream requestAgain() {
+            disconnect();
+            connectionImpl = null;
+            int responseCode = connectOnce(getConnection());
+            if (SonicConstants.ERROR_CODE_SUCCESS == responseCode) {
+                responseCode = getResponseCode();
+                if (HttpURLConnection.HTTP_OK == responseCode) {
+                    return internalGetResponseStream();
+                }
+            }
+            SonicUtils.log(TAG, Log.ERROR, "session(" + session.sId + ") request again error, response code = " + responseCode + ".");
+            return null;
+        }
         //得到服务器响应code
         @Override
         public int getResponseCode() {
@@ -27,6 +27,13 @@ public abstract class SonicSessionConnectionInterceptor {
     public abstract SonicSessionConnection getConnection(SonicSession session, Intent intent);
 
     public static SonicSessionConnection getSonicSessionConnection(SonicSession session, Intent intent) {
+        if (session.config.HEDGE_MAIN_DOCUMENT) {
+            return new SonicHedgedSessionConnection(session, intent);
+        }
+        return createSonicSessionConnection(session, intent);
+    }
+
+    static SonicSessionConnection createSonicSessionConnection(SonicSession session, Intent intent) {
         SonicSessionConnectionInterceptor interceptor = session.config.connectionInterceptor;
         if (interceptor != null) {
             return interceptor.getConnection(session, intent);
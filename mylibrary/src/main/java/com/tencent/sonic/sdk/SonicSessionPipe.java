@@ -0,0 +1,416 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+
+/**
+ *
+ * <code>SonicSessionPipe</code> streams the response data from session thread (the single producer)
+ * to the kernel (the single consumer).
+ * <p>
+ * The session thread keeps reading the network and captures all of the data for cache. Before the
+ * kernel attaches (the first read of {@link #getInputStream()}), data is only captured. When the kernel
+ * attaches, it replays the data captured so far, and the following data is passed through a bounded
+ * ring buffer, so the session thread blocks when the kernel reads slowly.
+ * Attaching and capturing are guarded by the same lock, so no data is lost or duplicated in hand-over.
+ *
+ */
+class SonicSessionPipe {
+
+    /**
+     * Log filter
+     */
+    private static final String TAG = SonicConstants.SONIC_SDK_LOG_PREFIX + "SonicSessionPipe";
+
+    /**
+     * When both the producer and the consumer of <code>SonicSessionPipe</code> finish, the pipe will
+     * invoke the <code>Callback</code>
+     */
+    public interface Callback {
+        /**
+         * Close callback
+         *
+         * @param readComplete The response has been read completely and all of the data is captured
+         * @param outputStream outputStream include all of the data of the response
+         */
+        void onClose(boolean readComplete, SonicCaptureOutputStream outputStream);
+    }
+
+    /**
+     * The stream read by the kernel
+     */
+    class PipeInputStream extends InputStream {
+
+        /**
+         * The data captured before the kernel attached
+         */
+        private InputStream replayStream;
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            int n;
+            while (0 == (n = read(buffer, 0, 1))) {
+                // read again
+            }
+            return -1 == n ? -1 : buffer[0] & 0xff;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int byteOffset, int byteCount) throws IOException {
+            if ((byteOffset | byteCount) < 0 || byteOffset > buffer.length || buffer.length - byteOffset < byteCount) {
+                throw new ArrayIndexOutOfBoundsException();
+            }
+            if (0 == byteCount) {
+                return 0;
+            }
+
+            InputStream replay;
+            synchronized (lock) {
+                if (readerClosed) {
+                    throw new IOException("pipe is closed");
+                }
+                if (!attached) {
+                    attached = true;
+                    replayStream = captureStream.openReplayStream();
+                    lock.notifyAll();
+                }
+                replay = replayStream;
+            }
+
+            if (null != replay) {
+                int n = replay.read(buffer, byteOffset, byteCount);
+                if (n > 0) {
+                    return n;
+                }
+                replayStream = null;
+                replay.close();
+            }
+
+            synchronized (lock) {
+                try {
+                    while (0 == count && !writerDone && !readerClosed) {
+                        lock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+                if (readerClosed) {
+                    throw new IOException("pipe is closed");
+                }
+                if (0 == count) {
+                    if (!writeComplete) {
+                        throw new IOException("response is incomplete");
+                    }
+                    return -1;
+                }
+                int n = Math.min(byteCount, Math.min(count, ringBuffer.length - readIndex));
+                System.arraycopy(ringBuffer, readIndex, buffer, byteOffset, n);
+                readIndex = (readIndex + n) % ringBuffer.length;
+                count -= n;
+                lock.notifyAll();
+                return n;
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            InputStream replay = replayStream;
+            if (null != replay) {
+                return replay.available();
+            }
+            synchronized (lock) {
+                return count;
+            }
+        }
+
+        /**
+         * Closes this input stream and invoke the callback's onClose method if the response has been read.
+         */
+        @Override
+        public void close() throws IOException {
+            closeReader(false);
+            InputStream replay = replayStream;
+            replayStream = null;
+            if (null != replay) {
+                replay.close();
+            }
+        }
+
+        /**
+         * Close this input stream, and stop the producer as well.
+         */
+        void abort() {
+            closeReader(true);
+        }
+
+        /**
+         * @return The size of data buffered in memory by the pipe.
+         */
+        long getBufferedSize() {
+            synchronized (lock) {
+                return captureStream.getMemorySize() + count;
+            }
+        }
+    }
+
+    private final Object lock = new Object();
+
+    private final WeakReference<Callback> callbackWeakReference;
+
+    private final SonicCaptureOutputStream captureStream;
+
+    /**
+     * Unread data from network, it is only accessed by the producer
+     */
+    private BufferedInputStream responseStream;
+
+    private final int readBufferSize;
+
+    /**
+     * The max time the producer waits for the kernel to attach when no more data can be captured
+     */
+    private final long attachTimeoutMillis;
+
+    private final byte[] ringBuffer;
+
+    private int readIndex;
+
+    private int writeIndex;
+
+    /**
+     * The count of bytes in <code>ringBuffer</code>
+     */
+    private int count;
+
+    private boolean attached;
+
+    private boolean writerDone;
+
+    private boolean writeComplete;
+
+    private boolean readerClosed;
+
+    private boolean aborted;
+
+    private boolean callbackInvoked;
+
+    private final PipeInputStream inputStream = new PipeInputStream();
+
+    /**
+     * Constructor
+     *
+     * @param callback       Callback
+     * @param captureStream  The data read from network, and the following data is captured into it
+     * @param responseStream Unread data from network, null means the response has been read completely
+     * @param config         The session config
+     */
+    SonicSessionPipe(Callback callback, SonicCaptureOutputStream captureStream, BufferedInputStream responseStream, SonicSessionConfig config) {
+        this.callbackWeakReference = new WeakReference<Callback>(callback);
+        this.captureStream = captureStream;
+        this.responseStream = responseStream;
+        this.readBufferSize = config.READ_BUF_SIZE;
+        this.attachTimeoutMillis = config.PENDING_RESOURCE_TIMEOUT_MILLIS;
+        this.ringBuffer = new byte[Math.max(config.READ_BUF_SIZE, config.STREAM_PIPE_BUFFER_SIZE)];
+        if (null == responseStream) {
+            writerDone = true;
+            writeComplete = true;
+        }
+    }
+
+    /**
+     * @return The stream read by the kernel
+     */
+    PipeInputStream getInputStream() {
+        return inputStream;
+    }
+
+    SonicCaptureOutputStream getCaptureStream() {
+        return captureStream;
+    }
+
+    /**
+     * Read the network until the kernel attaches or the response ends.
+     *
+     * @return Return true if the whole response has been read before the kernel attached.
+     */
+    boolean readUntilAttached() {
+        return pump(true);
+    }
+
+    /**
+     * Read the network until the response ends, the kernel is aborted or the session is destroyed.
+     */
+    void pumpToEnd() {
+        pump(false);
+    }
+
+    private boolean pump(boolean untilAttached) {
+        try {
+            return pumpInternal(untilAttached);
+        } finally {
+            invokeCallbackIfNeed();
+        }
+    }
+
+    private boolean pumpInternal(boolean untilAttached) {
+        synchronized (lock) {
+            if (writerDone) {
+                return writeComplete && !attached;
+            }
+        }
+
+        byte[] buffer = new byte[readBufferSize];
+        try {
+            while (true) {
+                synchronized (lock) {
+                    if (aborted || (readerClosed && captureStream.isTruncated())) {
+                        // Nobody needs the following data
+                        finishWrite(false);
+                        return false;
+                    }
+                    if (!attached && !captureStream.canCapture()) {
+                        long deadline = System.currentTimeMillis() + attachTimeoutMillis;
+                        long remaining;
+                        while (!attached && !aborted && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                            lock.wait(remaining);
+                        }
+                        if (!attached) {
+                            SonicUtils.log(TAG, Log.ERROR, "pump error:capture is full and the kernel does not attach in " + attachTimeoutMillis + " ms.");
+                            finishWrite(false);
+                            return false;
+                        }
+                    }
+                    if (untilAttached && attached) {
+                        return false;
+                    }
+                }
+
+                int n = responseStream.read(buffer);
+                if (-1 == n) {
+                    synchronized (lock) {
+                        boolean completeBeforeAttach = !attached;
+                        finishWrite(true);
+                        return completeBeforeAttach;
+                    }
+                }
+                write(buffer, n);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            SonicUtils.log(TAG, Log.ERROR, "pump is interrupted.");
+            synchronized (lock) {
+                finishWrite(false);
+            }
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "pump error:" + e.getMessage());
+            synchronized (lock) {
+                finishWrite(false);
+            }
+        }
+        return false;
+    }
+
+    private void write(byte[] buffer, int n) throws InterruptedException {
+        synchronized (lock) {
+            if (!attached) {
+                captureStream.forceWrite(buffer, 0, n);
+                return;
+            }
+
+            captureStream.write(buffer, 0, n);
+            int offset = 0;
+            while (offset < n && !readerClosed && !aborted) {
+                if (count == ringBuffer.length) {
+                    lock.wait();
+                    continue;
+                }
+                int len = Math.min(n - offset, Math.min(ringBuffer.length - count, ringBuffer.length - writeIndex));
+                System.arraycopy(buffer, offset, ringBuffer, writeIndex, len);
+                writeIndex = (writeIndex + len) % ringBuffer.length;
+                count += len;
+                offset += len;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Must be called with <code>lock</code> held
+     */
+    private void finishWrite(boolean complete) {
+        if (writerDone) {
+            return;
+        }
+        writerDone = true;
+        writeComplete = complete;
+        if (null != responseStream) {
+            try {
+                responseStream.close();
+            } catch (Throwable e) {
+                SonicUtils.log(TAG, Log.ERROR, "close response stream error:" + e.getMessage());
+            }
+            responseStream = null;
+        }
+        lock.notifyAll();
+    }
+
+    private void closeReader(boolean abort) {
+        synchronized (lock) {
+            if (abort) {
+                aborted = true;
+            }
+            if (readerClosed) {
+                lock.notifyAll();
+                return;
+            }
+            readerClosed = true;
+            count = 0;
+            lock.notifyAll();
+            if (SonicUtils.shouldLog(Log.INFO)) {
+                SonicUtils.log(TAG, Log.INFO, "close: attached=" + attached + ", writerDone=" + writerDone + ", writeComplete=" + writeComplete + ", abort=" + abort);
+            }
+        }
+        invokeCallbackIfNeed();
+    }
+
+    /**
+     * Invoke the callback once both the producer and the consumer finish, it must be called without
+     * <code>lock</code> held, so the callback never blocks the other side of the pipe.
+     */
+    private void invokeCallbackIfNeed() {
+        boolean readComplete;
+        synchronized (lock) {
+            if (callbackInvoked || !writerDone || !readerClosed) {
+                return;
+            }
+            callbackInvoked = true;
+            readComplete = writeComplete && !aborted && !captureStream.isTruncated();
+        }
+        Callback callback = callbackWeakReference.get();
+        if (null != callback) {
+            callback.onClose(readComplete, captureStream);
+        } else {
+            captureStream.close();
+        }
+    }
+}
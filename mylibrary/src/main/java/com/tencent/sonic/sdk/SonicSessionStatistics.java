@@ -67,4 +67,50 @@ public class SonicSessionStatistics {
      * Is IP direct
      */
     public boolean isDirectAddress;
+
+    /**
+     * Whether the connection was prewarmed by {@link SonicEngine#prewarm(String)}
+     */
+    public boolean isConnectionPrewarmed;
+
+    /**
+     * Whether the first connect attempt timed out at p95 and the connect was retried,
+     * see {@link SonicSessionConfig#RETRY_SLOW_CONNECT}
+     */
+    public boolean isConnectRetried;
+
+    /**
+     * Whether a second request for the main document was sent, see {@link SonicSessionConfig#HEDGE_MAIN_DOCUMENT}
+     */
+    public boolean isMainDocumentHedged;
+
+    /**
+     * Whether the response of the second request for the main document was used
+     */
+    public boolean isMainDocumentHedgeWon;
+
+    /**
+     * Whether the connection was skipped because the circuit of host is open, see {@link SonicConfig#CIRCUIT_BREAKER_FAILURE_THRESHOLD}
+     */
+    public boolean isCircuitOpen;
+
+    /**
+     * Whether the new website was rebuilt from the cached template and a delta, see {@link SonicSessionConfig#ACCEPT_TEMPLATE_DELTA}
+     */
+    public boolean isTemplateDeltaApplied;
+
+    /**
+     * Whether the template delta failed to apply and the full website was requested again
+     */
+    public boolean isTemplateDeltaFallback;
+
+    /**
+     * Whether the connection was skipped because the cache is fresh, see {@link SonicSessionConfig#CACHE_FRESH_TIME}
+     */
+    public boolean isCacheFresh;
+
+    /**
+     * Whether the cache was used and refreshed in background because it is stale, see {@link SonicSessionConfig#CACHE_STALE_TIME}
+     */
+    public boolean isCacheStale;
 }
@@ -15,14 +15,16 @@ package com.tencent.sonic.sdk;
 
 import android.util.Log;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.SynchronousQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-//SonicSession线程池
+//SonicSession线程池，任务按优先级排队：前台会话 > 预加载会话 > 后台保存
 class SonicSessionThreadPool {
 
     /**
@@ -30,15 +32,76 @@ class SonicSessionThreadPool {
      */
     private final static String TAG = SonicConstants.SONIC_SDK_LOG_PREFIX + "SonicSessionThreadPool";
 
+    /**
+     * Task priority : the session which is bound (or will be bound) to a client
+     */
+    static final int PRIORITY_FOREGROUND = 0;
+
+    /**
+     * Task priority : the session which is preloaded
+     */
+    static final int PRIORITY_PRELOAD = 1;
+
+    /**
+     * Task priority : background work, such as saving cache
+     */
+    static final int PRIORITY_BACKGROUND = 2;
+
     /**
      * Singleton object
      */
-    private final static SonicSessionThreadPool sInstance = new SonicSessionThreadPool();
+    private static SonicSessionThreadPool sInstance;
+
+    /**
+     * Callback invoked when a task is rejected, either because the queue is full or because it is
+     * evicted from the queue by a task with higher priority.
+     */
+    interface RejectedCallback {
+        void onRejected();
+    }
 
     /**
-     * ExecutorService object (Executors.newCachedThreadPool())
+     * A task with priority, tasks with the same priority are executed in FIFO order
      */
-    private final ExecutorService executorServiceImpl;
+    private static class PriorityTask implements Runnable, Comparable<PriorityTask> {
+
+        private static final AtomicLong sequenceGenerator = new AtomicLong(0);
+
+        final Runnable task;
+
+        final int priority;
+
+        final long sequence;
+
+        final long enqueueTime;
+
+        final RejectedCallback rejectedCallback;
+
+        private final SonicSessionThreadPool pool;
+
+        PriorityTask(SonicSessionThreadPool pool, Runnable task, int priority, RejectedCallback rejectedCallback) {
+            this.pool = pool;
+            this.task = task;
+            this.priority = priority;
+            this.rejectedCallback = rejectedCallback;
+            this.sequence = sequenceGenerator.getAndIncrement();
+            this.enqueueTime = System.currentTimeMillis();
+        }
+
+        @Override
+        public int compareTo(PriorityTask other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            pool.onTaskStart(this);
+            task.run();
+        }
+    }
 
     /**
      * SonicSession ThreadFactory
@@ -90,33 +153,118 @@ class SonicSessionThreadPool {
         }
     }
 
+    /**
+     * ThreadPoolExecutor object, the queue is a priority queue bounded by <code>queueCapacity</code>
+     */
+    private final ThreadPoolExecutor executorServiceImpl;
+
+    private final PriorityBlockingQueue<Runnable> taskQueue = new PriorityBlockingQueue<Runnable>();
+
+    private final int queueCapacity;
+
+    private final AtomicLong executedTaskCount = new AtomicLong(0);
+
+    private final AtomicLong totalWaitTime = new AtomicLong(0);
+
+    private final AtomicLong maxWaitTime = new AtomicLong(0);
+
+    private final AtomicLong rejectedTaskCount = new AtomicLong(0);
+
     /**
      * Constructor and initialize thread pool object
-     * default one core pool and the maximum number of threads is 6
      *
+     * @param poolSize      The maximum number of threads, see {@link SonicConfig#SESSION_THREAD_POOL_SIZE}
+     * @param queueCapacity The maximum number of queued tasks, see {@link SonicConfig#SESSION_THREAD_QUEUE_CAPACITY}
      */
-    private SonicSessionThreadPool() {
-        executorServiceImpl = new ThreadPoolExecutor(1, 6,
+    private SonicSessionThreadPool(int poolSize, int queueCapacity) {
+        poolSize = Math.max(1, poolSize);
+        this.queueCapacity = Math.max(0, queueCapacity);
+        // The queue is unbounded for ThreadPoolExecutor, so the pool never grows beyond its core size,
+        // core threads are allowed to time out instead.
+        executorServiceImpl = new ThreadPoolExecutor(poolSize, poolSize,
                 60L, TimeUnit.SECONDS,
-                new SynchronousQueue<Runnable>(),
+                taskQueue,
                 new SessionThreadFactory());
+        executorServiceImpl.allowCoreThreadTimeOut(true);
+    }
+
+    private static synchronized SonicSessionThreadPool getInstance() {
+        if (null == sInstance) {
+            SonicConfig config = SonicEngine.isGetInstanceAllowed() ? SonicEngine.getInstance().getConfig() : new SonicConfig.Builder().build();
+            sInstance = new SonicSessionThreadPool(config.SESSION_THREAD_POOL_SIZE, config.SESSION_THREAD_QUEUE_CAPACITY);
+        }
+        return sInstance;
     }
 
     /**
-     * Executes the given command at some time in the future.  The command
-     * may execute in a new thread, in a pooled thread, or in the calling
-     * thread, at the discretion of the {@code Executor} implementation.
+     * Executes the given task at some time in the future. If all of the threads are busy, the task
+     * is queued by its priority. When the queue is full, the task with the lowest priority is rejected.
      *
-     * @param task The runnable task
-     * @return Submit success or not
+     * @param task             The runnable task
+     * @param priority         The priority of task
+     * @param rejectedCallback The callback invoked when the task is rejected
+     * @return Return false if the task is rejected immediately
      */
-    private boolean execute(Runnable task) {
-        try {
-            executorServiceImpl.execute(task);
-            return true;
-        } catch (Throwable e) {
-            SonicUtils.log(TAG, Log.ERROR, "execute task error:" + e.getMessage());
-            return false;
+    private boolean execute(Runnable task, int priority, RejectedCallback rejectedCallback) {
+        PriorityTask priorityTask = new PriorityTask(this, task, priority, rejectedCallback);
+        List<PriorityTask> rejectedTasks = new ArrayList<PriorityTask>(1);
+        synchronized (this) {
+            if (executorServiceImpl.getActiveCount() >= executorServiceImpl.getMaximumPoolSize() && taskQueue.size() >= queueCapacity) {
+                PriorityTask victim = findLowestPriorityTask();
+                if (null != victim && priorityTask.compareTo(victim) < 0 && taskQueue.remove(victim)) {
+                    rejectedTasks.add(victim);
+                } else {
+                    rejectedTasks.add(priorityTask);
+                }
+            }
+            if (!rejectedTasks.contains(priorityTask)) {
+                try {
+                    executorServiceImpl.execute(priorityTask);
+                } catch (Throwable e) {
+                    SonicUtils.log(TAG, Log.ERROR, "execute task error:" + e.getMessage());
+                    rejectedTasks.add(priorityTask);
+                }
+            }
+        }
+
+        for (PriorityTask rejectedTask : rejectedTasks) {
+            onTaskRejected(rejectedTask);
+        }
+        return !rejectedTasks.contains(priorityTask);
+    }
+
+    private PriorityTask findLowestPriorityTask() {
+        PriorityTask lowestTask = null;
+        for (Runnable runnable : taskQueue) {
+            PriorityTask queuedTask = (PriorityTask) runnable;
+            if (null == lowestTask || queuedTask.compareTo(lowestTask) > 0) {
+                lowestTask = queuedTask;
+            }
+        }
+        return lowestTask;
+    }
+
+    private void onTaskStart(PriorityTask task) {
+        long waitTime = System.currentTimeMillis() - task.enqueueTime;
+        executedTaskCount.incrementAndGet();
+        totalWaitTime.addAndGet(waitTime);
+        long max;
+        while (waitTime > (max = maxWaitTime.get())) {
+            if (maxWaitTime.compareAndSet(max, waitTime)) {
+                break;
+            }
+        }
+    }
+
+    private void onTaskRejected(PriorityTask task) {
+        rejectedTaskCount.incrementAndGet();
+        SonicUtils.log(TAG, Log.ERROR, "task(priority=" + task.priority + ") is rejected, queue depth = " + taskQueue.size() + ".");
+        if (null != task.rejectedCallback) {
+            try {
+                task.rejectedCallback.onRejected();
+            } catch (Throwable e) {
+                SonicUtils.log(TAG, Log.ERROR, "onRejected error:" + e.getMessage());
+            }
         }
     }
 
@@ -126,9 +274,49 @@ class SonicSessionThreadPool {
      * @param task The runnable task
      * @return Submit success or not
      */
-
     static boolean postTask(Runnable task) {
-        return sInstance.execute(task);
+        return getInstance().execute(task, PRIORITY_FOREGROUND, null);
+    }
+
+    /**
+     * Post an runnable to the pool thread
+     *
+     * @param task             The runnable task
+     * @param priority         One of {@link #PRIORITY_FOREGROUND}, {@link #PRIORITY_PRELOAD} and {@link #PRIORITY_BACKGROUND}
+     * @param rejectedCallback The callback invoked when the task is rejected, it may be invoked after this method returns
+     * @return Return false if the task is rejected immediately
+     */
+    static boolean postTask(Runnable task, int priority, RejectedCallback rejectedCallback) {
+        return getInstance().execute(task, priority, rejectedCallback);
+    }
+
+    /**
+     * @return The count of tasks waiting in the queue now.
+     */
+    static int getQueueDepth() {
+        return getInstance().taskQueue.size();
+    }
+
+    /**
+     * @return The average time (in milliseconds) a task waited in the queue before it started.
+     */
+    static long getAverageWaitTime() {
+        SonicSessionThreadPool pool = getInstance();
+        long count = pool.executedTaskCount.get();
+        return count > 0 ? pool.totalWaitTime.get() / count : 0;
+    }
+
+    /**
+     * @return The max time (in milliseconds) a task waited in the queue before it started.
+     */
+    static long getMaxWaitTime() {
+        return getInstance().maxWaitTime.get();
     }
 
+    /**
+     * @return The count of tasks which were rejected.
+     */
+    static long getRejectedTaskCount() {
+        return getInstance().rejectedTaskCount.get();
+    }
 }
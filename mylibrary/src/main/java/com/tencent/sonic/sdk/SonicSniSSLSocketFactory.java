@@ -16,6 +16,7 @@ package com.tencent.sonic.sdk;
 import android.content.Context;
 import android.net.SSLCertificateSocketFactory;
 import android.net.SSLSessionCache;
+import android.os.Build;
 import android.util.Log;
 
 import java.io.IOException;
@@ -23,7 +24,12 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLPeerUnverifiedException;
@@ -35,6 +41,10 @@ import javax.net.ssl.SSLSocketFactory;
  *
  * Implement IP direct support for SNI type in https scenarios
  * main method{ public Socket createSocket(Socket s, String host, int port, boolean autoClose)}
+ * <p>
+ * The factories and hostname verifiers are shared per host, and all of the factories share one
+ * {@link SSLCertificateSocketFactory} and {@link SSLSessionCache}, so the TLS sessions can be
+ * resumed by the following connections instead of doing full handshakes.
  *
  */
 
@@ -55,10 +65,153 @@ class SonicSniSSLSocketFactory extends SSLSocketFactory {
      */
     private final SSLCertificateSocketFactory sslSocketFactory;
 
-    SonicSniSSLSocketFactory(Context context, String targetHostName) {
+    /**
+     * The SSLSocketFactory shared by all of the hosts, it holds the TLS sessions in memory
+     */
+    private static SSLCertificateSocketFactory sharedSocketFactory;
+
+    /**
+     * Shared factories, key is the host name
+     */
+    private static final ConcurrentHashMap<String, SonicSniSSLSocketFactory> socketFactories = new ConcurrentHashMap<String, SonicSniSSLSocketFactory>();
+
+    /**
+     * Shared hostname verifiers, key is the ip address and the host name
+     */
+    private static final ConcurrentHashMap<String, HostnameVerifier> hostnameVerifiers = new ConcurrentHashMap<String, HostnameVerifier>();
+
+    private static final AtomicLong handshakeCount = new AtomicLong();
+
+    private static final AtomicLong resumedHandshakeCount = new AtomicLong();
+
+    private static final AtomicLong totalHandshakeTime = new AtomicLong();
+
+    private static final AtomicLong maxHandshakeTime = new AtomicLong();
+
+    private SonicSniSSLSocketFactory(SSLCertificateSocketFactory sslSocketFactory, String targetHostName) {
         super();
         this.targetHostName = targetHostName;
-        this.sslSocketFactory = (SSLCertificateSocketFactory) SSLCertificateSocketFactory.getDefault(0, new SSLSessionCache(context));
+        this.sslSocketFactory = sslSocketFactory;
+    }
+
+    /**
+     * @param context        Context
+     * @param targetHostName The real host name of the ip direct connection
+     * @return The factory shared by the connections to <code>targetHostName</code>
+     */
+    static SonicSniSSLSocketFactory getSocketFactory(Context context, String targetHostName) {
+        SonicSniSSLSocketFactory socketFactory = socketFactories.get(targetHostName);
+        if (null == socketFactory) {
+            synchronized (SonicSniSSLSocketFactory.class) {
+                if (null == sharedSocketFactory) {
+                    sharedSocketFactory = (SSLCertificateSocketFactory) SSLCertificateSocketFactory.getDefault(0, new SSLSessionCache(context.getApplicationContext()));
+                }
+            }
+            socketFactory = new SonicSniSSLSocketFactory(sharedSocketFactory, targetHostName);
+            SonicSniSSLSocketFactory existFactory = socketFactories.putIfAbsent(targetHostName, socketFactory);
+            if (null != existFactory) {
+                socketFactory = existFactory;
+            }
+        }
+        return socketFactory;
+    }
+
+    /**
+     * @param directAddress  The ip address used to connect
+     * @param targetHostName The real host name of the ip direct connection
+     * @return The verifier shared by the connections to <code>targetHostName</code> through <code>directAddress</code>,
+     * it verifies the certificate with the real host name.
+     */
+    static HostnameVerifier getHostnameVerifier(final String directAddress, final String targetHostName) {
+        String key = directAddress + "/" + targetHostName;
+        HostnameVerifier hostnameVerifier = hostnameVerifiers.get(key);
+        if (null == hostnameVerifier) {
+            hostnameVerifier = new HostnameVerifier() {
+                @Override
+                public boolean verify(String hostname, SSLSession session) {
+                    boolean verifySuccess = false;
+                    long startTime = System.currentTimeMillis();
+                    if (directAddress.equals(hostname)) {
+                        verifySuccess = HttpsURLConnection.getDefaultHostnameVerifier().verify(targetHostName, session);
+                        SonicUtils.log(TAG, Log.DEBUG, "verify hostname cost " + (System.currentTimeMillis() - startTime) + " ms.");
+                    }
+                    return verifySuccess;
+                }
+            };
+            HostnameVerifier existVerifier = hostnameVerifiers.putIfAbsent(key, hostnameVerifier);
+            if (null != existVerifier) {
+                hostnameVerifier = existVerifier;
+            }
+        }
+        return hostnameVerifier;
+    }
+
+    /**
+     * Measure the cost of the handshake and whether the session is resumed when it is completed.
+     * The handshake is started by the connection on its first I/O, which follows the socket creation
+     * immediately, so the cost is counted from now.
+     */
+    private void listenHandshake(SSLSocket socket) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            sslSocketFactory.setUseSessionTickets(socket, true);
+        }
+        final long startTime = System.currentTimeMillis();
+        socket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+            @Override
+            public void handshakeCompleted(HandshakeCompletedEvent event) {
+                event.getSocket().removeHandshakeCompletedListener(this);
+                SSLSession session = event.getSession();
+                // A resumed session was created by an earlier handshake
+                boolean resumed = null != session && session.getCreationTime() < startTime;
+                onHandshakeCompleted(System.currentTimeMillis() - startTime, resumed);
+            }
+        });
+    }
+
+    private void onHandshakeCompleted(long costTime, boolean resumed) {
+        handshakeCount.incrementAndGet();
+        if (resumed) {
+            resumedHandshakeCount.incrementAndGet();
+        }
+        totalHandshakeTime.addAndGet(costTime);
+        long max;
+        while (costTime > (max = maxHandshakeTime.get())) {
+            if (maxHandshakeTime.compareAndSet(max, costTime)) {
+                break;
+            }
+        }
+        if (SonicUtils.shouldLog(Log.INFO)) {
+            SonicUtils.log(TAG, Log.INFO, "handshake with " + targetHostName + " cost " + costTime + " ms, resumed = " + resumed + ".");
+        }
+    }
+
+    /**
+     * @return The count of TLS handshakes of ip direct connections.
+     */
+    static long getHandshakeCount() {
+        return handshakeCount.get();
+    }
+
+    /**
+     * @return The count of TLS handshakes which resumed an earlier session.
+     */
+    static long getResumedHandshakeCount() {
+        return resumedHandshakeCount.get();
+    }
+
+    /**
+     * @return The average time (in milliseconds) of TLS handshakes.
+     */
+    static long getAverageHandshakeTime() {
+        long count = handshakeCount.get();
+        return count > 0 ? totalHandshakeTime.get() / count : 0;
+    }
+
+    /**
+     * @return The max time (in milliseconds) of TLS handshakes.
+     */
+    static long getMaxHandshakeTime() {
+        return maxHandshakeTime.get();
     }
 
     /**
@@ -90,7 +243,11 @@ class SonicSniSSLSocketFactory extends SSLSocketFactory {
     @Override
     public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
         // The socket connection is completed, you need to upgrade the TLS layer, so the host will be replaced by a real domain name.
-        return sslSocketFactory.createSocket(s, targetHostName, port, autoClose);
+        Socket socket = sslSocketFactory.createSocket(s, targetHostName, port, autoClose);
+        if (socket instanceof SSLSocket) {
+            listenHandshake((SSLSocket) socket);
+        }
+        return socket;
     }
 
     /**
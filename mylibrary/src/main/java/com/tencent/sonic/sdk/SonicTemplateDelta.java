@@ -0,0 +1,160 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ *
+ * <code>SonicTemplateDelta</code> rebuilds the new html from the cached template and a delta sent by
+ * the server when the template changes.
+ * <p>
+ * The delta format (big endian):
+ * <pre>
+ * int   magic   "SDLT"
+ * op * n:
+ *     byte  1 (COPY),   int offset, int length   copy the bytes of cached template
+ *     byte  2 (INSERT), int length, byte[] data  insert the bytes of delta
+ * byte  0 (END)
+ * </pre>
+ * The ops are applied while the delta is being received, and the result is verified with the
+ * sha1 sent in {@link SonicSessionConnection#CUSTOM_HEAD_FILED_TEMPLATE_DELTA}.
+ *
+ */
+class SonicTemplateDelta {
+
+    /**
+     * Log filter
+     */
+    private static final String TAG = SonicConstants.SONIC_SDK_LOG_PREFIX + "SonicTemplateDelta";
+
+    static final int MAGIC = 0x53444C54; // "SDLT"
+
+    static final int OP_END = 0;
+
+    static final int OP_COPY = 1;
+
+    static final int OP_INSERT = 2;
+
+    /**
+     * Rebuild the html.
+     *
+     * @param template     The bytes of cached template
+     * @param delta        The delta stream
+     * @param expectedSha1 The sha1 of the new html
+     * @param maxLength    The max length of the new html, less than or equal to 0 means no limit
+     * @return The new html
+     * @throws IOException If the delta is broken, the new html exceeds maxLength or the result does
+     *                     not match the sha1
+     */
+    static byte[] apply(byte[] template, InputStream delta, String expectedSha1, long maxLength) throws IOException {
+        MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA1");
+        } catch (Exception e) {
+            throw new IOException("sha1 is not supported");
+        }
+        DataInputStream input = new DataInputStream(delta);
+        ByteArrayOutputStream output = new ByteArrayOutputStream(template.length + 1024);
+        try {
+            if (MAGIC != input.readInt()) {
+                throw new IOException("not a sonic template delta");
+            }
+            byte[] buffer = new byte[1024 * 8];
+            int op;
+            while (OP_END != (op = input.readUnsignedByte())) {
+                if (OP_COPY == op) {
+                    int offset = input.readInt();
+                    int length = input.readInt();
+                    if (offset < 0 || length < 0 || offset > template.length - length) {
+                        throw new IOException("invalid copy op, offset = " + offset + ", length = " + length);
+                    }
+                    checkLength(output.size(), length, maxLength);
+                    output.write(template, offset, length);
+                    sha1.update(template, offset, length);
+                } else if (OP_INSERT == op) {
+                    int length = input.readInt();
+                    if (length < 0) {
+                        throw new IOException("invalid insert op, length = " + length);
+                    }
+                    checkLength(output.size(), length, maxLength);
+                    while (length > 0) {
+                        int n = input.read(buffer, 0, Math.min(length, buffer.length));
+                        if (n < 0) {
+                            throw new EOFException();
+                        }
+                        output.write(buffer, 0, n);
+                        sha1.update(buffer, 0, n);
+                        length -= n;
+                    }
+                } else {
+                    throw new IOException("unknown op " + op);
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException("template delta is truncated");
+        }
+        String actualSha1 = SonicUtils.toHexString(sha1.digest());
+        if (!actualSha1.equalsIgnoreCase(expectedSha1)) {
+            throw new IOException("sha1 mismatch, expected " + expectedSha1 + ", actual " + actualSha1);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * A small delta can copy the template many times, so the new html is limited before it is built.
+     */
+    private static void checkLength(int currentLength, int length, long maxLength) throws IOException {
+        if (maxLength > 0 && (long) currentLength + length > maxLength) {
+            throw new IOException("html exceeds " + maxLength + " bytes");
+        }
+    }
+
+    /**
+     * @return The bytes of template file, or null if there is no template.
+     */
+    static byte[] readTemplate(String sessionId) {
+        File file = new File(SonicFileUtils.getSonicTemplatePath(sessionId));
+        if (!file.isFile() || !file.canRead()) {
+            return null;
+        }
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            byte[] bytes = new byte[(int) file.length()];
+            new DataInputStream(inputStream).readFully(bytes);
+            return bytes;
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "readTemplate error:" + e.getMessage());
+        } finally {
+            if (null != inputStream) {
+                try {
+                    inputStream.close();
+                } catch (Exception e) {
+                    SonicUtils.log(TAG, Log.ERROR, "readTemplate close error:" + e.getMessage());
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+package com.tencent.sonic.sdk;
+
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ *
+ * <code>SonicUnavailableTable</code> keeps the times until which sonic is unavailable, in memory.
+ * <p>
+ * A rule covers a session id, a host, or the urls which match a pattern ("*" matches any characters,
+ * such as "https://www.example.com/activity/*"). The rules are loaded from SharedPreferences once,
+ * and the changes are written back in background.
+ *
+ */
+class SonicUnavailableTable {
+
+    /**
+     * Log filter
+     */
+    private static final String TAG = SonicConstants.SONIC_SDK_LOG_PREFIX + "SonicUnavailableTable";
+
+    /**
+     * The key of Unavailable Time of session
+     */
+    private static final String SP_KEY_UNAVAILABLE_TIME = "UnavailableTime_";
+
+    /**
+     * The key of Unavailable Time of host
+     */
+    private static final String SP_KEY_UNAVAILABLE_HOST = "UnavailableHost_";
+
+    /**
+     * The key of Unavailable Time of url pattern
+     */
+    private static final String SP_KEY_UNAVAILABLE_PATTERN = "UnavailablePattern_";
+
+    /**
+     * Unavailable rule of url pattern
+     */
+    private static class PatternRule {
+
+        final Pattern pattern;
+
+        final long unavailableTime;
+
+        PatternRule(Pattern pattern, long unavailableTime) {
+            this.pattern = pattern;
+            this.unavailableTime = unavailableTime;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Long> sessionRules = new ConcurrentHashMap<String, Long>();
+
+    private final ConcurrentHashMap<String, Long> hostRules = new ConcurrentHashMap<String, Long>();
+
+    private final ConcurrentHashMap<String, PatternRule> patternRules = new ConcurrentHashMap<String, PatternRule>();
+
+    /**
+     * The changes which are not written to SharedPreferences, key is the SharedPreferences key,
+     * 0 means removing the key.
+     */
+    private final ConcurrentHashMap<String, Long> pendingWrites = new ConcurrentHashMap<String, Long>();
+
+    private final AtomicBoolean isWriteScheduled = new AtomicBoolean(false);
+
+    private volatile boolean isLoaded;
+
+    /**
+     * Load the rules in background, so the first session does not wait for SharedPreferences.
+     */
+    void preload() {
+        SonicEngine.getInstance().getRuntime().postTaskToThread(new Runnable() {
+            @Override
+            public void run() {
+                ensureLoaded();
+            }
+        }, 0);
+    }
+
+    private void ensureLoaded() {
+        if (isLoaded) {
+            return;
+        }
+        synchronized (this) {
+            if (isLoaded) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            try {
+                for (Map.Entry<String, ?> entry : SonicDataHelper.getSonicSharedPref().getAll().entrySet()) {
+                    String key = entry.getKey();
+                    if (!(entry.getValue() instanceof Long) || !key.startsWith("Unavailable")) {
+                        continue;
+                    }
+                    long unavailableTime = (Long) entry.getValue();
+                    if (unavailableTime <= now) {
+                        pendingWrites.put(key, 0L);
+                    } else if (key.startsWith(SP_KEY_UNAVAILABLE_TIME)) {
+                        sessionRules.put(key.substring(SP_KEY_UNAVAILABLE_TIME.length()), unavailableTime);
+                    } else if (key.startsWith(SP_KEY_UNAVAILABLE_HOST)) {
+                        hostRules.put(key.substring(SP_KEY_UNAVAILABLE_HOST.length()), unavailableTime);
+                    } else if (key.startsWith(SP_KEY_UNAVAILABLE_PATTERN)) {
+                        String pattern = key.substring(SP_KEY_UNAVAILABLE_PATTERN.length());
+                        patternRules.put(pattern, new PatternRule(compile(pattern), unavailableTime));
+                    }
+                }
+            } catch (Throwable e) {
+                SonicUtils.log(TAG, Log.ERROR, "load unavailable rules error:" + e.getMessage());
+            }
+            isLoaded = true;
+            SonicUtils.log(TAG, Log.INFO, "load unavailable rules, session = " + sessionRules.size() + ", host = " + hostRules.size() + ", pattern = " + patternRules.size() + ".");
+        }
+        if (!pendingWrites.isEmpty()) {
+            scheduleWrite();
+        }
+    }
+
+    /**
+     * @param sessionId A unique session id
+     * @param url       The url of session
+     * @return The time until which sonic is unavailable for the session, 0 means available.
+     */
+    long getUnavailableTime(String sessionId, String url) {
+        ensureLoaded();
+        long now = System.currentTimeMillis();
+        long unavailableTime = 0;
+        Long time = sessionRules.get(sessionId);
+        if (null != time && time > now) {
+            unavailableTime = time;
+        }
+        String host = getHost(url);
+        time = TextUtils.isEmpty(host) ? null : hostRules.get(host);
+        if (null != time && time > now) {
+            unavailableTime = Math.max(unavailableTime, time);
+        }
+        if (!TextUtils.isEmpty(url)) {
+            for (PatternRule rule : patternRules.values()) {
+                if (rule.unavailableTime > now && rule.pattern.matcher(url).matches()) {
+                    unavailableTime = Math.max(unavailableTime, rule.unavailableTime);
+                }
+            }
+        }
+        return unavailableTime;
+    }
+
+    void setSessionUnavailableTime(String sessionId, long unavailableTime) {
+        ensureLoaded();
+        sessionRules.put(sessionId, unavailableTime);
+        write(SP_KEY_UNAVAILABLE_TIME + sessionId, unavailableTime);
+    }
+
+    void setHostUnavailableTime(String host, long unavailableTime) {
+        ensureLoaded();
+        hostRules.put(host, unavailableTime);
+        write(SP_KEY_UNAVAILABLE_HOST + host, unavailableTime);
+    }
+
+    void setPatternUnavailableTime(String pattern, long unavailableTime) {
+        ensureLoaded();
+        patternRules.put(pattern, new PatternRule(compile(pattern), unavailableTime));
+        write(SP_KEY_UNAVAILABLE_PATTERN + pattern, unavailableTime);
+    }
+
+    /**
+     * Remove all rules in memory, the SharedPreferences is cleared by {@link SonicDataHelper#clear()}.
+     */
+    void clear() {
+        sessionRules.clear();
+        hostRules.clear();
+        patternRules.clear();
+        pendingWrites.clear();
+    }
+
+    private void write(String key, long unavailableTime) {
+        pendingWrites.put(key, unavailableTime > System.currentTimeMillis() ? unavailableTime : 0L);
+        scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+        if (!isWriteScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        SonicEngine.getInstance().getRuntime().postTaskToThread(new Runnable() {
+            @Override
+            public void run() {
+                isWriteScheduled.set(false);
+                try {
+                    SharedPreferences.Editor editor = SonicDataHelper.getSonicSharedPref().edit();
+                    for (Map.Entry<String, Long> entry : new HashMap<String, Long>(pendingWrites).entrySet()) {
+                        if (0 == entry.getValue()) {
+                            editor.remove(entry.getKey());
+                        } else {
+                            editor.putLong(entry.getKey(), entry.getValue());
+                        }
+                        // The key may be changed again meanwhile, it is written next time
+                        pendingWrites.remove(entry.getKey(), entry.getValue());
+                    }
+                    editor.commit();
+                } catch (Throwable e) {
+                    SonicUtils.log(TAG, Log.ERROR, "write unavailable rules error:" + e.getMessage());
+                }
+            }
+        }, 0);
+    }
+
+    private static Pattern compile(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        String[] parts = pattern.split("\\*", -1);
+        for (int i = 0; i < parts.length; ++i) {
+            if (i > 0) {
+                regex.append(".*");
+            }
+            if (!parts[i].isEmpty()) {
+                regex.append(Pattern.quote(parts[i]));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private static String getHost(String url) {
+        try {
+            return TextUtils.isEmpty(url) ? null : Uri.parse(url).getHost();
+        } catch (Throwable e) {
+            SonicUtils.log(TAG, Log.ERROR, "getHost error:" + e.getMessage() + ", url = " + url);
+        }
+        return null;
+    }
+}
@@ -23,8 +23,16 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -79,6 +87,16 @@ class SonicUtils {
      */
     private static final String SONIC_TAG_KEY_END = "}";
 
+    /**
+     * The tags which may reference a sub resource
+     */
+    private static final Pattern SUB_RESOURCE_TAG_PATTERN = Pattern.compile("<(link|script)\\b([^>]*)>", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * The attributes of a tag, the value may be quoted by double quotes, single quotes or not quoted
+     */
+    private static final Pattern TAG_ATTRIBUTE_PATTERN = Pattern.compile("([a-zA-Z-]+)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s\"'>]+))");
+
     /**
      * Logger function
      *
@@ -269,6 +287,85 @@ class SonicUtils {
         return true;
     }
 
+    /**
+     * Get the length of the static head of html, the head is before the first data slot (the title
+     * or the first sonicdiff tag), so it is the same in every html built from the same template.
+     *
+     * @param htmlString Html content
+     * @return The length of the static head, or 0 if the html has no data slot.
+     */
+    static int getTemplateHeadLength(String htmlString) {
+        if (TextUtils.isEmpty(htmlString)) {
+            return 0;
+        }
+        int diffStart = htmlString.indexOf(SONIC_TAG_DIFF_BEGIN);
+        int titleStart = htmlString.indexOf(SONIC_TAG_TITLE_OPEN);
+        if (diffStart < 0) {
+            return Math.max(titleStart, 0);
+        }
+        return titleStart < 0 ? diffStart : Math.min(diffStart, titleStart);
+    }
+
+    /**
+     * Extract the urls of sub resources from html, such as stylesheets, scripts and preload hints.
+     *
+     * @param htmlString Html content
+     * @param baseUrl    The url of html, it is used to resolve the relative urls
+     * @param maxCount   The max count of urls extracted
+     * @return The absolute urls of sub resources in document order, without duplicates.
+     */
+    static List<String> extractSubResourceUrls(String htmlString, String baseUrl, int maxCount) {
+        Set<String> urls = new LinkedHashSet<String>();
+        if (TextUtils.isEmpty(htmlString) || maxCount <= 0) {
+            return new ArrayList<String>(urls);
+        }
+        URL base;
+        try {
+            base = new URL(baseUrl);
+        } catch (MalformedURLException e) {
+            log(TAG, Log.ERROR, "extractSubResourceUrls error:" + e.getMessage() + ", baseUrl = " + baseUrl);
+            return new ArrayList<String>(urls);
+        }
+        Matcher tagMatcher = SUB_RESOURCE_TAG_PATTERN.matcher(htmlString);
+        while (urls.size() < maxCount && tagMatcher.find()) {
+            boolean isScript = "script".equalsIgnoreCase(tagMatcher.group(1));
+            String rel = null;
+            String href = null;
+            String src = null;
+            Matcher attributeMatcher = TAG_ATTRIBUTE_PATTERN.matcher(tagMatcher.group(2));
+            while (attributeMatcher.find()) {
+                String name = attributeMatcher.group(1).toLowerCase(Locale.US);
+                String value = attributeMatcher.group(2) != null ? attributeMatcher.group(2) :
+                        (attributeMatcher.group(3) != null ? attributeMatcher.group(3) : attributeMatcher.group(4));
+                if ("rel".equals(name)) {
+                    rel = value.toLowerCase(Locale.US);
+                } else if ("href".equals(name)) {
+                    href = value;
+                } else if ("src".equals(name)) {
+                    src = value;
+                }
+            }
+            String url = null;
+            if (isScript) {
+                url = src;
+            } else if (null != rel && (rel.contains("stylesheet") || rel.contains("preload") || rel.contains("prefetch"))) {
+                url = href;
+            }
+            if (!TextUtils.isEmpty(url)) {
+                url = url.trim();
+                if (!url.startsWith("data:") && !url.startsWith("javascript:")) {
+                    // A malformed url only skips itself, the urls after it are still extracted
+                    try {
+                        urls.add(new URL(base, url).toString());
+                    } catch (MalformedURLException e) {
+                        log(TAG, Log.ERROR, "extractSubResourceUrls error:" + e.getMessage() + ", url = " + url);
+                    }
+                }
+            }
+        }
+        return new ArrayList<String>(urls);
+    }
+
     /**
      * Separate html into templates and data
      *
@@ -344,6 +441,43 @@ class SonicUtils {
         SonicFileUtils.deleteSonicFiles(sessionId);
     }
 
+    /**
+     * Record that the session cache is validated by server just now, see {@link SonicSessionConfig#CACHE_FRESH_TIME}.
+     * For a 304 response it is called at once, for a 200 response it is called after the new cache is saved,
+     * so that a cache whose update is aborted is never taken as fresh.
+     *
+     * @param sessionId    A unique session id
+     * @param cacheControl Cache-Control of the response, max-age and stale-while-revalidate are used,
+     *                     no-cache and no-store make the cache expire at once
+     */
+    static void saveSessionValidation(String sessionId, String cacheControl) {
+        SonicDataHelper.SessionFreshness sessionFreshness = new SonicDataHelper.SessionFreshness();
+        sessionFreshness.validateTime = System.currentTimeMillis();
+        if (!TextUtils.isEmpty(cacheControl)) {
+            boolean noCache = false;
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase();
+                try {
+                    if ("no-cache".equals(directive) || "no-store".equals(directive)) {
+                        noCache = true;
+                    } else if (directive.startsWith("max-age=")) {
+                        sessionFreshness.maxAge = Long.parseLong(directive.substring("max-age=".length()).replace("\"", ""));
+                    } else if (directive.startsWith("stale-while-revalidate=")) {
+                        sessionFreshness.staleWhileRevalidate = Long.parseLong(directive.substring("stale-while-revalidate=".length()).replace("\"", ""));
+                    }
+                } catch (NumberFormatException e) {
+                    log(TAG, Log.ERROR, "saveSessionValidation error:invalid Cache-Control " + cacheControl + ".");
+                }
+            }
+            if (noCache) {
+                // Neither fresh nor stale, the local stale time must not be used
+                sessionFreshness.maxAge = 0;
+                sessionFreshness.staleWhileRevalidate = 0;
+            }
+        }
+        SonicDataHelper.saveSessionFreshness(sessionId, sessionFreshness);
+    }
+
     /**
      * Remove all session cache, include memory cache and disk cache
      *
@@ -420,6 +554,20 @@ class SonicUtils {
         return url;
     }
 
+    /**
+     * Get the User-Agent of the requests sent by sonic, it is the user agent of runtime with the
+     * sonic version appended.
+     *
+     * @return The user agent, it is "Sonic/version" if the runtime provides no user agent.
+     */
+    static String getUserAgent() {
+        String userAgent = SonicEngine.getInstance().getRuntime().getUserAgent();
+        if (!TextUtils.isEmpty(userAgent)) {
+            return userAgent + " Sonic/" + SonicConstants.SONIC_VERSION_NUM;
+        }
+        return "Sonic/" + SonicConstants.SONIC_VERSION_NUM;
+    }
+
 
     static String getMime(String url) {
         String mime = "text/html";
@@ -454,6 +602,29 @@ class SonicUtils {
         }
     }
 
+    static String getSHA1(File file) {
+        FileInputStream inputStream = null;
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA1");
+            inputStream = new FileInputStream(file);
+            byte[] buffer = new byte[1024 * 10];
+            int n;
+            while (-1 != (n = inputStream.read(buffer))) {
+                sha1.update(buffer, 0, n);
+            }
+            return toHexString(sha1.digest());
+        } catch (Exception e) {
+            return "";
+        } finally {
+            if (null != inputStream) {
+                try {
+                    inputStream.close();
+                } catch (Exception e) {
+                    log(TAG, Log.ERROR, "getSHA1 close error:" + e.getMessage());
+                }
+            }
+        }
+    }
 
     static String getMD5(String content) {
         if (TextUtils.isEmpty(content))
@@ -467,7 +638,7 @@ class SonicUtils {
         }
     }
 
-    private static String toHexString(byte b[]) {
+    static String toHexString(byte b[]) {
         StringBuilder sb = new StringBuilder(b.length * 2);
         for (byte aB : b) {
             sb.append(hexChar[(aB & 0xf0) >>> 4]);
@@ -22,6 +22,7 @@ import android.util.Log;
 
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -54,6 +55,12 @@ public class StandardSonicSession extends SonicSession implements Handler.Callba
 
     private final Object webResponseLock = new Object();
 
+    /**
+     * The stream which has flushed the static head of cached html to the kernel and is waiting
+     * for the tail, see {@link SonicSessionConfig#EARLY_FLUSH_TEMPLATE_HEAD}
+     */
+    private volatile SonicHeadFlushStream headFlushStream;
+
     StandardSonicSession(String id, String url, SonicSessionConfig config) {
         super(id, url, config);
     }
@@ -106,6 +113,7 @@ public class StandardSonicSession extends SonicSession implements Handler.Callba
     }
     //客户端已经准备好了
     public boolean onClientReady() {
+        clientIsReady.set(true);
         if (STATE_NONE == sessionState.get()) {
             start();
         }
@@ -136,7 +144,7 @@ public class StandardSonicSession extends SonicSession implements Handler.Callba
 
     public Object onClientRequestResource(String url) {
         if (!isMatchCurrentUrl(url)) {
-            return null;
+            return onClientRequestSubResource(url);
         }
 
         if (SonicUtils.shouldLog(Log.DEBUG)) {
@@ -145,22 +153,7 @@ public class StandardSonicSession extends SonicSession implements Handler.Callba
 
         wasInterceptInvoked.set(true);
         long startTime = System.currentTimeMillis();
-        if (sessionState.get() == STATE_RUNNING) {
-            synchronized (sessionState) {
-                try {
-                    if (sessionState.get() == STATE_RUNNING) {
-                        SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") now wait for pendingWebResourceStream!");
-                        sessionState.wait(30 * 1000);
-                    }
-                } catch (Throwable e) {
-                    SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") wait for pendingWebResourceStream failed" + e.getMessage());
-                }
-            }
-        } else {
-            if (SonicUtils.shouldLog(Log.DEBUG)) {
-                SonicUtils.log(TAG, Log.DEBUG, "session(" + sId + ") is not in running state: " + sessionState);
-            }
-        }
+        waitForPendingResource();
 
         SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") have pending stream? -> " + (pendingWebResourceStream != null) + ", cost " + (System.currentTimeMillis() - startTime) + "ms.");
 
@@ -186,17 +179,56 @@ public class StandardSonicSession extends SonicSession implements Handler.Callba
     @Override
     protected void handleLocalHtml(String localHtml) {
         if (!TextUtils.isEmpty(localHtml)) {
+            int headLength = 0;
+            if (config.EARLY_FLUSH_TEMPLATE_HEAD && SonicEngine.getInstance().getRuntime().isNetworkValid()) {
+                headLength = SonicUtils.getTemplateHeadLength(localHtml);
+            }
             synchronized (webResponseLock) {
-                pendingWebResourceStream = new ByteArrayInputStream(localHtml.getBytes());
+                if (headLength > 0) {
+                    headFlushStream = new SonicHeadFlushStream(localHtml, headLength, config.READ_TIMEOUT_MILLIS);
+                    pendingWebResourceStream = headFlushStream;
+                    SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") handleLocalHtml:flush the head of cached html, length = " + headLength + ".");
+                } else {
+                    pendingWebResourceStream = new ByteArrayInputStream(localHtml.getBytes());
+                }
             }
             switchState(STATE_RUNNING, STATE_READY, true);
         }
     }
 
+    @Override
+    protected void handleFlow_Connection(String htmlString) {
+        try {
+            super.handleFlow_Connection(htmlString);
+        } finally {
+            // The server result is not usable(http error, service unavailable etc.), so use the cached html
+            completeHeadFlush(null);
+        }
+    }
+
+    /**
+     * Provide the tail of html to the kernel if the head of cached html has been flushed.
+     *
+     * @param htmlString The html decided by the server, null means the cached html is used.
+     * @return Returns true if the kernel gets the tail of <code>htmlString</code>.
+     */
+    private boolean completeHeadFlush(String htmlString) {
+        SonicHeadFlushStream stream = headFlushStream;
+        if (null == stream) {
+            return false;
+        }
+        headFlushStream = null;
+        boolean useFreshHtml = stream.complete(htmlString);
+        SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") completeHeadFlush:use fresh html = " + useFreshHtml + ".");
+        return useFreshHtml;
+    }
+
     /**
      * Handle 304{@link SonicSession#SONIC_RESULT_CODE_HIT_CACHE} logic ,it is just update the sonic code.
      */
     protected void handleFlow_304() {
+        completeHeadFlush(null);
+
         Message msg = mainHandler.obtainMessage(CLIENT_MSG_NOTIFY_RESULT);
         msg.arg1 = SONIC_RESULT_CODE_HIT_CACHE;
         msg.arg2 = SONIC_RESULT_CODE_HIT_CACHE;
@@ -208,9 +240,9 @@ public class StandardSonicSession extends SonicSession implements Handler.Callba
      *
      * Sonic will always read the new data from the server until the local page finish.
      * If the server data is not read finished sonic will split the read and unread data
-     * into a bridgedStream{@link SonicSessionStream}, otherwise all the read data will be
+     * into a pipe{@link SonicSessionPipe}, otherwise all the read data will be
      * encapsulated as an inputStream{@link java.io.ByteArrayInputStream}. When client
-     * initiates a resource interception, sonic will provide the bridgedStream or inputStream to
+     * initiates a resource interception, sonic will provide the pipe or inputStream to
      * the kernel.
      *
      * <p>
@@ -221,9 +253,11 @@ public class StandardSonicSession extends SonicSession implements Handler.Callba
     protected void handleFlow_TemplateChange() {
         try {
             SonicUtils.log(TAG, Log.INFO, "handleFlow_TemplateChange :");
+            // The head may be changed, the cached html is used and the page will be refreshed
+            completeHeadFlush(null);
             long startTime = System.currentTimeMillis();
 
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            SonicCaptureOutputStream output = createCaptureStream();
 
             SonicSessionConnection.ResponseDataTuple responseDataTuple = sessionConnection.getResponseData(wasOnPageFinishInvoked, output);
             if (responseDataTuple == null) {
@@ -239,6 +273,7 @@ public class StandardSonicSession extends SonicSession implements Handler.Callba
 
             Message msg = mainHandler.obtainMessage(CLIENT_MSG_NOTIFY_RESULT);
             msg.arg1 = msg.arg2 = SONIC_RESULT_CODE_TEMPLATE_CHANGE;
+            SonicSessionPipe pipe = null;
 
             if (!wasInterceptInvoked.get()) {
                 if (!TextUtils.isEmpty(htmlString)) {
@@ -260,8 +295,12 @@ public class StandardSonicSession extends SonicSession implements Handler.Callba
                             pendingWebResourceStream = new ByteArrayInputStream(htmlString.getBytes());
                         }
                     } else {
-                        pendingWebResourceStream = new SonicSessionStream(this, responseDataTuple.outputStream, responseDataTuple.responseStream);
+                        pipe = createPipe(output, responseDataTuple.responseStream);
+                        synchronized (webResponseLock) {
+                            pendingWebResourceStream = pipe.getInputStream();
+                        }
                     }
+                    notifyPendingResourceReady();
                 }
             }
 
@@ -275,15 +314,7 @@ public class StandardSonicSession extends SonicSession implements Handler.Callba
             if (SonicUtils.needSaveData(cacheOffline)) {
                 switchState(STATE_RUNNING, STATE_READY, true);
                 if (!TextUtils.isEmpty(htmlString)) {
-                    try {
-                        //In order not to seize the cpu resources, affecting the rendering of the kernel，sleep 1.5s here
-                        Thread.sleep(1500);
-                        startTime = System.currentTimeMillis();
-                        separateAndSaveCache(htmlString);
-                        SonicUtils.log(TAG, Log.DEBUG, "session(" + sId + ") handleFlow_TemplateChange: read complete and finish separate and save cache cost " + (System.currentTimeMillis() - startTime) + " ms.");
-                    } catch (Throwable e) {
-                        SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") handleFlow_TemplateChange error:" + e.getMessage());
-                    }
+                    postSaveCacheTask(htmlString, responseDataTuple.outputStream);
                 }
             } else if (OFFLINE_MODE_FALSE.equals(cacheOffline)) {
                 SonicUtils.removeSessionCache(id);
@@ -292,6 +323,9 @@ public class StandardSonicSession extends SonicSession implements Handler.Callba
                 SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") handleFlow_TemplateChange:offline->" + cacheOffline + " , so do not need cache to file.");
             }
 
+            if (null != pipe) {
+                pipe.pumpToEnd();
+            }
         } catch (Throwable e) {
             SonicUtils.log(TAG, Log.DEBUG, "session(" + sId + ") handleFlow_TemplateChange error:" + e.getMessage());
         }
@@ -300,43 +334,42 @@ public class StandardSonicSession extends SonicSession implements Handler.Callba
     /**
      *
      * Sonic will always read the new data from the server until client initiates a resource interception
-     * If the server data is not read finished sonic will split the read and unread data into a
-     * bridgedStream{@link SonicSessionStream}, otherwise all the read data will be encapsulated as an
-     * inputStream{@link java.io.ByteArrayInputStream}. When client initiates a resource interception,
-     * sonic will provide the bridgedStream or inputStream to the kernel.
+     * The server data is provided to the kernel through a pipe{@link SonicSessionPipe}. When client
+     * initiates a resource interception, the kernel replays the data read so far, and the unread data
+     * is passed to the kernel while sonic reads it from the server.
      *
      * <p>
      * If need save and separate data, sonic will save the server data and separate the server data to template and data
      *
      */
     protected void handleFlow_FirstLoad() {
-        SonicSessionConnection.ResponseDataTuple responseDataTuple = sessionConnection.getResponseData(wasInterceptInvoked, null);
-        if (null == responseDataTuple) {
-            SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") handleFlow_FirstLoad error:responseDataTuple is null!");
+        BufferedInputStream responseStream = sessionConnection.getResponseStream();
+        if (null == responseStream) {
+            SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") handleFlow_FirstLoad error:responseStream is null!");
             return;
         }
 
+        SonicSessionPipe pipe = createPipe(createCaptureStream(), responseStream);
+        synchronized (webResponseLock) {
+            pendingWebResourceStream = pipe.getInputStream();
+        }
+        // The client can read the stream now, it blocks only on bytes not read yet
+        notifyPendingResourceReady();
+
+        boolean isComplete = pipe.readUntilAttached();
+
         Message msg = mainHandler.obtainMessage(CLIENT_MSG_NOTIFY_RESULT);
         msg.arg1 = msg.arg2 = SONIC_RESULT_CODE_FIRST_LOAD;
         String htmlString = null;
-        if (responseDataTuple.isComplete) {
+        if (isComplete) {
             try {
-                htmlString = responseDataTuple.outputStream.toString("UTF-8");
-                synchronized (webResponseLock) {
-                    pendingWebResourceStream = new ByteArrayInputStream(htmlString.getBytes());
-                }
+                htmlString = pipe.getCaptureStream().toString("UTF-8");
+                prefetchSubResources(htmlString);
                 msg.arg2 = SONIC_RESULT_CODE_HIT_CACHE;
                 SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") handleFlow_FirstLoad:oh yeah, first load hit 304.");
             } catch (Throwable e) {
-                synchronized (webResponseLock) {
-                    pendingWebResourceStream = null;
-                }
                 SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") handleFlow_FirstLoad error:" + e.getMessage() + ".");
             }
-        } else {
-            synchronized (webResponseLock) {
-                pendingWebResourceStream = new SonicSessionStream(this, responseDataTuple.outputStream, responseDataTuple.responseStream);
-            }
         }
 
         mainHandler.sendMessage(msg);
@@ -349,9 +382,7 @@ public class StandardSonicSession extends SonicSession implements Handler.Callba
             try {
                 if (hasCacheData) {
                     switchState(STATE_RUNNING, STATE_READY, true);
-                    //In order not to seize the cpu resources, affecting the rendering of the kernel，sleep 1.5s here
-                    Thread.sleep(1500);
-                    separateAndSaveCache(htmlString);
+                    postSaveCacheTask(htmlString, pipe.getCaptureStream());
                 }
             } catch (Throwable e) {
                 SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") handleFlow_FirstLoad error:  " + e.getMessage());
@@ -360,6 +391,10 @@ public class StandardSonicSession extends SonicSession implements Handler.Callba
             SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") handleFlow_FirstLoad:offline->" + cacheOffline + " , so do not need cache to file.");
         }
 
+        if (!isComplete) {
+            pipe.pumpToEnd();
+        }
+
     }
 
     /**
@@ -429,6 +464,16 @@ public class StandardSonicSession extends SonicSession implements Handler.Callba
                     mainHandler.sendMessage(msg);
                 }
 
+                if (!TextUtils.isEmpty(htmlString) && wasInterceptInvoked.get() && SonicUtils.needRefreshWebView(cacheOffline) && completeHeadFlush(htmlString)) {
+                    // The kernel gets the new html after the flushed head, so it does not need the diff data any more
+                    SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") handleFlow_DataUpdate:oh yeah, dataUpdate load hit head flush.");
+                    mainHandler.removeMessages(CLIENT_MSG_NOTIFY_RESULT);
+                    Message msg = mainHandler.obtainMessage(CLIENT_MSG_NOTIFY_RESULT);
+                    msg.arg1 = SONIC_RESULT_CODE_DATA_UPDATE;
+                    msg.arg2 = SONIC_RESULT_CODE_HIT_CACHE;
+                    mainHandler.sendMessage(msg);
+                }
+
                 if (TextUtils.isEmpty(htmlString)) {
                     SonicEngine.getInstance().getRuntime().notifyError(sessionClient, srcUrl, SonicConstants.ERROR_CODE_BUILD_HTML_ERROR);
                 }
@@ -446,6 +491,7 @@ public class StandardSonicSession extends SonicSession implements Handler.Callba
                 if (SonicUtils.saveSessionFiles(id, htmlString, null, serverDataJson.toString())) {
                     long htmlSize = new File(SonicFileUtils.getSonicHtmlPath(id)).length();
                     SonicUtils.saveSonicData(id, eTag, templateTag, htmlSha1, htmlSize, cspContent, cspReportOnlyContent);
+                    SonicUtils.saveSessionValidation(id, sessionConnection.getResponseHeaderField(SonicSessionConnection.HTTP_HEAD_CACHE_CONTROL));
                     SonicUtils.log(TAG, Log.INFO, "session(" + sId + ") handleFlow_DataUpdate: finish save session cache, cost " + (System.currentTimeMillis() - startTime) + " ms.");
                 } else {
                     SonicUtils.log(TAG, Log.ERROR, "session(" + sId + ") handleFlow_DataUpdate: save session files fail.");
@@ -463,4 +509,10 @@ public class StandardSonicSession extends SonicSession implements Handler.Callba
             }
         }
     }
+
+    @Override
+    protected void clearSessionData() {
+        // Do not keep the kernel waiting for the tail
+        completeHeadFlush(null);
+    }
 }
@@ -0,0 +1,110 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+
+package com.tencent.sonic.sdk;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class SonicByteBudgetTest {
+
+    @Test
+    public void reserveAndRelease() {
+        SonicByteBudget budget = new SonicByteBudget(100);
+        assertTrue(budget.tryReserve(60));
+        assertTrue(budget.tryReserve(40));
+        assertEquals(100, budget.getUsedBytes());
+        assertFalse(budget.hasRemaining());
+
+        budget.release(30);
+        assertEquals(70, budget.getUsedBytes());
+        assertTrue(budget.hasRemaining());
+        assertEquals(100, budget.getPeakBytes());
+    }
+
+    @Test
+    public void refusedReservationTakesNothing() {
+        SonicByteBudget budget = new SonicByteBudget(100);
+        assertTrue(budget.tryReserve(90));
+        assertFalse(budget.tryReserve(11));
+        assertEquals(90, budget.getUsedBytes());
+        assertEquals(1, budget.getExhaustedCount());
+    }
+
+    @Test
+    public void forceReserveExceedsLimit() {
+        SonicByteBudget budget = new SonicByteBudget(100);
+        assertTrue(budget.tryReserve(100));
+        budget.forceReserve(50);
+        assertEquals(150, budget.getUsedBytes());
+        assertEquals(150, budget.getPeakBytes());
+        assertFalse(budget.tryReserve(1));
+
+        budget.release(150);
+        assertEquals(0, budget.getUsedBytes());
+        assertTrue(budget.tryReserve(100));
+    }
+
+    @Test
+    public void releaseIgnoresNonPositiveBytes() {
+        SonicByteBudget budget = new SonicByteBudget(100);
+        assertTrue(budget.tryReserve(10));
+        budget.release(0);
+        budget.release(-5);
+        assertEquals(10, budget.getUsedBytes());
+    }
+
+    @Test
+    public void nonPositiveLimitMeansUnlimited() {
+        SonicByteBudget budget = new SonicByteBudget(0);
+        assertTrue(budget.tryReserve(Integer.MAX_VALUE));
+        assertTrue(budget.tryReserve(Integer.MAX_VALUE));
+        assertTrue(budget.hasRemaining());
+        assertEquals(0, budget.getExhaustedCount());
+    }
+
+    @Test
+    public void concurrentReservationsNeverExceedLimit() throws InterruptedException {
+        final SonicByteBudget budget = new SonicByteBudget(1000);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 10000; ++j) {
+                        if (budget.tryReserve(7)) {
+                            budget.release(7);
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, budget.getUsedBytes());
+        assertTrue(budget.getPeakBytes() <= 1000);
+    }
+}
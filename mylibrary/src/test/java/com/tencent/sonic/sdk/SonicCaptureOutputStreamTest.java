@@ -0,0 +1,234 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+
+package com.tencent.sonic.sdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SonicCaptureOutputStreamTest {
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private SonicTestRuntime runtime;
+
+    @Before
+    public void setUp() {
+        runtime = SonicTestRuntime.getInstance();
+    }
+
+    @After
+    public void tearDown() {
+        runtime.sonicCacheDir = null;
+    }
+
+    private static byte[] createData(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static File[] listSpillFiles() {
+        File[] files = new File(SonicFileUtils.getSonicCacheDirPath()).listFiles();
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().startsWith("capture") && file.getName().endsWith(".tmp")) {
+                files[count++] = file;
+            }
+        }
+        File[] spillFiles = new File[count];
+        System.arraycopy(files, 0, spillFiles, 0, count);
+        return spillFiles;
+    }
+
+    /**
+     * Make spilling fail by pointing the cache directory to a regular file.
+     */
+    private File disableSpill() throws IOException {
+        File notDirectory = File.createTempFile("sonic", ".test");
+        notDirectory.deleteOnExit();
+        runtime.sonicCacheDir = notDirectory;
+        return notDirectory;
+    }
+
+    @Test
+    public void capacityIsReservedInChunks() throws IOException {
+        SonicByteBudget budget = new SonicByteBudget(0);
+        SonicCaptureOutputStream outputStream = new SonicCaptureOutputStream(budget, 0);
+        outputStream.write(1);
+        assertEquals(CHUNK_SIZE, budget.getUsedBytes());
+
+        byte[] data = createData(CHUNK_SIZE + 100);
+        outputStream.write(data, 0, data.length);
+        assertEquals(1 + data.length, outputStream.size());
+        assertEquals(outputStream.size(), outputStream.getMemorySize());
+        assertTrue(budget.getUsedBytes() >= outputStream.size());
+
+        // The data is still readable after the capacity is released
+        outputStream.close();
+        assertEquals(0, budget.getUsedBytes());
+        byte[] captured = outputStream.toByteArray();
+        assertEquals(1, captured[0]);
+        assertArrayEquals(data, Arrays.copyOfRange(captured, 1, captured.length));
+        assertArrayEquals(captured, SonicContentDecoderTest.readFully(outputStream.openReplayStream()));
+
+        outputStream.release();
+        assertEquals(0, outputStream.size());
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    public void writeAfterCloseIsTruncated() {
+        SonicCaptureOutputStream outputStream = new SonicCaptureOutputStream(new SonicByteBudget(0), 0);
+        outputStream.write(new byte[10], 0, 10);
+        outputStream.close();
+        outputStream.write(new byte[10], 0, 10);
+        assertTrue(outputStream.isTruncated());
+        assertFalse(outputStream.canCapture());
+        assertEquals(10, outputStream.size());
+    }
+
+    @Test
+    public void spillWhenThresholdIsExceeded() throws IOException {
+        SonicByteBudget budget = new SonicByteBudget(0);
+        int spillFileCount = listSpillFiles().length;
+        SonicCaptureOutputStream outputStream = new SonicCaptureOutputStream(budget, 3 * CHUNK_SIZE);
+        byte[] data = createData(5 * CHUNK_SIZE + 7);
+        outputStream.write(data, 0, 2 * CHUNK_SIZE);
+        assertFalse(outputStream.isSpilled());
+        assertEquals(2 * CHUNK_SIZE, budget.getUsedBytes());
+
+        outputStream.write(data, 2 * CHUNK_SIZE, data.length - 2 * CHUNK_SIZE);
+        assertTrue(outputStream.isSpilled());
+        assertEquals(spillFileCount + 1, listSpillFiles().length);
+        // The spilled data holds no memory budget
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(0, outputStream.getMemorySize());
+        assertEquals(data.length, outputStream.size());
+
+        // The replay is readable while capturing
+        assertArrayEquals(data, SonicContentDecoderTest.readFully(outputStream.openReplayStream()));
+        outputStream.close();
+        assertArrayEquals(data, outputStream.toByteArray());
+
+        outputStream.release();
+        assertEquals(spillFileCount, listSpillFiles().length);
+    }
+
+    @Test
+    public void spillWhenBudgetIsExhausted() throws IOException {
+        SonicByteBudget budget = new SonicByteBudget(2 * CHUNK_SIZE);
+        SonicCaptureOutputStream outputStream = new SonicCaptureOutputStream(budget, 0);
+        byte[] data = createData(3 * CHUNK_SIZE);
+        outputStream.write(data, 0, data.length);
+        assertTrue(outputStream.isSpilled());
+        assertFalse(outputStream.isTruncated());
+        assertTrue(outputStream.canCapture());
+        assertEquals(0, budget.getUsedBytes());
+        assertArrayEquals(data, outputStream.toByteArray());
+        outputStream.release();
+    }
+
+    @Test
+    public void truncateWhenBudgetIsExhaustedAndSpillFails() throws IOException {
+        disableSpill();
+        SonicByteBudget budget = new SonicByteBudget(CHUNK_SIZE);
+        SonicCaptureOutputStream outputStream = new SonicCaptureOutputStream(budget, 0);
+        byte[] data = createData(2 * CHUNK_SIZE);
+        outputStream.write(data, 0, CHUNK_SIZE);
+        assertTrue(outputStream.canCapture());
+
+        outputStream.write(data, CHUNK_SIZE, CHUNK_SIZE);
+        assertTrue(outputStream.isTruncated());
+        assertFalse(outputStream.isSpilled());
+        assertFalse(outputStream.canCapture());
+        assertEquals(CHUNK_SIZE, outputStream.size());
+        assertEquals(CHUNK_SIZE, budget.getUsedBytes());
+        outputStream.release();
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    public void forceWriteKeepsDataBeyondBudget() throws IOException {
+        disableSpill();
+        SonicByteBudget budget = new SonicByteBudget(CHUNK_SIZE);
+        SonicCaptureOutputStream outputStream = new SonicCaptureOutputStream(budget, 0);
+        byte[] data = createData(2 * CHUNK_SIZE + 1);
+        outputStream.forceWrite(data, 0, data.length);
+        assertFalse(outputStream.isTruncated());
+        assertFalse(outputStream.canCapture());
+        assertEquals(data.length, budget.getUsedBytes());
+        assertEquals(data.length, budget.getPeakBytes());
+        assertArrayEquals(data, outputStream.toByteArray());
+
+        outputStream.close();
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    public void moveSpillFileIntoCache() throws IOException {
+        SonicCaptureOutputStream outputStream = new SonicCaptureOutputStream(new SonicByteBudget(0), CHUNK_SIZE);
+        byte[] data = createData(2 * CHUNK_SIZE);
+        outputStream.write(data, 0, data.length);
+        assertTrue(outputStream.isSpilled());
+
+        File destFile = new File(SonicFileUtils.getSonicCacheDirPath(), "moved.html");
+        assertTrue(outputStream.moveTo(destFile));
+        assertFalse(outputStream.moveTo(destFile));
+        // The moved file is kept when the capture is released
+        outputStream.release();
+        assertTrue(destFile.exists());
+        assertArrayEquals(data, SonicContentDecoderTest.readFully(new FileInputStream(destFile)));
+        assertTrue(destFile.delete());
+    }
+
+    @Test
+    public void memoryDataCanNotBeMoved() {
+        SonicCaptureOutputStream outputStream = new SonicCaptureOutputStream(new SonicByteBudget(0), 0);
+        outputStream.write(new byte[10], 0, 10);
+        assertFalse(outputStream.moveTo(new File(SonicFileUtils.getSonicCacheDirPath(), "moved.html")));
+        outputStream.release();
+    }
+
+    @Test
+    public void sweepStaleSpillFiles() throws Exception {
+        File cacheDir = new File(SonicFileUtils.getSonicCacheDirPath());
+        File staleFile = File.createTempFile("capture", ".tmp", cacheDir);
+        assertTrue(staleFile.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000L));
+        File freshFile = File.createTempFile("capture", ".tmp", cacheDir);
+
+        SonicCaptureOutputStream.sweepStaleSpillFiles();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (staleFile.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(staleFile.exists());
+        assertTrue(freshFile.exists());
+        assertTrue(freshFile.delete());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+
+package com.tencent.sonic.sdk;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SonicCircuitBreakerTest {
+
+    private static final String URL = "https://www.example.com/index.html";
+
+    private static final long OPEN_TIME = 200;
+
+    private SonicCircuitBreaker circuitBreaker;
+
+    @Before
+    public void setUp() {
+        SonicTestRuntime.createEngineIfNeed();
+        circuitBreaker = new SonicCircuitBreaker(3, OPEN_TIME, 4 * OPEN_TIME);
+    }
+
+    private void failRequests(int count) {
+        for (int i = 0; i < count; ++i) {
+            circuitBreaker.onFailure(URL);
+        }
+    }
+
+    @Test
+    public void closedBelowThreshold() {
+        failRequests(2);
+        assertTrue(circuitBreaker.allowRequest(URL));
+        circuitBreaker.onSuccess(URL);
+        failRequests(2);
+        assertTrue(circuitBreaker.allowRequest(URL));
+        assertEquals(0, circuitBreaker.getOpenCount());
+    }
+
+    @Test
+    public void openAfterConsecutiveFailures() {
+        failRequests(3);
+        assertFalse(circuitBreaker.allowRequest(URL));
+        assertFalse(circuitBreaker.allowRequest("https://www.example.com/other.html"));
+        assertTrue(circuitBreaker.allowRequest("https://other.example.com/index.html"));
+        assertEquals(1, circuitBreaker.getOpenCount());
+        assertEquals(2, circuitBreaker.getRejectedCount());
+    }
+
+    @Test
+    public void halfOpenAllowsOneProbe() throws InterruptedException {
+        failRequests(3);
+        Thread.sleep(OPEN_TIME + 50);
+        assertTrue(circuitBreaker.allowRequest(URL));
+        assertFalse(circuitBreaker.allowRequest(URL));
+    }
+
+    @Test
+    public void probeSuccessClosesCircuit() throws InterruptedException {
+        failRequests(3);
+        Thread.sleep(OPEN_TIME + 50);
+        assertTrue(circuitBreaker.allowRequest(URL));
+        circuitBreaker.onSuccess(URL);
+        assertTrue(circuitBreaker.allowRequest(URL));
+        assertTrue(circuitBreaker.allowRequest(URL));
+
+        // The failures are counted again from zero
+        failRequests(2);
+        assertTrue(circuitBreaker.allowRequest(URL));
+    }
+
+    @Test
+    public void probeFailureDoublesOpenTime() throws InterruptedException {
+        failRequests(3);
+        Thread.sleep(OPEN_TIME + 50);
+        assertTrue(circuitBreaker.allowRequest(URL));
+        failRequests(1);
+        assertEquals(2, circuitBreaker.getOpenCount());
+
+        Thread.sleep(OPEN_TIME + 50);
+        assertFalse(circuitBreaker.allowRequest(URL));
+        Thread.sleep(OPEN_TIME);
+        assertTrue(circuitBreaker.allowRequest(URL));
+    }
+
+    @Test
+    public void openTimeIsCapped() throws InterruptedException {
+        circuitBreaker = new SonicCircuitBreaker(1, OPEN_TIME, OPEN_TIME);
+        failRequests(1);
+        Thread.sleep(OPEN_TIME + 50);
+        assertTrue(circuitBreaker.allowRequest(URL));
+        failRequests(1);
+        Thread.sleep(OPEN_TIME + 50);
+        assertTrue(circuitBreaker.allowRequest(URL));
+    }
+
+    @Test
+    public void expiredProbeAllowsAnotherProbe() throws InterruptedException {
+        failRequests(3);
+        Thread.sleep(OPEN_TIME + 50);
+        assertTrue(circuitBreaker.allowRequest(URL));
+        assertFalse(circuitBreaker.allowRequest(URL));
+        Thread.sleep(OPEN_TIME + 50);
+        assertTrue(circuitBreaker.allowRequest(URL));
+    }
+
+    @Test
+    public void disabledWithoutThreshold() {
+        circuitBreaker = new SonicCircuitBreaker(0, OPEN_TIME, OPEN_TIME);
+        failRequests(10);
+        assertTrue(circuitBreaker.allowRequest(URL));
+        assertEquals(0, circuitBreaker.getOpenCount());
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+
+package com.tencent.sonic.sdk;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * Measures the bytes on wire of each built-in content coding against the CPU time to decode it,
+ * on a generated html page. The time saved on wire is estimated for a 1 Mbps link, only the
+ * correctness of data is asserted.
+ *
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SonicContentDecoderBenchmark {
+
+    private static final int ROUNDS = 20;
+
+    private static final double LINK_BYTES_PER_MILLIS = 1000 * 1000 / 8 / 1000.0;
+
+    private final List<SonicContentDecoder> decoders = SonicContentDecoder.getDecoders(Collections.<SonicContentDecoder>emptyList());
+
+    private byte[] html;
+
+    @Before
+    public void setUp() {
+        SonicTestRuntime.createEngineIfNeed();
+        StringBuilder builder = new StringBuilder("<html><head><title>sonic</title></head><body>");
+        Random random = new Random(0);
+        while (builder.length() < 256 * 1024) {
+            builder.append("<div class=\"item item-").append(random.nextInt(100)).append("\"><a href=\"/detail?id=")
+                    .append(random.nextInt(100000)).append("\">").append(Long.toHexString(random.nextLong())).append("</a></div>\n");
+        }
+        html = builder.append("</body></html>").toString().getBytes();
+    }
+
+    private long decodeCpuNanos(String contentEncoding, byte[] encoded) throws IOException {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        byte[] buffer = new byte[8 * 1024];
+        long bestCost = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; ++i) {
+            long startTime = threadMXBean.getCurrentThreadCpuTime();
+            InputStream inputStream = SonicContentDecoder.decode(decoders, contentEncoding, new ByteArrayInputStream(encoded));
+            int size = 0;
+            int n;
+            while (-1 != (n = inputStream.read(buffer))) {
+                size += n;
+            }
+            bestCost = Math.min(bestCost, threadMXBean.getCurrentThreadCpuTime() - startTime);
+            assertEquals(html.length, size);
+        }
+        return bestCost;
+    }
+
+    private void measure(String name, String contentEncoding, byte[] encoded) throws IOException {
+        assertArrayEquals(html, SonicContentDecoderTest.readFully(SonicContentDecoder.decode(decoders, contentEncoding, new ByteArrayInputStream(encoded))));
+        long cpuNanos = decodeCpuNanos(contentEncoding, encoded);
+        double savedWireMillis = (html.length - encoded.length) / LINK_BYTES_PER_MILLIS;
+        System.out.println(String.format("%-14s %7d bytes on wire (%5.1f%%), decode cpu %6.2f ms, wire time saved at 1 Mbps %7.1f ms",
+                name, encoded.length, 100.0 * encoded.length / html.length, cpuNanos / 1e6, savedWireMillis));
+    }
+
+    @Test
+    public void compareCodings() throws IOException {
+        measure("identity", null, html);
+        measure("gzip", "gzip", SonicContentDecoderTest.gzip(html));
+        measure("deflate(zlib)", "deflate", SonicContentDecoderTest.deflate(html, false));
+        measure("deflate(raw)", "deflate", SonicContentDecoderTest.deflate(html, true));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+
+package com.tencent.sonic.sdk;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SonicContentDecoderTest {
+
+    private static final byte[] HTML = "<html><body>sonic sonic sonic sonic</body></html>".getBytes();
+
+    private final List<SonicContentDecoder> decoders = SonicContentDecoder.getDecoders(Collections.<SonicContentDecoder>emptyList());
+
+    @Before
+    public void setUp() {
+        SonicTestRuntime.createEngineIfNeed();
+    }
+
+    static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream);
+        gzipOutputStream.write(data);
+        gzipOutputStream.close();
+        return outputStream.toByteArray();
+    }
+
+    static byte[] deflate(byte[] data, boolean nowrap) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(outputStream, new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap));
+        deflaterOutputStream.write(data);
+        deflaterOutputStream.close();
+        return outputStream.toByteArray();
+    }
+
+    static byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while (-1 != (n = inputStream.read(buffer))) {
+            outputStream.write(buffer, 0, n);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private byte[] decode(String contentEncoding, byte[] data) throws IOException {
+        return readFully(SonicContentDecoder.decode(decoders, contentEncoding, new ByteArrayInputStream(data)));
+    }
+
+    @Test
+    public void notEncodedStreamIsReturnedAsIs() throws IOException {
+        InputStream inputStream = new ByteArrayInputStream(HTML);
+        assertSame(inputStream, SonicContentDecoder.decode(decoders, null, inputStream));
+        assertSame(inputStream, SonicContentDecoder.decode(decoders, "", inputStream));
+        assertSame(inputStream, SonicContentDecoder.decode(decoders, "identity", inputStream));
+    }
+
+    @Test
+    public void decodeGzip() throws IOException {
+        assertArrayEquals(HTML, decode("gzip", gzip(HTML)));
+        assertArrayEquals(HTML, decode(" GZIP ", gzip(HTML)));
+    }
+
+    @Test
+    public void decodeZlibWrappedDeflate() throws IOException {
+        assertArrayEquals(HTML, decode("deflate", deflate(HTML, false)));
+    }
+
+    @Test
+    public void decodeRawDeflate() throws IOException {
+        assertArrayEquals(HTML, decode("deflate", deflate(HTML, true)));
+    }
+
+    @Test
+    public void decodeEmptyDeflate() throws IOException {
+        assertArrayEquals(new byte[0], decode("deflate", deflate(new byte[0], true)));
+        assertArrayEquals(new byte[0], decode("deflate", deflate(new byte[0], false)));
+    }
+
+    @Test
+    public void stackedCodingsAreDecodedInReverseOrder() throws IOException {
+        // deflate is applied first, then gzip
+        assertArrayEquals(HTML, decode("deflate, gzip", gzip(deflate(HTML, true))));
+        assertArrayEquals(HTML, decode("gzip,identity,deflate", deflate(gzip(HTML), false)));
+    }
+
+    @Test(expected = SonicContentDecoder.UnsupportedContentEncodingException.class)
+    public void unsupportedCodingIsRejected() throws IOException {
+        decode("br", HTML);
+    }
+
+    @Test
+    public void unsupportedCodingInStackIsRejected() throws IOException {
+        try {
+            // br is the outer coding, it is checked before gzip is decoded
+            decode("gzip, br", gzip(HTML));
+            fail("br is not supported");
+        } catch (SonicContentDecoder.UnsupportedContentEncodingException e) {
+            assertTrue(e.getMessage().contains("br"));
+        }
+    }
+
+    @Test
+    public void customDecoderIsPreferred() throws IOException {
+        SonicContentDecoder reverseDecoder = new SonicContentDecoder() {
+            @Override
+            public String getEncoding() {
+                return "reverse";
+            }
+
+            @Override
+            public InputStream decode(InputStream inputStream) throws IOException {
+                byte[] data = readFully(inputStream);
+                for (int i = 0, j = data.length - 1; i < j; ++i, --j) {
+                    byte b = data[i];
+                    data[i] = data[j];
+                    data[j] = b;
+                }
+                return new ByteArrayInputStream(data);
+            }
+        };
+        List<SonicContentDecoder> customDecoders = new ArrayList<SonicContentDecoder>();
+        customDecoders.add(reverseDecoder);
+        List<SonicContentDecoder> decoders = SonicContentDecoder.getDecoders(customDecoders);
+        assertEquals("reverse, gzip;q=0.9, deflate;q=0.8", SonicContentDecoder.getAcceptEncoding(decoders));
+
+        byte[] reversed = new StringBuilder(new String(HTML)).reverse().toString().getBytes();
+        byte[] decoded = readFully(SonicContentDecoder.decode(decoders, "reverse, gzip", new ByteArrayInputStream(gzip(reversed))));
+        assertArrayEquals(HTML, decoded);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+
+package com.tencent.sonic.sdk;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SonicNetworkTimingTrackerTest {
+
+    private static final String URL = "https://www.example.com/index.html";
+
+    private final SonicSessionConfig config = new SonicSessionConfig.Builder()
+            .setAdaptiveTimeout(true)
+            .setAdaptiveTimeoutFloorMillis(1000)
+            .setAdaptiveTimeoutCeilingMillis(30 * 1000)
+            .build();
+
+    private static void recordConnect(SonicNetworkTimingTracker tracker, SonicSessionConfig config, long... costs) {
+        for (long cost : costs) {
+            tracker.recordConnectResult(URL, config, SonicConstants.ERROR_CODE_SUCCESS, cost);
+        }
+    }
+
+    @Test
+    public void noPercentileWithoutEnoughSamples() {
+        SonicNetworkTimingTracker tracker = new SonicNetworkTimingTracker();
+        recordConnect(tracker, config, 100, 200, 300, 400);
+        assertEquals(-1, tracker.getConnectP95(URL));
+        assertEquals(config.CONNECT_TIMEOUT_MILLIS, tracker.getConnectTimeout(URL, config));
+
+        recordConnect(tracker, config, 500);
+        assertEquals(500, tracker.getConnectP95(URL));
+    }
+
+    @Test
+    public void percentileOfSamples() {
+        SonicNetworkTimingTracker tracker = new SonicNetworkTimingTracker();
+        for (int i = 20; i >= 1; --i) {
+            recordConnect(tracker, config, i * 10);
+        }
+        assertEquals(190, tracker.getConnectP95(URL));
+        assertEquals(-1, tracker.getRespondP95(URL));
+    }
+
+    @Test
+    public void oldSamplesLeaveTheWindow() {
+        SonicNetworkTimingTracker tracker = new SonicNetworkTimingTracker();
+        for (int i = 0; i < 32; ++i) {
+            recordConnect(tracker, config, 5000);
+        }
+        assertEquals(5000, tracker.getConnectP95(URL));
+        for (int i = 0; i < 32; ++i) {
+            recordConnect(tracker, config, 10);
+        }
+        assertEquals(10, tracker.getConnectP95(URL));
+    }
+
+    @Test
+    public void hostsAreTrackedSeparately() {
+        SonicNetworkTimingTracker tracker = new SonicNetworkTimingTracker();
+        recordConnect(tracker, config, 100, 100, 100, 100, 100);
+        assertEquals(100, tracker.getConnectP95("https://www.example.com/other.html"));
+        assertEquals(-1, tracker.getConnectP95("https://other.example.com/index.html"));
+    }
+
+    @Test
+    public void timeoutIsClampedMultipleOfP95() {
+        SonicNetworkTimingTracker tracker = new SonicNetworkTimingTracker();
+        recordConnect(tracker, config, 500, 500, 500, 500, 500);
+        assertEquals(1500, tracker.getConnectTimeout(URL, config));
+
+        tracker = new SonicNetworkTimingTracker();
+        recordConnect(tracker, config, 50, 50, 50, 50, 50);
+        assertEquals(1000, tracker.getConnectTimeout(URL, config));
+
+        tracker = new SonicNetworkTimingTracker();
+        recordConnect(tracker, config, 20000, 20000, 20000, 20000, 20000);
+        assertEquals(30 * 1000, tracker.getConnectTimeout(URL, config));
+    }
+
+    @Test
+    public void timeoutIgnoresSamplesWhenDisabled() {
+        SonicSessionConfig defaultConfig = new SonicSessionConfig.Builder().build();
+        SonicNetworkTimingTracker tracker = new SonicNetworkTimingTracker();
+        recordConnect(tracker, defaultConfig, 500, 500, 500, 500, 500);
+        assertEquals(500, tracker.getConnectP95(URL));
+        assertEquals(defaultConfig.CONNECT_TIMEOUT_MILLIS, tracker.getConnectTimeout(URL, defaultConfig));
+    }
+
+    @Test
+    public void timeoutIsRecordedAsCensoredSample() {
+        SonicNetworkTimingTracker tracker = new SonicNetworkTimingTracker();
+        for (int i = 0; i < 5; ++i) {
+            tracker.recordConnectResult(URL, config, SonicConstants.ERROR_CODE_CONNECT_TOE, 100);
+        }
+        assertEquals(config.CONNECT_TIMEOUT_MILLIS, tracker.getConnectP95(URL));
+        assertEquals(3 * config.CONNECT_TIMEOUT_MILLIS, tracker.getConnectTimeout(URL, config));
+
+        tracker.recordConnectResult(URL, config, SonicConstants.ERROR_CODE_UNKNOWN, 100000);
+        assertEquals(config.CONNECT_TIMEOUT_MILLIS, tracker.getConnectP95(URL));
+    }
+
+    @Test
+    public void respondTimeoutFollowsRespondSamples() {
+        SonicNetworkTimingTracker tracker = new SonicNetworkTimingTracker();
+        for (int i = 0; i < 5; ++i) {
+            tracker.recordRespondResult(URL, config, 200, 2000);
+        }
+        tracker.recordRespondResult(URL, config, SonicConstants.ERROR_CODE_UNKNOWN, 100000);
+        assertEquals(2000, tracker.getRespondP95(URL));
+        assertEquals(6000, tracker.getReadTimeout(URL, config));
+        assertEquals(config.CONNECT_TIMEOUT_MILLIS, tracker.getConnectTimeout(URL, config));
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+
+package com.tencent.sonic.sdk;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SonicOfflinePackageTest {
+
+    private final List<File> files = new ArrayList<File>();
+
+    @After
+    public void tearDown() {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    /**
+     * An entry to write, null data means the entry is removed
+     */
+    private static class TestEntry {
+
+        final String path;
+
+        final String mime;
+
+        final byte[] data;
+
+        TestEntry(String path, String mime, String data) {
+            this.path = path;
+            this.mime = mime;
+            this.data = null != data ? data.getBytes() : null;
+        }
+    }
+
+    private static byte[] buildArchive(TestEntry... entries) throws IOException {
+        int indexSize = 12;
+        for (TestEntry entry : entries) {
+            indexSize += 2 + entry.path.getBytes("UTF-8").length + 2 + entry.mime.getBytes("UTF-8").length + 8 + 4;
+        }
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(byteArrayOutputStream);
+        outputStream.writeInt(SonicOfflinePackage.MAGIC);
+        outputStream.writeInt(SonicOfflinePackage.FORMAT_VERSION);
+        outputStream.writeInt(entries.length);
+        long offset = indexSize;
+        for (TestEntry entry : entries) {
+            outputStream.writeShort(entry.path.getBytes("UTF-8").length);
+            outputStream.write(entry.path.getBytes("UTF-8"));
+            outputStream.writeShort(entry.mime.getBytes("UTF-8").length);
+            outputStream.write(entry.mime.getBytes("UTF-8"));
+            outputStream.writeLong(null != entry.data ? offset : SonicOfflinePackage.REMOVED_OFFSET);
+            outputStream.writeInt(null != entry.data ? entry.data.length : 0);
+            offset += null != entry.data ? entry.data.length : 0;
+        }
+        for (TestEntry entry : entries) {
+            if (null != entry.data) {
+                outputStream.write(entry.data);
+            }
+        }
+        outputStream.close();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private File writeFile(byte[] data) throws IOException {
+        File file = File.createTempFile("sonic", ".spkg");
+        files.add(file);
+        FileOutputStream outputStream = new FileOutputStream(file);
+        outputStream.write(data);
+        outputStream.close();
+        return file;
+    }
+
+    private static String read(SonicOfflinePackage offlinePackage, String path) throws IOException {
+        InputStream inputStream = offlinePackage.openStream(path);
+        return null != inputStream ? new String(SonicContentDecoderTest.readFully(inputStream)) : null;
+    }
+
+    @Test
+    public void openAndFindEntries() throws IOException {
+        SonicOfflinePackage offlinePackage = SonicOfflinePackage.open(writeFile(buildArchive(
+                new TestEntry("css/main.css", "text/css", "body{}"),
+                new TestEntry("js/main.js", "application/javascript", "var a = 1;"),
+                new TestEntry("empty.txt", "text/plain", ""))));
+
+        assertEquals(3, offlinePackage.getEntries().length);
+        assertEquals("text/css", offlinePackage.getMime("css/main.css"));
+        assertEquals("body{}", read(offlinePackage, "css/main.css"));
+        assertEquals("var a = 1;", read(offlinePackage, "js/main.js"));
+        assertEquals("", read(offlinePackage, "empty.txt"));
+        assertNull(offlinePackage.getMime("css/other.css"));
+        assertNull(offlinePackage.openStream("css/other.css"));
+    }
+
+    @Test
+    public void findEntriesWithCollidingSlots() throws IOException {
+        TestEntry[] entries = new TestEntry[200];
+        for (int i = 0; i < entries.length; ++i) {
+            entries[i] = new TestEntry("img/" + i + ".png", "image/png", "png" + i);
+        }
+        SonicOfflinePackage offlinePackage = SonicOfflinePackage.open(writeFile(buildArchive(entries)));
+        for (int i = 0; i < entries.length; ++i) {
+            assertEquals("png" + i, read(offlinePackage, "img/" + i + ".png"));
+        }
+        assertNull(offlinePackage.openStream("img/200.png"));
+    }
+
+    @Test
+    public void streamSkipsAndReportsAvailable() throws IOException {
+        SonicOfflinePackage offlinePackage = SonicOfflinePackage.open(writeFile(buildArchive(
+                new TestEntry("a.txt", "text/plain", "0123456789"))));
+        InputStream inputStream = offlinePackage.openStream("a.txt");
+        assertEquals(10, inputStream.available());
+        assertEquals(4, inputStream.skip(4));
+        assertEquals('4', inputStream.read());
+        assertEquals("56789", new String(SonicContentDecoderTest.readFully(inputStream)));
+        assertEquals(-1, inputStream.read());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectWrongMagic() throws IOException {
+        byte[] archive = buildArchive(new TestEntry("a.txt", "text/plain", "a"));
+        archive[0] = 'X';
+        SonicOfflinePackage.open(writeFile(archive));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectTruncatedIndex() throws IOException {
+        byte[] archive = buildArchive(new TestEntry("a.txt", "text/plain", "a"));
+        byte[] truncated = new byte[16];
+        System.arraycopy(archive, 0, truncated, 0, truncated.length);
+        SonicOfflinePackage.open(writeFile(truncated));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectDataBeyondArchive() throws IOException {
+        byte[] archive = buildArchive(new TestEntry("a.txt", "text/plain", "abc"));
+        byte[] truncated = new byte[archive.length - 1];
+        System.arraycopy(archive, 0, truncated, 0, truncated.length);
+        SonicOfflinePackage.open(writeFile(truncated));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectRemovedEntryInFullArchive() throws IOException {
+        SonicOfflinePackage.open(writeFile(buildArchive(new TestEntry("a.txt", "text/plain", null))));
+    }
+
+    @Test
+    public void mergeDiffArchive() throws IOException {
+        SonicOfflinePackage basePackage = SonicOfflinePackage.open(writeFile(buildArchive(
+                new TestEntry("a.css", "text/css", "a1"),
+                new TestEntry("b.js", "application/javascript", "b1"),
+                new TestEntry("c.png", "image/png", "c1"))));
+        File diffFile = writeFile(buildArchive(
+                new TestEntry("b.js", "application/javascript", "b2"),
+                new TestEntry("c.png", "image/png", null),
+                new TestEntry("d.html", "text/html", "d2")));
+        File outputFile = File.createTempFile("sonic", ".spkg");
+        files.add(outputFile);
+
+        SonicOfflinePackage.merge(basePackage, diffFile, outputFile);
+        SonicOfflinePackage mergedPackage = SonicOfflinePackage.open(outputFile);
+        assertEquals(3, mergedPackage.getEntries().length);
+        assertEquals("a1", read(mergedPackage, "a.css"));
+        assertEquals("b2", read(mergedPackage, "b.js"));
+        assertNull(read(mergedPackage, "c.png"));
+        assertEquals("d2", read(mergedPackage, "d.html"));
+        assertEquals("text/html", mergedPackage.getMime("d.html"));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectBrokenDiffArchive() throws IOException {
+        SonicOfflinePackage basePackage = SonicOfflinePackage.open(writeFile(buildArchive(
+                new TestEntry("a.css", "text/css", "a1"))));
+        File outputFile = File.createTempFile("sonic", ".spkg");
+        files.add(outputFile);
+        SonicOfflinePackage.merge(basePackage, writeFile(new byte[]{1, 2, 3}), outputFile);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+
+package com.tencent.sonic.sdk;
+
+import android.content.Intent;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLConnection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SonicSessionConnectionTest {
+
+    private static final byte[] HTML = "<html><body>sonic</body></html>".getBytes();
+
+    private HttpServer server;
+
+    /**
+     * The Accept-Encoding of the requests received by server
+     */
+    private final List<String> acceptEncodings = new CopyOnWriteArrayList<String>();
+
+    @Before
+    public void setUp() throws IOException {
+        SonicTestRuntime.createEngineIfNeed();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                acceptEncodings.add(String.valueOf(acceptEncoding));
+                // The server ignores the offered codings unless the client insists on identity
+                if (!"identity".equals(acceptEncoding)) {
+                    exchange.getResponseHeaders().set("Content-Encoding", "br");
+                }
+                exchange.sendResponseHeaders(200, HTML.length);
+                OutputStream outputStream = exchange.getResponseBody();
+                outputStream.write(HTML);
+                outputStream.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private String getUrl(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    @Test
+    public void unsupportedEncodingIsRequestedAgainWithIdentity() throws IOException {
+        SonicSession session = new StandardSonicSession("test", getUrl("/page"), new SonicSessionConfig.Builder().build());
+        SonicSessionConnection connection = new SonicSessionConnection.SessionConnectionDefaultImpl(session, new Intent());
+        assertEquals(SonicConstants.ERROR_CODE_SUCCESS, connection.connect());
+        assertEquals(200, connection.getResponseCode());
+
+        assertArrayEquals(HTML, SonicContentDecoderTest.readFully(connection.getResponseStream()));
+        assertEquals(2, acceptEncodings.size());
+        assertFalse("identity".equals(acceptEncodings.get(0)));
+        assertEquals("identity", acceptEncodings.get(1));
+        connection.disconnect();
+    }
+
+    @Test
+    public void directAddressReplacesOnlyHost() {
+        URLConnection connection = SonicSessionConnection.SessionConnectionDefaultImpl.openConnection(
+                "http://www.example.com:8080/www.example.com/index.html?from=www.example.com", "127.0.0.1");
+        assertNotNull(connection);
+        assertEquals("http://127.0.0.1:8080/www.example.com/index.html?from=www.example.com", connection.getURL().toString());
+        assertEquals("127.0.0.1", connection.getRequestProperty(SonicSessionConnection.CUSTOM_HEAD_FILED_DNS_PREFETCH));
+
+        connection = SonicSessionConnection.SessionConnectionDefaultImpl.openConnection("http://www.example.com/index.html", null);
+        assertNotNull(connection);
+        assertEquals("http://www.example.com/index.html", connection.getURL().toString());
+        assertNull(connection.getRequestProperty(SonicSessionConnection.CUSTOM_HEAD_FILED_DNS_PREFETCH));
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+
+package com.tencent.sonic.sdk;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * Compares {@link SonicSessionPipe} with the stream it replaced, which replayed the captured data
+ * and then read the network byte by byte on the kernel thread. The kernel attaches after half of the
+ * response has been captured. Throughput, the bytes allocated by both threads and the peak of the
+ * response budget are printed, only the correctness of data is asserted.
+ *
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SonicSessionPipeBenchmark {
+
+    private static final int RESPONSE_SIZE = 4 * 1024 * 1024;
+
+    private static final int ROUNDS = 5;
+
+    private static final int KERNEL_READ_SIZE = 8 * 1024;
+
+    /**
+     * The stream used before {@link SonicSessionPipe}, reduced to its read path
+     */
+    private static class LegacySessionStream extends InputStream {
+
+        private final InputStream memStream;
+
+        private final InputStream netStream;
+
+        private final SonicCaptureOutputStream outputStream;
+
+        private boolean memStreamReadComplete;
+
+        LegacySessionStream(SonicCaptureOutputStream outputStream, InputStream netStream) throws IOException {
+            this.outputStream = outputStream;
+            this.memStream = new BufferedInputStream(outputStream.openReplayStream());
+            this.netStream = netStream;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            int c = -1;
+            if (!memStreamReadComplete) {
+                c = memStream.read();
+            }
+            if (-1 == c) {
+                memStreamReadComplete = true;
+                c = netStream.read();
+                if (-1 != c) {
+                    outputStream.write(c);
+                }
+            }
+            return c;
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int byteOffset, int byteCount) throws IOException {
+            for (int i = 0; i < byteCount; ++i) {
+                int c = read();
+                if (-1 == c) {
+                    return i == 0 ? -1 : i;
+                }
+                buffer[byteOffset + i] = (byte) c;
+            }
+            return byteCount;
+        }
+    }
+
+    private static class Result {
+
+        long costNanos;
+
+        long allocatedBytes;
+
+        long peakBudgetBytes;
+
+        byte[] received;
+    }
+
+    private static final SonicSessionPipe.Callback NO_CALLBACK = new SonicSessionPipe.Callback() {
+        @Override
+        public void onClose(boolean readComplete, SonicCaptureOutputStream outputStream) {
+            outputStream.release();
+        }
+    };
+
+    private byte[] data;
+
+    @Before
+    public void setUp() {
+        SonicTestRuntime.createEngineIfNeed();
+        data = new byte[RESPONSE_SIZE];
+        new Random(0).nextBytes(data);
+    }
+
+    private static long getAllocatedBytes(Thread thread) {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(thread.getId());
+        }
+        return -1;
+    }
+
+    private static byte[] readAll(InputStream inputStream, int size) throws IOException {
+        byte[] received = new byte[size];
+        byte[] buffer = new byte[KERNEL_READ_SIZE];
+        int offset = 0;
+        int n;
+        while (-1 != (n = inputStream.read(buffer, 0, buffer.length))) {
+            System.arraycopy(buffer, 0, received, offset, n);
+            offset += n;
+        }
+        return Arrays.copyOf(received, offset);
+    }
+
+    private Result runLegacy() throws Exception {
+        SonicByteBudget budget = new SonicByteBudget(0);
+        SonicCaptureOutputStream captureStream = new SonicCaptureOutputStream(budget, 0);
+        InputStream netStream = new BufferedInputStream(new ByteArrayInputStream(data));
+        Result result = new Result();
+        long allocatedBytes = getAllocatedBytes(Thread.currentThread());
+        long startTime = System.nanoTime();
+
+        // The session thread captures the first half before the kernel attaches
+        byte[] buffer = new byte[KERNEL_READ_SIZE];
+        int n;
+        while (captureStream.size() < RESPONSE_SIZE / 2 && -1 != (n = netStream.read(buffer))) {
+            captureStream.write(buffer, 0, n);
+        }
+        result.received = readAll(new LegacySessionStream(captureStream, netStream), RESPONSE_SIZE);
+
+        result.costNanos = System.nanoTime() - startTime;
+        result.allocatedBytes = getAllocatedBytes(Thread.currentThread()) - allocatedBytes;
+        result.peakBudgetBytes = budget.getPeakBytes();
+        captureStream.release();
+        return result;
+    }
+
+    private Result runPipe() throws Exception {
+        SonicByteBudget budget = new SonicByteBudget(0);
+        final SonicCaptureOutputStream captureStream = new SonicCaptureOutputStream(budget, 0);
+        final SonicSessionPipe pipe = new SonicSessionPipe(NO_CALLBACK, captureStream,
+                new BufferedInputStream(new ByteArrayInputStream(data)), new SonicSessionConfig.Builder().build());
+        final long[] producerAllocatedBytes = new long[1];
+        Result result = new Result();
+        long allocatedBytes = getAllocatedBytes(Thread.currentThread());
+        long startTime = System.nanoTime();
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long allocatedBytes = getAllocatedBytes(Thread.currentThread());
+                if (!pipe.readUntilAttached()) {
+                    pipe.pumpToEnd();
+                }
+                producerAllocatedBytes[0] = getAllocatedBytes(Thread.currentThread()) - allocatedBytes;
+            }
+        });
+        producer.start();
+        // The kernel attaches after the first half is captured
+        while (captureStream.size() < RESPONSE_SIZE / 2) {
+            Thread.yield();
+        }
+        result.received = readAll(pipe.getInputStream(), RESPONSE_SIZE);
+        pipe.getInputStream().close();
+        producer.join();
+
+        result.costNanos = System.nanoTime() - startTime;
+        result.allocatedBytes = getAllocatedBytes(Thread.currentThread()) - allocatedBytes + producerAllocatedBytes[0];
+        result.peakBudgetBytes = budget.getPeakBytes();
+        return result;
+    }
+
+    private static void print(String name, Result[] results) {
+        long bestCost = Long.MAX_VALUE;
+        long allocatedBytes = 0;
+        long peakBudgetBytes = 0;
+        for (Result result : results) {
+            bestCost = Math.min(bestCost, result.costNanos);
+            allocatedBytes = Math.max(allocatedBytes, result.allocatedBytes);
+            peakBudgetBytes = Math.max(peakBudgetBytes, result.peakBudgetBytes);
+        }
+        double throughput = RESPONSE_SIZE / (1024.0 * 1024.0) / (bestCost / 1e9);
+        System.out.println(String.format("%-8s best %7.2f ms, %8.1f MB/s, allocated %6d KB, peak budget %6d KB",
+                name, bestCost / 1e6, throughput, allocatedBytes / 1024, peakBudgetBytes / 1024));
+    }
+
+    @Test
+    public void compareWithLegacyStream() throws Exception {
+        // Warm up
+        runLegacy();
+        runPipe();
+
+        Result[] legacyResults = new Result[ROUNDS];
+        Result[] pipeResults = new Result[ROUNDS];
+        for (int i = 0; i < ROUNDS; ++i) {
+            legacyResults[i] = runLegacy();
+            assertArrayEquals(data, legacyResults[i].received);
+            pipeResults[i] = runPipe();
+            assertArrayEquals(data, pipeResults[i].received);
+        }
+        print("legacy", legacyResults);
+        print("pipe", pipeResults);
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+
+package com.tencent.sonic.sdk;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SonicSessionPipeTest {
+
+    private static final int READ_BUF_SIZE = 1024;
+
+    private static final int PIPE_BUFFER_SIZE = 4 * 1024;
+
+    /**
+     * A response which serves <code>data</code> in chunks, it blocks after <code>gateOffset</code>
+     * bytes until <code>gate</code> is opened.
+     */
+    private static class ResponseStream extends InputStream {
+
+        private final byte[] data;
+
+        private final int chunkSize;
+
+        private final int gateOffset;
+
+        final CountDownLatch gate = new CountDownLatch(1);
+
+        final AtomicInteger servedBytes = new AtomicInteger();
+
+        volatile boolean closed;
+
+        ResponseStream(byte[] data, int chunkSize, int gateOffset) {
+            this.data = data;
+            this.chunkSize = chunkSize;
+            this.gateOffset = gateOffset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            return -1 == read(buffer, 0, 1) ? -1 : buffer[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int served = servedBytes.get();
+            if (served >= gateOffset) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (served >= data.length) {
+                return -1;
+            }
+            int limit = served < gateOffset ? Math.min(gateOffset, data.length) : data.length;
+            int n = Math.min(Math.min(count, chunkSize), limit - served);
+            System.arraycopy(data, served, buffer, offset, n);
+            servedBytes.addAndGet(n);
+            return n;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static class PipeCallback implements SonicSessionPipe.Callback {
+
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        volatile boolean readComplete;
+
+        volatile SonicCaptureOutputStream outputStream;
+
+        @Override
+        public void onClose(boolean readComplete, SonicCaptureOutputStream outputStream) {
+            this.readComplete = readComplete;
+            this.outputStream = outputStream;
+            closed.countDown();
+        }
+    }
+
+    private final PipeCallback callback = new PipeCallback();
+
+    @Before
+    public void setUp() {
+        SonicTestRuntime.createEngineIfNeed();
+    }
+
+    private static SonicSessionConfig createConfig(long attachTimeoutMillis) {
+        return new SonicSessionConfig.Builder()
+                .setReadBufferSize(READ_BUF_SIZE)
+                .setStreamPipeBufferSize(PIPE_BUFFER_SIZE)
+                .setPendingResourceTimeoutMillis(attachTimeoutMillis)
+                .build();
+    }
+
+    private static byte[] createData(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private SonicSessionPipe createPipe(ResponseStream responseStream, SonicByteBudget budget) {
+        SonicCaptureOutputStream captureStream = new SonicCaptureOutputStream(budget, 0);
+        return new SonicSessionPipe(callback, captureStream, new BufferedInputStream(responseStream, READ_BUF_SIZE), createConfig(5000));
+    }
+
+    private static Thread startProducer(final SonicSessionPipe pipe, final boolean[] completeBeforeAttach) {
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                completeBeforeAttach[0] = pipe.readUntilAttached();
+                if (!completeBeforeAttach[0]) {
+                    pipe.pumpToEnd();
+                }
+            }
+        });
+        producer.start();
+        return producer;
+    }
+
+    private static byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[777];
+        int n;
+        while (-1 != (n = inputStream.read(buffer))) {
+            outputStream.write(buffer, 0, n);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static void waitForState(Thread thread, Thread.State state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (thread.getState() != state && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(state, thread.getState());
+    }
+
+    @Test
+    public void handOffFromReplayToRingBuffer() throws Exception {
+        byte[] data = createData(100 * 1024, 1);
+        ResponseStream responseStream = new ResponseStream(data, 3000, 30 * 1024);
+        SonicSessionPipe pipe = createPipe(responseStream, new SonicByteBudget(0));
+        boolean[] completeBeforeAttach = new boolean[1];
+        Thread producer = startProducer(pipe, completeBeforeAttach);
+
+        // The producer captures the data before the gate, and then waits for the network
+        waitForState(producer, Thread.State.WAITING);
+        assertEquals(30 * 1024, pipe.getCaptureStream().size());
+
+        // The kernel attaches and replays the captured data, the following data flows through the ring buffer
+        SonicSessionPipe.PipeInputStream inputStream = pipe.getInputStream();
+        byte[] head = new byte[10];
+        assertEquals(10, inputStream.read(head, 0, head.length));
+        responseStream.gate.countDown();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        received.write(head);
+        received.write(readFully(inputStream));
+        inputStream.close();
+        producer.join(5000);
+
+        assertFalse(completeBeforeAttach[0]);
+        assertArrayEquals(data, received.toByteArray());
+        assertTrue(callback.closed.await(5, TimeUnit.SECONDS));
+        assertTrue(callback.readComplete);
+        assertArrayEquals(data, callback.outputStream.toByteArray());
+        assertTrue(responseStream.closed);
+    }
+
+    @Test
+    public void attachAtRandomTimeNeverLosesOrDuplicatesData() throws Exception {
+        Random random = new Random(2);
+        for (int i = 0; i < 50; ++i) {
+            byte[] data = createData(20 * 1024 + random.nextInt(40 * 1024), i);
+            final ResponseStream responseStream = new ResponseStream(data, 1 + random.nextInt(2000), Integer.MAX_VALUE);
+            PipeCallback callback = new PipeCallback();
+            SonicSessionPipe pipe = new SonicSessionPipe(callback, new SonicCaptureOutputStream(new SonicByteBudget(0), 0),
+                    new BufferedInputStream(responseStream, READ_BUF_SIZE), createConfig(5000));
+            boolean[] completeBeforeAttach = new boolean[1];
+            Thread producer = startProducer(pipe, completeBeforeAttach);
+            Thread.sleep(random.nextInt(3));
+
+            byte[] received = readFully(pipe.getInputStream());
+            pipe.getInputStream().close();
+            producer.join(5000);
+
+            assertArrayEquals("round " + i, data, received);
+            assertTrue(callback.closed.await(5, TimeUnit.SECONDS));
+            assertTrue(callback.readComplete);
+            assertArrayEquals("round " + i, data, callback.outputStream.toByteArray());
+        }
+    }
+
+    @Test
+    public void producerBlocksWhenRingBufferIsFull() throws Exception {
+        byte[] data = createData(64 * 1024, 3);
+        ResponseStream responseStream = new ResponseStream(data, READ_BUF_SIZE, Integer.MAX_VALUE);
+        final SonicSessionPipe pipe = createPipe(responseStream, new SonicByteBudget(0));
+        final CountDownLatch resume = new CountDownLatch(1);
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[] head = new byte[1];
+                    received.write(head, 0, pipe.getInputStream().read(head, 0, 1));
+                    resume.await();
+                    received.write(readFully(pipe.getInputStream()));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        consumer.start();
+        // Attach before the producer starts, so nothing is captured before attaching
+        waitForState(consumer, Thread.State.WAITING);
+
+        boolean[] completeBeforeAttach = new boolean[1];
+        Thread producer = startProducer(pipe, completeBeforeAttach);
+        waitForState(producer, Thread.State.WAITING);
+        Thread.sleep(50);
+        assertEquals(Thread.State.WAITING, producer.getState());
+        assertTrue("served " + responseStream.servedBytes.get(), responseStream.servedBytes.get() <= 1 + PIPE_BUFFER_SIZE + READ_BUF_SIZE);
+        assertTrue(pipe.getInputStream().getBufferedSize() <= responseStream.servedBytes.get() + PIPE_BUFFER_SIZE);
+
+        resume.countDown();
+        consumer.join(5000);
+        producer.join(5000);
+        assertArrayEquals(data, received.toByteArray());
+    }
+
+    @Test
+    public void abortStopsBlockedProducer() throws Exception {
+        byte[] data = createData(64 * 1024, 4);
+        ResponseStream responseStream = new ResponseStream(data, READ_BUF_SIZE, Integer.MAX_VALUE);
+        SonicSessionPipe pipe = createPipe(responseStream, new SonicByteBudget(0));
+        final SonicSessionPipe.PipeInputStream inputStream = pipe.getInputStream();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    inputStream.read(new byte[1], 0, 1);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        consumer.start();
+        waitForState(consumer, Thread.State.WAITING);
+        boolean[] completeBeforeAttach = new boolean[1];
+        Thread producer = startProducer(pipe, completeBeforeAttach);
+        consumer.join(5000);
+        // The ring buffer is full and nobody reads
+        waitForState(producer, Thread.State.WAITING);
+
+        inputStream.abort();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertTrue(responseStream.servedBytes.get() < data.length);
+        assertTrue(responseStream.closed);
+        assertTrue(callback.closed.await(5, TimeUnit.SECONDS));
+        assertFalse(callback.readComplete);
+
+        try {
+            inputStream.read(new byte[1], 0, 1);
+            fail("read after abort");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void closeReaderKeepsCapturingToTheEnd() throws Exception {
+        byte[] data = createData(64 * 1024, 5);
+        ResponseStream responseStream = new ResponseStream(data, READ_BUF_SIZE, Integer.MAX_VALUE);
+        SonicSessionPipe pipe = createPipe(responseStream, new SonicByteBudget(0));
+        SonicSessionPipe.PipeInputStream inputStream = pipe.getInputStream();
+        boolean[] completeBeforeAttach = new boolean[1];
+        Thread producer = startProducer(pipe, completeBeforeAttach);
+        byte[] head = new byte[1];
+        assertEquals(1, inputStream.read(head, 0, 1));
+
+        // The kernel stops reading, but the response is still captured for cache
+        inputStream.close();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertEquals(data.length, responseStream.servedBytes.get());
+        assertTrue(callback.closed.await(5, TimeUnit.SECONDS));
+        assertTrue(callback.readComplete);
+        assertArrayEquals(data, callback.outputStream.toByteArray());
+    }
+
+    @Test
+    public void completeBeforeAttachIsReplayed() throws Exception {
+        byte[] data = createData(10 * 1024, 6);
+        ResponseStream responseStream = new ResponseStream(data, READ_BUF_SIZE, Integer.MAX_VALUE);
+        SonicSessionPipe pipe = createPipe(responseStream, new SonicByteBudget(0));
+        assertTrue(pipe.readUntilAttached());
+        assertEquals(1, callback.closed.getCount());
+
+        assertArrayEquals(data, readFully(pipe.getInputStream()));
+        pipe.getInputStream().close();
+        assertTrue(callback.closed.await(5, TimeUnit.SECONDS));
+        assertTrue(callback.readComplete);
+    }
+
+    @Test
+    public void producerGivesUpWhenKernelDoesNotAttachInTime() throws Exception {
+        SonicTestRuntime runtime = SonicTestRuntime.getInstance();
+        // Spilling fails when the cache directory is a regular file
+        File notDirectory = File.createTempFile("sonic", ".test");
+        runtime.sonicCacheDir = notDirectory;
+        try {
+            byte[] data = createData(64 * 1024, 7);
+            ResponseStream responseStream = new ResponseStream(data, READ_BUF_SIZE, Integer.MAX_VALUE);
+            SonicCaptureOutputStream captureStream = new SonicCaptureOutputStream(new SonicByteBudget(16 * 1024), 0);
+            SonicSessionPipe pipe = new SonicSessionPipe(callback, captureStream, new BufferedInputStream(responseStream, READ_BUF_SIZE), createConfig(200));
+
+            long startTime = System.currentTimeMillis();
+            assertFalse(pipe.readUntilAttached());
+            assertTrue(System.currentTimeMillis() - startTime >= 200);
+            assertFalse(captureStream.canCapture());
+            assertTrue(responseStream.servedBytes.get() < data.length);
+            assertTrue(responseStream.closed);
+
+            try {
+                readFully(pipe.getInputStream());
+                fail("the response is incomplete");
+            } catch (IOException e) {
+                // expected
+            }
+            pipe.getInputStream().close();
+            assertTrue(callback.closed.await(5, TimeUnit.SECONDS));
+            assertFalse(callback.readComplete);
+        } finally {
+            runtime.sonicCacheDir = null;
+            assertTrue(notDirectory.delete());
+        }
+    }
+
+    @Test
+    public void producerResumesWhenKernelAttachesInTime() throws Exception {
+        SonicTestRuntime runtime = SonicTestRuntime.getInstance();
+        File notDirectory = File.createTempFile("sonic", ".test");
+        runtime.sonicCacheDir = notDirectory;
+        try {
+            byte[] data = createData(64 * 1024, 8);
+            ResponseStream responseStream = new ResponseStream(data, READ_BUF_SIZE, Integer.MAX_VALUE);
+            SonicCaptureOutputStream captureStream = new SonicCaptureOutputStream(new SonicByteBudget(16 * 1024), 0);
+            SonicSessionPipe pipe = new SonicSessionPipe(callback, captureStream, new BufferedInputStream(responseStream, READ_BUF_SIZE), createConfig(5000));
+            boolean[] completeBeforeAttach = new boolean[1];
+            Thread producer = startProducer(pipe, completeBeforeAttach);
+            waitForState(producer, Thread.State.TIMED_WAITING);
+
+            assertArrayEquals(data, readFully(pipe.getInputStream()));
+            pipe.getInputStream().close();
+            producer.join(5000);
+            assertFalse(completeBeforeAttach[0]);
+            assertTrue(callback.closed.await(5, TimeUnit.SECONDS));
+            // The data after the budget is exhausted is streamed without capture
+            assertFalse(callback.readComplete);
+            assertTrue(captureStream.isTruncated());
+        } finally {
+            runtime.sonicCacheDir = null;
+            assertTrue(notDirectory.delete());
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+
+package com.tencent.sonic.sdk;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SonicTemplateDeltaTest {
+
+    private static final String TEMPLATE = "<html><head></head><body>{title}</body></html>";
+
+    /**
+     * Writes the ops of a delta
+     */
+    private static class DeltaBuilder {
+
+        private final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+
+        private final DataOutputStream output = new DataOutputStream(byteArrayOutputStream);
+
+        DeltaBuilder() throws IOException {
+            output.writeInt(SonicTemplateDelta.MAGIC);
+        }
+
+        DeltaBuilder copy(int offset, int length) throws IOException {
+            output.writeByte(SonicTemplateDelta.OP_COPY);
+            output.writeInt(offset);
+            output.writeInt(length);
+            return this;
+        }
+
+        DeltaBuilder insert(String data) throws IOException {
+            output.writeByte(SonicTemplateDelta.OP_INSERT);
+            output.writeInt(data.getBytes().length);
+            output.write(data.getBytes());
+            return this;
+        }
+
+        byte[] end() throws IOException {
+            output.writeByte(SonicTemplateDelta.OP_END);
+            return toByteArray();
+        }
+
+        byte[] toByteArray() throws IOException {
+            output.flush();
+            return byteArrayOutputStream.toByteArray();
+        }
+    }
+
+    private static String apply(byte[] delta, String expectedHtml, long maxLength) throws IOException {
+        byte[] html = SonicTemplateDelta.apply(TEMPLATE.getBytes(), new ByteArrayInputStream(delta), SonicUtils.getSHA1(expectedHtml), maxLength);
+        return new String(html);
+    }
+
+    @Test
+    public void applyCopyAndInsert() throws IOException {
+        String expectedHtml = "<html><head></head><body>hello sonic</body></html>";
+        byte[] delta = new DeltaBuilder()
+                .copy(0, 25)
+                .insert("hello sonic")
+                .copy(32, 14)
+                .end();
+        assertEquals(expectedHtml, apply(delta, expectedHtml, 0));
+    }
+
+    @Test
+    public void applyLargeInsert() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 100 * 1024) {
+            builder.append("<p>sonic</p>");
+        }
+        String body = builder.toString();
+        byte[] delta = new DeltaBuilder().insert(body).end();
+        assertEquals(body, apply(delta, body, 0));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectSha1Mismatch() throws IOException {
+        byte[] delta = new DeltaBuilder().copy(0, TEMPLATE.length()).end();
+        apply(delta, TEMPLATE + " ", 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectWrongMagic() throws IOException {
+        byte[] delta = new DeltaBuilder().copy(0, TEMPLATE.length()).end();
+        delta[0] = 'X';
+        apply(delta, TEMPLATE, 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectTruncatedDelta() throws IOException {
+        byte[] delta = new DeltaBuilder().copy(0, TEMPLATE.length()).toByteArray();
+        apply(delta, TEMPLATE, 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectCopyOutOfTemplate() throws IOException {
+        byte[] delta = new DeltaBuilder().copy(TEMPLATE.length() - 1, 2).end();
+        apply(delta, TEMPLATE, 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectUnknownOp() throws IOException {
+        byte[] delta = new DeltaBuilder().toByteArray();
+        delta = Arrays.copyOf(delta, delta.length + 1);
+        delta[delta.length - 1] = 9;
+        apply(delta, TEMPLATE, 0);
+    }
+
+    @Test
+    public void rejectHtmlExceedingMaxLength() throws IOException {
+        DeltaBuilder builder = new DeltaBuilder();
+        StringBuilder expectedHtml = new StringBuilder();
+        for (int i = 0; i < 100; ++i) {
+            builder.copy(0, TEMPLATE.length());
+            expectedHtml.append(TEMPLATE);
+        }
+        byte[] delta = builder.end();
+        assertEquals(expectedHtml.toString(), apply(delta, expectedHtml.toString(), expectedHtml.length()));
+        try {
+            apply(delta, expectedHtml.toString(), expectedHtml.length() - 1);
+            fail("html exceeding the max length is accepted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("exceeds"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectInsertExceedingMaxLength() throws IOException {
+        byte[] delta = new DeltaBuilder().insert("0123456789").end();
+        apply(delta, "0123456789", 9);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+
+package com.tencent.sonic.sdk;
+
+import android.content.Context;
+
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * The runtime used by unit tests, it logs to the console and never touches the network.
+ *
+ */
+class SonicTestRuntime extends SonicRuntime {
+
+    /**
+     * Overrides the sonic cache directory when it is not null, a test can point it to a regular file
+     * to make the file operations fail.
+     */
+    volatile File sonicCacheDir;
+
+    private SonicTestRuntime(Context context) {
+        super(context);
+    }
+
+    /**
+     * Create the engine with the default config if it has not been created, most of the sdk classes
+     * log through the engine.
+     *
+     * @return The engine
+     */
+    static SonicEngine createEngineIfNeed() {
+        if (!SonicEngine.isGetInstanceAllowed()) {
+            SonicEngine.createInstance(new SonicTestRuntime(RuntimeEnvironment.application), new SonicConfig.Builder().build());
+        }
+        return SonicEngine.getInstance();
+    }
+
+    /**
+     * @return The runtime of the engine created by {@link #createEngineIfNeed()}
+     */
+    static SonicTestRuntime getInstance() {
+        return (SonicTestRuntime) createEngineIfNeed().getRuntime();
+    }
+
+    @Override
+    public File getSonicCacheDir() {
+        File dir = sonicCacheDir;
+        return null != dir ? dir : super.getSonicCacheDir();
+    }
+
+    @Override
+    public void log(String tag, int level, String message) {
+        System.out.println(tag + ": " + message);
+    }
+
+    @Override
+    public String getCookie(String url) {
+        return null;
+    }
+
+    @Override
+    public boolean setCookie(String url, List<String> cookies) {
+        return false;
+    }
+
+    @Override
+    public String getUserAgent() {
+        return null;
+    }
+
+    @Override
+    public String getCurrentUserAccount() {
+        return "";
+    }
+
+    @Override
+    public boolean isSonicUrl(String url) {
+        return true;
+    }
+
+    @Override
+    public Object createWebResourceResponse(String mimeType, String encoding, InputStream data, Map<String, String> headers) {
+        return null;
+    }
+
+    @Override
+    public boolean isNetworkValid() {
+        return true;
+    }
+
+    @Override
+    public void showToast(CharSequence text, int duration) {
+    }
+
+    @Override
+    public void notifyError(SonicSessionClient client, String url, int errorCode) {
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+
+package com.tencent.sonic.sdk;
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SonicUnavailableTableTest {
+
+    private static final String URL = "https://www.example.com/activity/index.html?id=1";
+
+    private static final long WAIT_TIMEOUT = 5000;
+
+    private SharedPreferences sharedPreferences;
+
+    @Before
+    public void setUp() {
+        SonicTestRuntime.createEngineIfNeed();
+        sharedPreferences = SonicDataHelper.getSonicSharedPref();
+        sharedPreferences.edit().clear().commit();
+    }
+
+    /**
+     * Wait until the background write makes the key contain the value, 0 means the key is removed.
+     */
+    private void awaitPref(String key, long value) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_TIMEOUT;
+        while (sharedPreferences.getLong(key, 0) != value) {
+            assertTrue("timeout waiting for " + key, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void availableWithoutRules() {
+        assertEquals(0, new SonicUnavailableTable().getUnavailableTime("session", URL));
+    }
+
+    @Test
+    public void sessionRuleExpires() throws InterruptedException {
+        SonicUnavailableTable table = new SonicUnavailableTable();
+        long unavailableTime = System.currentTimeMillis() + 200;
+        table.setSessionUnavailableTime("session", unavailableTime);
+        assertEquals(unavailableTime, table.getUnavailableTime("session", URL));
+        assertEquals(0, table.getUnavailableTime("other", URL));
+
+        Thread.sleep(250);
+        assertEquals(0, table.getUnavailableTime("session", URL));
+    }
+
+    @Test
+    public void hostRuleCoversAllUrlsOfHost() {
+        SonicUnavailableTable table = new SonicUnavailableTable();
+        long unavailableTime = System.currentTimeMillis() + 60 * 1000;
+        table.setHostUnavailableTime("www.example.com", unavailableTime);
+        assertEquals(unavailableTime, table.getUnavailableTime("session", "https://www.example.com/other.html"));
+        assertEquals(0, table.getUnavailableTime("session", "https://other.example.com/index.html"));
+    }
+
+    @Test
+    public void patternRuleMatchesWildcard() {
+        SonicUnavailableTable table = new SonicUnavailableTable();
+        long unavailableTime = System.currentTimeMillis() + 60 * 1000;
+        table.setPatternUnavailableTime("https://www.example.com/activity/*", unavailableTime);
+        table.setPatternUnavailableTime("https://www.example.com/a?b*", unavailableTime);
+        assertEquals(unavailableTime, table.getUnavailableTime("session", URL));
+        assertEquals(0, table.getUnavailableTime("session", "https://www.example.com/other/index.html"));
+        assertEquals(unavailableTime, table.getUnavailableTime("session", "https://www.example.com/a?b=1"));
+        // The other characters of pattern are not regex
+        assertEquals(0, table.getUnavailableTime("session", "https://www.example.com/b=1"));
+    }
+
+    @Test
+    public void latestRuleWins() {
+        SonicUnavailableTable table = new SonicUnavailableTable();
+        long now = System.currentTimeMillis();
+        table.setSessionUnavailableTime("session", now + 1000);
+        table.setHostUnavailableTime("www.example.com", now + 3000);
+        table.setPatternUnavailableTime("*activity*", now + 2000);
+        assertEquals(now + 3000, table.getUnavailableTime("session", URL));
+
+        // An expired time removes the rule
+        table.setHostUnavailableTime("www.example.com", now - 1);
+        assertEquals(now + 2000, table.getUnavailableTime("session", URL));
+    }
+
+    @Test
+    public void rulesAreWrittenAndLoaded() throws InterruptedException {
+        SonicUnavailableTable table = new SonicUnavailableTable();
+        long unavailableTime = System.currentTimeMillis() + 60 * 1000;
+        table.setSessionUnavailableTime("session", unavailableTime);
+        table.setHostUnavailableTime("www.example.com", unavailableTime + 1);
+        table.setPatternUnavailableTime("*activity*", unavailableTime + 2);
+        awaitPref("UnavailableTime_session", unavailableTime);
+        awaitPref("UnavailableHost_www.example.com", unavailableTime + 1);
+        awaitPref("UnavailablePattern_*activity*", unavailableTime + 2);
+
+        SonicUnavailableTable loadedTable = new SonicUnavailableTable();
+        assertEquals(unavailableTime + 2, loadedTable.getUnavailableTime("other", URL));
+        assertEquals(unavailableTime + 1, loadedTable.getUnavailableTime("other", "https://www.example.com/"));
+        assertEquals(unavailableTime, loadedTable.getUnavailableTime("session", "https://other.example.com/"));
+
+        table.setSessionUnavailableTime("session", 0);
+        awaitPref("UnavailableTime_session", 0);
+        assertFalse(sharedPreferences.contains("UnavailableTime_session"));
+    }
+
+    @Test
+    public void expiredRulesAreRemovedOnLoad() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        sharedPreferences.edit()
+                .putLong("UnavailableTime_expired", now - 1000)
+                .putLong("UnavailableTime_session", now + 60 * 1000)
+                .commit();
+
+        SonicUnavailableTable table = new SonicUnavailableTable();
+        assertEquals(0, table.getUnavailableTime("expired", URL));
+        assertEquals(now + 60 * 1000, table.getUnavailableTime("session", URL));
+        awaitPref("UnavailableTime_expired", 0);
+        assertFalse(sharedPreferences.contains("UnavailableTime_expired"));
+        assertTrue(sharedPreferences.contains("UnavailableTime_session"));
+    }
+
+    @Test
+    public void clearRemovesRulesInMemory() {
+        SonicUnavailableTable table = new SonicUnavailableTable();
+        table.setHostUnavailableTime("www.example.com", System.currentTimeMillis() + 60 * 1000);
+        table.clear();
+        assertEquals(0, table.getUnavailableTime("session", URL));
+    }
+}
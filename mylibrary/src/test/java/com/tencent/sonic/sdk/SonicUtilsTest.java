@@ -0,0 +1,103 @@
+/*
+ * Tencent is pleased to support the open source community by making VasSonic available.
+ *
+ * Copyright (C) 2017 THL A29 Limited, a Tencent company. All rights reserved.
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ *
+ */
+
+
+package com.tencent.sonic.sdk;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SonicUtilsTest {
+
+    private static final String BASE_URL = "https://www.example.com/activity/index.html";
+
+    @Before
+    public void setUp() {
+        SonicTestRuntime.createEngineIfNeed();
+    }
+
+    @Test
+    public void extractSubResourceUrls() {
+        String html = "<html><head>"
+                + "<link rel=\"stylesheet\" href=\"/css/main.css\">"
+                + "<LINK REL='Preload' HREF='font.woff2' as='font'>"
+                + "<link rel=prefetch href=https://cdn.example.com/next.js>"
+                + "<link rel=\"icon\" href=\"/favicon.ico\">"
+                + "<script src=\"../js/main.js\"></script>"
+                + "<script>var inline = 1;</script>"
+                + "</head><body></body></html>";
+        List<String> urls = SonicUtils.extractSubResourceUrls(html, BASE_URL, 10);
+        assertEquals(Arrays.asList(
+                "https://www.example.com/css/main.css",
+                "https://www.example.com/activity/font.woff2",
+                "https://cdn.example.com/next.js",
+                "https://www.example.com/js/main.js"), urls);
+    }
+
+    @Test
+    public void extractSubResourceUrlsWithoutDuplicates() {
+        String html = "<script src=\"/js/main.js\"></script>"
+                + "<link rel=\"preload\" href=\"https://www.example.com/js/main.js\">"
+                + "<script src=\" /js/main.js \"></script>";
+        assertEquals(Arrays.asList("https://www.example.com/js/main.js"),
+                SonicUtils.extractSubResourceUrls(html, BASE_URL, 10));
+    }
+
+    @Test
+    public void extractSubResourceUrlsUpToMaxCount() {
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < 10; ++i) {
+            html.append("<script src=\"/js/").append(i).append(".js\"></script>");
+        }
+        List<String> urls = SonicUtils.extractSubResourceUrls(html.toString(), BASE_URL, 3);
+        assertEquals(Arrays.asList(
+                "https://www.example.com/js/0.js",
+                "https://www.example.com/js/1.js",
+                "https://www.example.com/js/2.js"), urls);
+        assertTrue(SonicUtils.extractSubResourceUrls(html.toString(), BASE_URL, 0).isEmpty());
+    }
+
+    @Test
+    public void extractSubResourceUrlsSkipsInlineAndMalformedUrls() {
+        String html = "<script src=\"data:text/javascript,alert(1)\"></script>"
+                + "<script src=\"javascript:void(0)\"></script>"
+                + "<script src=\"unknown-scheme://www.example.com/a.js\"></script>"
+                + "<link rel=\"stylesheet\" href=\"/css/main.css\">";
+        assertEquals(Arrays.asList("https://www.example.com/css/main.css"),
+                SonicUtils.extractSubResourceUrls(html, BASE_URL, 10));
+    }
+
+    @Test
+    public void extractSubResourceUrlsWithMalformedBaseUrl() {
+        String html = "<link rel=\"stylesheet\" href=\"/css/main.css\">";
+        assertTrue(SonicUtils.extractSubResourceUrls(html, "not a url", 10).isEmpty());
+        assertTrue(SonicUtils.extractSubResourceUrls("", BASE_URL, 10).isEmpty());
+    }
+
+    @Test
+    public void userAgentWithoutRuntimeUserAgent() {
+        // The test runtime provides no user agent
+        assertNull(SonicTestRuntime.getInstance().getUserAgent());
+        assertEquals("Sonic/" + SonicConstants.SONIC_VERSION_NUM, SonicUtils.getUserAgent());
+    }
+}